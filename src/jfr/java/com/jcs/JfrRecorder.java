@@ -0,0 +1,317 @@
+package com.jcs;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits the events of {@link FlightEvents} to the Java Flight Recorder.
+ * <p>
+ * This class is kept apart from the rest of the engine, in a source set
+ * compiled against a runtime that has {@code jdk.jfr}, and is only ever
+ * loaded by name, so the engine itself builds against the Java 8 API and
+ * runs on virtual machines without a flight recorder.
+ */
+final class JfrRecorder implements FlightEvents.Recorder {
+
+    private static final String CATEGORY = "JcsPhysics";
+
+    @Name("com.jcs.Step")
+    @Label("Step")
+    @Description("A step of a world, with the time taken by each phase")
+    @Category(CATEGORY)
+    @Threshold("5 ms")
+    @StackTrace(false)
+    static class StepEvent extends Event {
+        @Label("Frame")
+        int frame;
+
+        @Label("Bodies")
+        int bodies;
+
+        @Label("Pairs")
+        int pairs;
+
+        @Label("Spawns")
+        int spawns;
+
+        @Label("Degradation")
+        @Description("The level of degradation of the step, 0 at full fidelity")
+        int degradation;
+
+        @Label("Commands")
+        @Timespan(Timespan.NANOSECONDS)
+        long commandsTime;
+
+        @Label("Forces")
+        @Timespan(Timespan.NANOSECONDS)
+        long forcesTime;
+
+        @Label("Integration")
+        @Timespan(Timespan.NANOSECONDS)
+        long integrateTime;
+
+        @Label("Internal Data")
+        @Timespan(Timespan.NANOSECONDS)
+        long internalsTime;
+
+        @Label("Culling")
+        @Timespan(Timespan.NANOSECONDS)
+        long cullTime;
+
+        @Label("Explosions")
+        @Timespan(Timespan.NANOSECONDS)
+        long explodeTime;
+
+        @Label("Broadphase")
+        @Timespan(Timespan.NANOSECONDS)
+        long broadphaseTime;
+
+        @Label("Narrowphase")
+        @Timespan(Timespan.NANOSECONDS)
+        long narrowphaseTime;
+
+        @Label("Contact Collection")
+        @Timespan(Timespan.NANOSECONDS)
+        long collectTime;
+
+        @Label("Solver")
+        @Timespan(Timespan.NANOSECONDS)
+        long solveTime;
+
+        @Label("Events")
+        @Timespan(Timespan.NANOSECONDS)
+        long eventsTime;
+
+        @Label("Other Phases")
+        @Description("The time of the phases of the step not listed above")
+        @Timespan(Timespan.NANOSECONDS)
+        long otherTime;
+    }
+
+    @Name("com.jcs.Broadphase")
+    @Label("Broadphase Rebuild")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class BroadphaseEvent extends Event {
+        @Label("Primitives")
+        int primitives;
+
+        @Label("Pairs")
+        int pairs;
+    }
+
+    @Name("com.jcs.Solver")
+    @Label("Contact Resolution")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class SolverEvent extends Event {
+        @Label("Manifolds")
+        int manifolds;
+
+        @Label("Iterations Used")
+        int iterationsUsed;
+
+        @Label("Iterations")
+        int iterations;
+    }
+
+    @Name("com.jcs.SpawnBurst")
+    @Label("Spawn Burst")
+    @Description("A step that spawned at least World.spawnBurstThreshold primitives")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class SpawnBurstEvent extends Event {
+        @Label("Frame")
+        int frame;
+
+        @Label("Spawned")
+        int spawned;
+
+        @Label("Commands")
+        int commands;
+    }
+
+    @Name("com.jcs.CommandQueueFull")
+    @Label("Command Queue Full")
+    @Description("Commands refused because the queue of a world was full")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CommandQueueFullEvent extends Event {
+        @Label("Frame")
+        int frame;
+
+        @Label("Refused")
+        long refused;
+
+        @Label("Capacity")
+        int capacity;
+    }
+
+    @Name("com.jcs.HostSaturated")
+    @Label("Host Saturated")
+    @Description("A world refused by a host too loaded to take it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class HostSaturatedEvent extends Event {
+        @Label("Hosted Worlds")
+        int hosted;
+
+        @Label("Load")
+        @Description("The CPU time the worlds need, over the time the carriers have")
+        float load;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    @Override
+    public Object beginStep() {
+        StepEvent event = new StepEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endStep(Object begun, World world, TaskGraph phases, int pairs, int spawns) {
+        StepEvent event = (StepEvent) begun;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+
+        event.frame = world.getFrame();
+        event.bodies = world.getPrimitives().size();
+        event.pairs = pairs;
+        event.spawns = spawns;
+        event.degradation = world.getDegradation();
+        for (int i = 0; i < phases.getTaskCount(); i++) {
+            TaskGraph.Task phase = phases.getTask(i);
+            long time = phase.getLastTime();
+            switch (phase.name) {
+                case "commands":
+                    event.commandsTime += time;
+                    break;
+                case "forces":
+                    event.forcesTime += time;
+                    break;
+                case "integrate":
+                    event.integrateTime += time;
+                    break;
+                case "internals":
+                    event.internalsTime += time;
+                    break;
+                case "cull":
+                case "compact":
+                    event.cullTime += time;
+                    break;
+                case "broadphase":
+                    event.broadphaseTime += time;
+                    break;
+                case "explode":
+                    event.explodeTime += time;
+                    break;
+                case "narrowphase":
+                    event.narrowphaseTime += time;
+                    break;
+                case "collect":
+                    event.collectTime += time;
+                    break;
+                case "solve":
+                    event.solveTime += time;
+                    break;
+                case "events":
+                    event.eventsTime += time;
+                    break;
+                default:
+                    event.otherTime += time;
+                    break;
+            }
+        }
+        event.commit();
+    }
+
+    @Override
+    public Object beginBroadphase() {
+        BroadphaseEvent event = new BroadphaseEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endBroadphase(Object begun, int primitives, int pairs) {
+        BroadphaseEvent event = (BroadphaseEvent) begun;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.primitives = primitives;
+        event.pairs = pairs;
+        event.commit();
+    }
+
+    @Override
+    public Object beginSolver() {
+        SolverEvent event = new SolverEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endSolver(Object begun, int manifolds, int iterationsUsed, int iterations) {
+        SolverEvent event = (SolverEvent) begun;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.manifolds = manifolds;
+        event.iterationsUsed = iterationsUsed;
+        event.iterations = iterations;
+        event.commit();
+    }
+
+    @Override
+    public void spawnBurst(int frame, int spawned, int commands) {
+        SpawnBurstEvent event = new SpawnBurstEvent();
+        if (!event.shouldCommit())
+            return;
+        event.frame = frame;
+        event.spawned = spawned;
+        event.commands = commands;
+        event.commit();
+    }
+
+    @Override
+    public void commandQueueFull(int frame, long refused, int capacity) {
+        CommandQueueFullEvent event = new CommandQueueFullEvent();
+        if (!event.shouldCommit())
+            return;
+        event.frame = frame;
+        event.refused = refused;
+        event.capacity = capacity;
+        event.commit();
+    }
+
+    @Override
+    public void hostSaturated(int hosted, float load) {
+        HostSaturatedEvent event = new HostSaturatedEvent();
+        if (!event.shouldCommit())
+            return;
+        event.hosted = hosted;
+        event.load = load;
+        event.commit();
+    }
+}
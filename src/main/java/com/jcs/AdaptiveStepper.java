@@ -0,0 +1,286 @@
+package com.jcs;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Advances a {@link ParticleBuffer} with a step size chosen from an
+ * estimate of the error of each step, rather than a fixed one.
+ * <p>
+ * The error is estimated by step doubling: every step is taken once
+ * whole and once as two halves from the same state, and the difference
+ * between the two results, scaled by the order of the integrator of the
+ * buffer, estimates the error of the halved one. A step whose error is
+ * within the tolerance is kept, the halved result with it, and the next
+ * step grows; otherwise it is taken again with a smaller step. Stiff
+ * springs and fast projectiles get small steps while they need them,
+ * and quiet scenes move in large ones.
+ * <p>
+ * A kept step costs three steps of the integrator. The step never
+ * leaves the bounds {@link #minStep} and {@link #maxStep}: a step at the
+ * lower bound is kept whatever its error, so a frame always ends.
+ */
+public strictfp class AdaptiveStepper {
+
+    /**
+     * Holds the largest error allowed in a step, in meters of position;
+     * the error in velocity counts over the length of the step.
+     */
+    public float tolerance = 1.0e-4f;
+
+    /**
+     * Hold the bounds of the step size, in seconds.
+     */
+    public float minStep = 1.0f / 1920.0f, maxStep = 1.0f / 30.0f;
+
+    /**
+     * Holds the fraction of the step size the error estimate allows
+     * that is actually taken, so that the next step is likely kept.
+     */
+    public float safety = 0.9f;
+
+    /**
+     * Holds the most a step can grow by from the one before it.
+     */
+    public float maxGrowth = 2.0f;
+
+    private final ParticleBuffer particles;
+    private final ParticleForceRegistry forces;
+
+    /**
+     * Hold the state at the start of a step, then the whole step result.
+     */
+    private final float[] x0, y0, z0, u0, v0, w0;
+    private final float[] fx0, fy0, fz0;
+    private final float[] x1, y1, z1, u1, v1, w1;
+
+    private float step;
+
+    private final LatencyHistogram stepSizes = new LatencyHistogram();
+    private long stepCount;
+    private long rejectedCount;
+    private float lastStep;
+    private float lastError;
+
+    /**
+     * Creates a stepper for the given particles.
+     *
+     * @param particles the particles, integrated with their own
+     *                  {@link ParticleBuffer#integrator}
+     * @param forces    the generators of the forces, or null for the
+     *                  forces in the columns only
+     */
+    public AdaptiveStepper(ParticleBuffer particles, ParticleForceRegistry forces) {
+        this.particles = particles;
+        this.forces = forces;
+        int capacity = particles.capacity;
+        x0 = new float[capacity];
+        y0 = new float[capacity];
+        z0 = new float[capacity];
+        u0 = new float[capacity];
+        v0 = new float[capacity];
+        w0 = new float[capacity];
+        fx0 = new float[capacity];
+        fy0 = new float[capacity];
+        fz0 = new float[capacity];
+        x1 = new float[capacity];
+        y1 = new float[capacity];
+        z1 = new float[capacity];
+        u1 = new float[capacity];
+        v1 = new float[capacity];
+        w1 = new float[capacity];
+        step = maxStep;
+    }
+
+    /**
+     * Advances the particles by the given time on the calling thread.
+     *
+     * @return the number of steps kept
+     */
+    public int advance(float elapsed) {
+        return advance(elapsed, null);
+    }
+
+    /**
+     * Advances the particles by exactly the given time, in as many steps
+     * as the error allows; the last step is shortened to end on time.
+     * Forces in the columns when called are held over the whole time,
+     * then cleared.
+     *
+     * @param elapsed the time to advance by
+     * @param pool    the pool running the kernels of the integrator, or
+     *                null to run them on the calling thread
+     *
+     * @return the number of steps kept
+     */
+    public int advance(float elapsed, ForkJoinPool pool) {
+        int n = particles.count;
+        System.arraycopy(particles.fx, 0, fx0, 0, n);
+        System.arraycopy(particles.fy, 0, fy0, 0, n);
+        System.arraycopy(particles.fz, 0, fz0, 0, n);
+
+        int order = particles.integrator.getOrder();
+        float scale = 1.0f / ((1 << order) - 1);
+        float exponent = 1.0f / (order + 1);
+
+        step = Math.max(minStep, Math.min(maxStep, step));
+        float remaining = elapsed;
+        int kept = 0;
+        while (remaining > 0.0f) {
+            // A step within a hair of the end takes the rest of it too.
+            boolean last = step >= remaining * 0.999f;
+            float h = last ? remaining : step;
+
+            save(n);
+            restoreForces(n);
+            particles.step(h, forces, pool);
+            keepWhole(n);
+
+            restore(n);
+            restoreForces(n);
+            particles.step(h * 0.5f, forces, pool);
+            restoreForces(n);
+            particles.step(h * 0.5f, forces, pool);
+
+            float error = error(n, h) * scale;
+            // An error that is not a number shrinks the step all it can.
+            float factor = error > 0.0f
+                    ? safety * (float) StrictMath.pow(tolerance / error, exponent)
+                    : error == 0.0f ? maxGrowth : 0.2f;
+            factor = Math.max(0.2f, Math.min(maxGrowth, factor));
+
+            if (error <= tolerance || h <= minStep) {
+                remaining = last ? 0.0f : remaining - h;
+                kept++;
+                stepCount++;
+                lastStep = h;
+                lastError = error;
+                stepSizes.record((long) (h * 1.0e9));
+                // A shortened last step says little about the next one.
+                if (!last || factor < 1.0f)
+                    step = Math.max(minStep, Math.min(maxStep, h * factor));
+            } else {
+                rejectedCount++;
+                restore(n);
+                step = Math.max(minStep, h * factor);
+            }
+        }
+        particles.clearForces();
+        return kept;
+    }
+
+    /**
+     * Gets the size of the next step, in seconds.
+     */
+    public float getStep() {
+        return step;
+    }
+
+    /**
+     * Sets the size of the next step, which is then adapted as usual.
+     */
+    public void setStep(float step) {
+        this.step = step;
+    }
+
+    /**
+     * Gets the sizes of the steps kept, in nanoseconds of simulated time.
+     */
+    public LatencyHistogram getStepSizes() {
+        return stepSizes;
+    }
+
+    /**
+     * Gets the number of steps kept.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Gets the number of steps taken again with a smaller size because
+     * their error was too large.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Gets the size of the last step kept, in seconds.
+     */
+    public float getLastStep() {
+        return lastStep;
+    }
+
+    /**
+     * Gets the error estimated for the last step kept, in meters.
+     */
+    public float getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStats() {
+        stepSizes.reset();
+        stepCount = 0;
+        rejectedCount = 0;
+        lastStep = 0.0f;
+        lastError = 0.0f;
+    }
+
+    private void save(int n) {
+        ParticleBuffer p = particles;
+        System.arraycopy(p.px, 0, x0, 0, n);
+        System.arraycopy(p.py, 0, y0, 0, n);
+        System.arraycopy(p.pz, 0, z0, 0, n);
+        System.arraycopy(p.vx, 0, u0, 0, n);
+        System.arraycopy(p.vy, 0, v0, 0, n);
+        System.arraycopy(p.vz, 0, w0, 0, n);
+    }
+
+    private void restore(int n) {
+        ParticleBuffer p = particles;
+        System.arraycopy(x0, 0, p.px, 0, n);
+        System.arraycopy(y0, 0, p.py, 0, n);
+        System.arraycopy(z0, 0, p.pz, 0, n);
+        System.arraycopy(u0, 0, p.vx, 0, n);
+        System.arraycopy(v0, 0, p.vy, 0, n);
+        System.arraycopy(w0, 0, p.vz, 0, n);
+    }
+
+    private void restoreForces(int n) {
+        ParticleBuffer p = particles;
+        System.arraycopy(fx0, 0, p.fx, 0, n);
+        System.arraycopy(fy0, 0, p.fy, 0, n);
+        System.arraycopy(fz0, 0, p.fz, 0, n);
+    }
+
+    private void keepWhole(int n) {
+        ParticleBuffer p = particles;
+        System.arraycopy(p.px, 0, x1, 0, n);
+        System.arraycopy(p.py, 0, y1, 0, n);
+        System.arraycopy(p.pz, 0, z1, 0, n);
+        System.arraycopy(p.vx, 0, u1, 0, n);
+        System.arraycopy(p.vy, 0, v1, 0, n);
+        System.arraycopy(p.vz, 0, w1, 0, n);
+    }
+
+    /**
+     * Gets the largest difference between the whole and the halved step
+     * over every particle and axis.
+     */
+    private float error(int n, float h) {
+        ParticleBuffer p = particles;
+        float max = 0.0f;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, Math.abs(p.px[i] - x1[i]));
+            max = Math.max(max, Math.abs(p.py[i] - y1[i]));
+            max = Math.max(max, Math.abs(p.pz[i] - z1[i]));
+            max = Math.max(max, Math.abs(p.vx[i] - u1[i]) * h);
+            max = Math.max(max, Math.abs(p.vy[i] - v1[i]) * h);
+            max = Math.max(max, Math.abs(p.vz[i] - w1[i]) * h);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,24 @@
+package com.jcs;
+
+import java.util.List;
+
+/**
+ * A force a {@link World} adds to its bodies at every step, before they
+ * are integrated, such as wind or a field pulling them to a point.
+ * <p>
+ * The bodies are split into ranges updated in parallel when the world
+ * has a pool, so a force must only change the bodies of the range it is
+ * given, and give each body the same force whatever its range.
+ */
+public interface BodyForce {
+
+    /**
+     * Adds the force to the bodies of a range of the primitives.
+     *
+     * @param primitives the primitives of the world
+     * @param from       the first index of the range
+     * @param to         the index after the last one of the range
+     * @param duration   the duration of the step
+     */
+    void apply(List<CollisionSphere> primitives, int from, int to, float duration);
+}
@@ -0,0 +1,227 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sweep list of collision spheres used to cut down the number of
+ * primitives the narrow phase and the scene queries have to look at.
+ * <p>
+ * The spheres are copied into packed arrays sorted by the x coordinate
+ * of their centre, so a query only has to visit the slice of the list
+ * whose x range overlaps the region it is interested in.
+ * <p>
+ * Once {@link #update(List)} returns the broadphase is never written
+ * again until the next update, so it can be read from any number of
+ * threads at the same time. Callers that want to keep querying while
+ * the simulation moves on should hold on to one instance and update
+ * another.
+ */
+public class Broadphase {
+
+    /**
+     * Holds the number of spheres in the broadphase.
+     */
+    private int count;
+
+    /**
+     * Holds the world space centres of the spheres, three floats per
+     * sphere, sorted by increasing x.
+     */
+    private float[] centres = new float[0];
+
+    /**
+     * Holds the radius of each sphere, in the same order as the centres.
+     */
+    private float[] radii = new float[0];
+
+    /**
+     * Holds the collision category, mask and group of each sphere, so
+     * pairs can be filtered without touching the primitives.
+     */
+    private int[] categories = new int[0];
+    private int[] masks = new int[0];
+    private int[] groups = new int[0];
+
+    /**
+     * Holds the primitive each sorted entry was copied from.
+     */
+    private CollisionSphere[] primitives = new CollisionSphere[0];
+
+    /**
+     * Holds the largest radius in the broadphase. Every x range query is
+     * widened by this amount so that no overlapping sphere is missed.
+     */
+    private float maxRadius;
+
+    private long[] keys = new long[0];
+
+    /**
+     * Rebuilds the broadphase from the given spheres. The internals of
+     * every primitive should have been calculated before calling this.
+     *
+     * @param spheres the spheres to copy into the broadphase
+     */
+    public void update(List<? extends CollisionSphere> spheres) {
+        int n = spheres.size();
+        ensureCapacity(n);
+
+        Vector3f centre = new Vector3f();
+        for (int i = 0; i < n; i++) {
+            spheres.get(i).getCentre(centre);
+            keys[i] = ((long) sortableBits(centre.x) << 32) | i;
+        }
+        Arrays.sort(keys, 0, n);
+
+        maxRadius = 0f;
+        for (int i = 0; i < n; i++) {
+            CollisionSphere sphere = spheres.get((int) keys[i]);
+            sphere.getCentre(centre);
+            centres[i * 3] = centre.x;
+            centres[i * 3 + 1] = centre.y;
+            centres[i * 3 + 2] = centre.z;
+            radii[i] = sphere.radius;
+            categories[i] = sphere.category;
+            masks[i] = sphere.mask;
+            groups[i] = sphere.group;
+            primitives[i] = sphere;
+            maxRadius = Math.max(maxRadius, sphere.radius);
+        }
+        for (int i = n; i < count; i++)
+            primitives[i] = null;
+
+        count = n;
+    }
+
+    /**
+     * Gets the number of spheres in the broadphase.
+     *
+     * @return the number of spheres
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the primitive stored at the given sorted index.
+     *
+     * @param index the sorted index, as returned by the queries
+     *
+     * @return the primitive the entry was copied from
+     */
+    public CollisionSphere getPrimitive(int index) {
+        return primitives[index];
+    }
+
+    /**
+     * Gets the packed sorted centres, three floats per sphere. The array
+     * may be longer than three times {@link #getCount()}.
+     */
+    public float[] getCentres() {
+        return centres;
+    }
+
+    /**
+     * Gets the packed sorted radii. The array may be longer than
+     * {@link #getCount()}.
+     */
+    public float[] getRadii() {
+        return radii;
+    }
+
+    /**
+     * Gets the largest radius in the broadphase.
+     */
+    public float getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Returns the first sorted index whose centre x is not less than the
+     * given value.
+     *
+     * @param x the x coordinate to search for
+     *
+     * @return an index between zero and {@link #getCount()}
+     */
+    public int lowerBound(float x) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (centres[mid * 3] < x)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Writes into the given buffer every pair of spheres whose bounding
+     * boxes overlap and whose collision layers and groups allow them to
+     * collide. Filtered pairs are rejected before their bounds are even
+     * compared, and never reach the buffer. Pairs are emitted with the
+     * lower sorted index first.
+     *
+     * @param pairs the buffer to fill, cleared first
+     */
+    public void findPairs(PairBuffer pairs) {
+        pairs.clear();
+
+        for (int i = 0; i < count; i++) {
+            float xi = centres[i * 3], yi = centres[i * 3 + 1], zi = centres[i * 3 + 2];
+            float ri = radii[i];
+            int category = categories[i], mask = masks[i], group = groups[i];
+
+            for (int j = i + 1; j < count; j++) {
+                float dx = centres[j * 3] - xi;
+                if (dx > ri + maxRadius)
+                    break;
+
+                if (!CollisionPrimitive.shouldCollide(category, mask, group,
+                        categories[j], masks[j], groups[j]))
+                    continue;
+
+                float r = ri + radii[j];
+                if (dx > r ||
+                        Math.abs(centres[j * 3 + 1] - yi) > r ||
+                        Math.abs(centres[j * 3 + 2] - zi) > r)
+                    continue;
+
+                pairs.add(i, j);
+            }
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (primitives.length >= n)
+            return;
+
+        int capacity = Math.max(n, primitives.length * 2);
+        float[] newCentres = new float[capacity * 3];
+        float[] newRadii = new float[capacity];
+        CollisionSphere[] newPrimitives = new CollisionSphere[capacity];
+        System.arraycopy(centres, 0, newCentres, 0, count * 3);
+        System.arraycopy(radii, 0, newRadii, 0, count);
+        System.arraycopy(primitives, 0, newPrimitives, 0, count);
+        centres = newCentres;
+        radii = newRadii;
+        primitives = newPrimitives;
+        categories = new int[capacity];
+        masks = new int[capacity];
+        groups = new int[capacity];
+        keys = new long[capacity];
+    }
+
+    /**
+     * Maps a float to an int whose signed order matches the order of the
+     * floats, so the sort key and the sphere index can be packed into a
+     * single long and sorted without boxing.
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits < 0 ? bits ^ 0x7fffffff : bits;
+    }
+}
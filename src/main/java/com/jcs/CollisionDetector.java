@@ -0,0 +1,65 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+/**
+ * A wrapper class that holds the fine grained collision detection
+ * routines.
+ * <p>
+ * Each of the functions takes the details of two primitives and the
+ * manifold of the pair, and reports into it the contacts found this
+ * step. Since only spheres exist so far, only the sphere and sphere
+ * test is provided.
+ */
+public strictfp class CollisionDetector {
+
+    private final Vector3f positionOne = new Vector3f();
+    private final Vector3f positionTwo = new Vector3f();
+
+    /**
+     * Reports the contact between two spheres, if they touch.
+     *
+     * @param one      the first sphere
+     * @param two      the second sphere
+     * @param manifold the manifold of the pair
+     *
+     * @return the number of contacts reported, zero or one
+     */
+    public int sphereAndSphere(CollisionSphere one, CollisionSphere two, ContactManifold manifold) {
+        // Cache the sphere positions
+        one.getCentre(positionOne);
+        two.getCentre(positionTwo);
+
+        // Find the vector between the objects
+        float mx = positionOne.x - positionTwo.x;
+        float my = positionOne.y - positionTwo.y;
+        float mz = positionOne.z - positionTwo.z;
+        float sizeSquared = mx * mx + my * my + mz * mz;
+        float radii = one.radius + two.radius;
+
+        // See if it is large enough.
+        if (sizeSquared >= radii * radii)
+            return 0;
+
+        float size = (float) Math.sqrt(sizeSquared);
+        float nx, ny, nz;
+        if (size > 0.0f) {
+            nx = mx / size;
+            ny = my / size;
+            nz = mz / size;
+        } else {
+            // Concentric spheres: any direction will do, pick up.
+            nx = 0.0f;
+            ny = 1.0f;
+            nz = 0.0f;
+        }
+
+        // The contact point is midway along the line between the centres.
+        manifold.addContact(
+                positionTwo.x + mx * 0.5f,
+                positionTwo.y + my * 0.5f,
+                positionTwo.z + mz * 0.5f,
+                nx, ny, nz, radii - size);
+        return 1;
+    }
+}
@@ -0,0 +1,148 @@
+package com.jcs;
+
+/**
+ * A growable list of collision events stored in packed arrays, one
+ * column per attribute, so events can be appended without allocating
+ * and read back as plain arrays.
+ * <p>
+ * A buffer is not thread safe: each simulation thread appends to its
+ * own, and {@link CollisionEvents} merges them once the step is over.
+ */
+public class CollisionEventBuffer {
+
+    /**
+     * The event type of a pair that starts touching.
+     */
+    public static final int BEGIN = 0;
+
+    /**
+     * The event type of a pair that was touching and still is.
+     */
+    public static final int STAY = 1;
+
+    /**
+     * The event type of a pair that stops touching, or that is removed
+     * while touching.
+     */
+    public static final int END = 2;
+
+    private int count;
+
+    /**
+     * Holds the type of each event.
+     */
+    public int[] types;
+
+    /**
+     * Holds the ids of the two primitives of each event.
+     */
+    public int[] idsOne;
+    public int[] idsTwo;
+
+    /**
+     * Holds the contact point of each event, three floats per event.
+     * Zero for end events.
+     */
+    public float[] points;
+
+    /**
+     * Holds the contact normal of each event, pointing from the second
+     * primitive towards the first, three floats per event. Zero for end
+     * events.
+     */
+    public float[] normals;
+
+    /**
+     * Holds the total normal impulse applied between the primitives
+     * during the step of each event. Zero for end events.
+     */
+    public float[] impulses;
+
+    public CollisionEventBuffer() {
+        this(64);
+    }
+
+    /**
+     * Creates a new buffer able to hold the given number of events before
+     * it has to grow.
+     */
+    public CollisionEventBuffer(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * Gets the number of events in the buffer.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Removes all the events from the buffer.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Appends an event to the buffer.
+     */
+    public void add(int type, int idOne, int idTwo,
+                    float px, float py, float pz,
+                    float nx, float ny, float nz, float impulse) {
+        if (count == types.length)
+            grow(count * 2);
+
+        int i = count++;
+        types[i] = type;
+        idsOne[i] = idOne;
+        idsTwo[i] = idTwo;
+        points[i * 3] = px;
+        points[i * 3 + 1] = py;
+        points[i * 3 + 2] = pz;
+        normals[i * 3] = nx;
+        normals[i * 3 + 1] = ny;
+        normals[i * 3 + 2] = nz;
+        impulses[i] = impulse;
+    }
+
+    /**
+     * Appends all the events of the given buffer to this one.
+     */
+    public void addAll(CollisionEventBuffer other) {
+        int n = other.count;
+        if (n == 0)
+            return;
+        if (count + n > types.length)
+            grow(Math.max(count + n, types.length * 2));
+
+        System.arraycopy(other.types, 0, types, count, n);
+        System.arraycopy(other.idsOne, 0, idsOne, count, n);
+        System.arraycopy(other.idsTwo, 0, idsTwo, count, n);
+        System.arraycopy(other.points, 0, points, count * 3, n * 3);
+        System.arraycopy(other.normals, 0, normals, count * 3, n * 3);
+        System.arraycopy(other.impulses, 0, impulses, count, n);
+        count += n;
+    }
+
+    private void allocate(int capacity) {
+        types = new int[capacity];
+        idsOne = new int[capacity];
+        idsTwo = new int[capacity];
+        points = new float[capacity * 3];
+        normals = new float[capacity * 3];
+        impulses = new float[capacity];
+    }
+
+    private void grow(int capacity) {
+        int[] oldTypes = types, oldOne = idsOne, oldTwo = idsTwo;
+        float[] oldPoints = points, oldNormals = normals, oldImpulses = impulses;
+        allocate(capacity);
+        System.arraycopy(oldTypes, 0, types, 0, count);
+        System.arraycopy(oldOne, 0, idsOne, 0, count);
+        System.arraycopy(oldTwo, 0, idsTwo, 0, count);
+        System.arraycopy(oldPoints, 0, points, 0, count * 3);
+        System.arraycopy(oldNormals, 0, normals, 0, count * 3);
+        System.arraycopy(oldImpulses, 0, impulses, 0, count);
+    }
+}
@@ -0,0 +1,100 @@
+package com.jcs;
+
+/**
+ * Gathers the collision events produced by a world and hands them to
+ * the game in batches.
+ * <p>
+ * Listeners are never called from inside the step. The world appends
+ * the events of a step, from the thread running its event phase, to a
+ * single pending buffer, which the game drains whenever it suits it,
+ * either through a {@link CollisionListener} or by copying the packed
+ * arrays.
+ * <p>
+ * Events are filtered by type and by collision layer before they are
+ * appended, so unwanted events never take any space.
+ */
+public class CollisionEvents {
+
+    /**
+     * Holds the collision layers events are reported for. An event is
+     * kept when either of its primitives has a category in this mask.
+     */
+    public int layerMask = 0xFFFFFFFF;
+
+    /**
+     * Holds the event types reported, one bit per type, for example
+     * {@code 1 << CollisionEventBuffer.BEGIN}.
+     */
+    public int typeMask = (1 << CollisionEventBuffer.BEGIN)
+            | (1 << CollisionEventBuffer.STAY)
+            | (1 << CollisionEventBuffer.END);
+
+    /**
+     * Holds the events appended since the last drain.
+     */
+    private final CollisionEventBuffer pending = new CollisionEventBuffer();
+
+    /**
+     * Returns true if an event of the given type between primitives of
+     * the given categories should be reported.
+     */
+    public boolean accepts(int type, int categoryOne, int categoryTwo) {
+        return (typeMask & (1 << type)) != 0 && ((categoryOne | categoryTwo) & layerMask) != 0;
+    }
+
+    /**
+     * Appends an event to the pending ones, unless it is filtered out.
+     */
+    public void add(int type, CollisionPrimitive one, CollisionPrimitive two,
+                    float px, float py, float pz,
+                    float nx, float ny, float nz, float impulse) {
+        if (!accepts(type, one.category, two.category))
+            return;
+
+        pending.add(type, one.id, two.id, px, py, pz, nx, ny, nz, impulse);
+    }
+
+    /**
+     * Appends events already filtered to the pending ones.
+     */
+    void addAll(CollisionEventBuffer events) {
+        pending.addAll(events);
+    }
+
+    /**
+     * Gets the number of events waiting to be drained.
+     */
+    public int getPendingCount() {
+        return pending.getCount();
+    }
+
+    /**
+     * Hands all the pending events to the given listener in a single
+     * batch, then discards them. Must not be called while the world is
+     * stepping.
+     *
+     * @param listener the listener to call, if there are events
+     */
+    public void drain(CollisionListener listener) {
+        if (pending.getCount() == 0)
+            return;
+
+        listener.onCollisions(pending);
+        pending.clear();
+    }
+
+    /**
+     * Copies all the pending events into the given buffer, then discards
+     * them. Must not be called while the world is stepping.
+     *
+     * @param events the buffer to copy the events into, cleared first
+     *
+     * @return the number of events copied
+     */
+    public int drainTo(CollisionEventBuffer events) {
+        events.clear();
+        events.addAll(pending);
+        pending.clear();
+        return events.getCount();
+    }
+}
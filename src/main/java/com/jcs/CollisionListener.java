@@ -0,0 +1,16 @@
+package com.jcs;
+
+/**
+ * A collision listener receives the collision events of a world in
+ * batches, on the thread that drains them.
+ */
+public interface CollisionListener {
+
+    /**
+     * Called with the events gathered since the last drain. The buffer
+     * is only valid for the duration of the call.
+     *
+     * @param events the events, in the order the steps produced them
+     */
+    void onCollisions(CollisionEventBuffer events);
+}
@@ -30,6 +30,58 @@ public class CollisionPrimitive {
      */
     private Matrix4x3f transform = new Matrix4x3f();
 
+    /**
+     * Holds the id given to this primitive by the {@link World} it was
+     * added to, or -1 if it is not in a world.
+     */
+    public int id = -1;
+
+    /**
+     * Holds the position of this primitive in the list of its world, so
+     * it can be removed without searching the list.
+     */
+    int index = -1;
+
+    /**
+     * Holds the first of the manifolds this primitive is part of, linked
+     * through the manifolds, so it can be removed without visiting the
+     * manifolds of the other primitives.
+     */
+    ContactManifold manifolds;
+
+    /**
+     * Holds the step this primitive entered its world in, from which its
+     * age is counted.
+     */
+    int spawnFrame;
+
+    /**
+     * Holds the index of the world template this primitive was spawned
+     * from, or -1 if it was added directly.
+     */
+    public int template = -1;
+
+    /**
+     * Holds the collision layers this primitive belongs to, one bit
+     * per layer.
+     */
+    public int category = 1;
+
+    /**
+     * Holds the collision layers this primitive collides with. Two
+     * primitives are only paired when each one's mask contains a layer
+     * of the other's category.
+     */
+    public int mask = 0xFFFFFFFF;
+
+    /**
+     * Holds the collision group of this primitive. Zero means no group.
+     * Primitives sharing a positive group always collide and primitives
+     * sharing a negative group never do, whatever their layers; this is
+     * used to keep the parts of a compound from colliding with each other.
+     */
+    public int group = 0;
+
     /**
      * Calculates the internals for the primitive.
      */
@@ -37,6 +89,18 @@ public class CollisionPrimitive {
         body.getTransform(transform).mul(offset);
     }
 
+    /**
+     * Returns true if the two primitives should be tested for contact,
+     * according to their groups and collision layers.
+     */
+    public static boolean shouldCollide(int categoryA, int maskA, int groupA,
+                                        int categoryB, int maskB, int groupB) {
+        if (groupA == groupB && groupA != 0)
+            return groupA > 0;
+
+        return (maskA & categoryB) != 0 && (maskB & categoryA) != 0;
+    }
+
     /**
      * This is a convenience function to allow access to the
      * axis vectors in the transform for this primitive.
@@ -45,6 +109,17 @@ public class CollisionPrimitive {
         return transform.getColumn(index, new Vector3f());
     }
 
+    /**
+     * Fills the given vector with the centre of the primitive in world
+     * space: the position of the rigid body moved by the translation
+     * of the resultant transform.
+     *
+     * @param centre A pointer to a vector into which to write the centre.
+     */
+    public Vector3f getCentre(Vector3f centre) {
+        return transform.getTranslation(centre).add(body.getPosition());
+    }
+
     /**
      * Returns the resultant transform of the primitive, calculated from
      * the combined offset of the primitive and the transform
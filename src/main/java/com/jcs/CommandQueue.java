@@ -0,0 +1,220 @@
+package com.jcs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of simulation commands with many producers and a
+ * single consumer.
+ * <p>
+ * Commands are not objects: each one is encoded into a slot of a ring
+ * allocated up front, as an opcode, two ints and six floats. Producers
+ * claim a slot with a compare and set on the tail, fill it and publish
+ * it by writing its sequence number, so any number of threads can
+ * enqueue at the same time without locks and without allocating. The
+ * consumer, the thread stepping the world, reads the published slots in
+ * order and hands them back to the producers.
+ * <p>
+ * When the ring is full producers are refused rather than blocked, and
+ * decide for themselves whether to retry or drop the command.
+ */
+public class CommandQueue {
+
+    /**
+     * Creates a primitive from a template. The first int is the id the
+     * primitive will be given, the second the template index, and the
+     * floats its position and velocity.
+     */
+    public static final int SPAWN = 1;
+
+    /**
+     * Removes the primitive of the given id.
+     */
+    public static final int DESPAWN = 2;
+
+    /**
+     * Adds the force held in the first three floats to the body of the
+     * given id.
+     */
+    public static final int APPLY_FORCE = 3;
+
+    /**
+     * Applies the impulse held in the first three floats to the body of
+     * the given id.
+     */
+    public static final int APPLY_IMPULSE = 4;
+
+    /**
+     * Sets the position and velocity held in the floats on the body of
+     * the given id.
+     */
+    public static final int SET_STATE = 5;
+
+    /**
+     * Sets off an explosion centred on the first three floats, with the
+     * radius, peak impulse and front speed held in the next three. The
+     * first int holds the falloff curve and the second is one if the
+     * explosion is occluded.
+     */
+    public static final int EXPLODE = 6;
+
+    /**
+     * The number of floats of each slot.
+     */
+    private static final int FLOATS = 6;
+
+    /**
+     * Receives the commands drained from a queue.
+     */
+    public interface Handler {
+        void execute(int opcode, int target, int argument,
+                     float a, float b, float c, float d, float e, float f);
+    }
+
+    private final int capacity;
+    private final int mask;
+
+    private final int[] opcodes;
+    private final int[] targets;
+    private final int[] arguments;
+    private final float[] floats;
+
+    /**
+     * Holds the sequence number of each slot. A slot can be claimed by
+     * the producer whose position equals its sequence, and read by the
+     * consumer once its sequence is one past that position.
+     */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * Holds the number of commands refused because the ring was full.
+     */
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * Creates a new queue. The capacity is rounded up to a power of two.
+     *
+     * @param capacity the maximum number of commands waiting at once
+     */
+    public CommandQueue(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.opcodes = new int[size];
+        this.targets = new int[size];
+        this.arguments = new int[size];
+        this.floats = new float[size * FLOATS];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Gets the maximum number of commands waiting at once.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Enqueues a command. Safe to call from any thread.
+     *
+     * @return false if the queue is full and the command was dropped
+     */
+    public boolean offer(int opcode, int target, int argument,
+                         float a, float b, float c, float d, float e, float f) {
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) {
+                refused.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        opcodes[slot] = opcode;
+        targets[slot] = target;
+        arguments[slot] = argument;
+        int base = slot * FLOATS;
+        floats[base] = a;
+        floats[base + 1] = b;
+        floats[base + 2] = c;
+        floats[base + 3] = d;
+        floats[base + 4] = e;
+        floats[base + 5] = f;
+
+        // Publish the slot; the volatile write orders the fields above.
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Gets the number of commands refused so far because the queue was
+     * full.
+     */
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    /**
+     * Hands every published command to the handler, in the order they
+     * were claimed, and frees their slots. Only one thread may drain a
+     * queue. Commands enqueued while draining may be left for the next
+     * call. If the handler throws, the command it was given is dropped
+     * and the exception passed on.
+     *
+     * @param handler the handler executing the commands
+     *
+     * @return the number of commands drained
+     */
+    public int drain(Handler handler) {
+        return drain(handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hands at most the given number of published commands to the
+     * handler, in the order they were claimed, and frees their slots.
+     * The others stay queued, in order, for the next call.
+     *
+     * @param handler the handler executing the commands
+     * @param max     the maximum number of commands to drain
+     *
+     * @return the number of commands drained
+     */
+    public int drain(Handler handler, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1)
+                return drained;
+
+            int base = slot * FLOATS;
+            try {
+                handler.execute(opcodes[slot], targets[slot], arguments[slot],
+                        floats[base], floats[base + 1], floats[base + 2],
+                        floats[base + 3], floats[base + 4], floats[base + 5]);
+            } finally {
+                // Free the slot even if the handler threw, or the ring
+                // would stay one slot short for good.
+                sequences.lazySet(slot, head + capacity);
+                head++;
+                drained++;
+            }
+        }
+        return drained;
+    }
+}
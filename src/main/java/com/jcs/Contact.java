@@ -0,0 +1,93 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+/**
+ * A contact represents two bodies in contact. Resolving a contact
+ * removes their interpenetration, and applies sufficient impulse to
+ * keep them apart.
+ * <p>
+ * Contacts are owned by a {@link ContactManifold}, which keeps them
+ * from one step to the next together with the impulses the resolver
+ * accumulated on them.
+ */
+public class Contact {
+
+    /**
+     * Holds the position of the contact in world coordinates.
+     */
+    public Vector3f contactPoint = new Vector3f();
+
+    /**
+     * Holds the direction of the contact in world coordinates. It points
+     * from the second body of the manifold towards the first one.
+     */
+    public Vector3f contactNormal = new Vector3f();
+
+    /**
+     * Holds the depth of penetration at the contact point.
+     */
+    public float penetration;
+
+    /**
+     * Holds the position of the contact relative to the first body. This
+     * is what contacts are matched on from one step to the next.
+     */
+    public Vector3f relativeContactPosition = new Vector3f();
+
+    /**
+     * Holds the total impulse applied along the contact normal the last
+     * time the contact was resolved.
+     */
+    public float normalImpulse;
+
+    /**
+     * Holds the total friction impulse applied along each of the two
+     * tangent directions the last time the contact was resolved.
+     */
+    public float tangentImpulse1;
+    public float tangentImpulse2;
+
+    /**
+     * Holds the two tangent directions friction is applied along. They
+     * are worked out from the normal alone, so a contact that persists
+     * keeps the same directions and its friction impulses stay valid.
+     */
+    final Vector3f tangent1 = new Vector3f();
+    final Vector3f tangent2 = new Vector3f();
+
+    /**
+     * Holds the separating velocity the resolver aims for, worked out
+     * from the restitution and the penetration before iterating.
+     */
+    float velocityBias;
+
+    /**
+     * Holds whether the contact was generated again during the current
+     * step. Contacts left unmatched are dropped by their manifold.
+     */
+    boolean matched;
+
+    /**
+     * Works out the tangent directions from the contact normal.
+     */
+    void calculateTangents() {
+        Vector3f n = contactNormal;
+        if (Math.abs(n.x) > 0.57735f)
+            tangent1.set(n.y, -n.x, 0.0f);
+        else
+            tangent1.set(0.0f, n.z, -n.y);
+        tangent1.normalize();
+        n.cross(tangent1, tangent2);
+    }
+
+    /**
+     * Clears the accumulated impulses, for a contact seen for the first
+     * time.
+     */
+    public void clearImpulses() {
+        normalImpulse = 0f;
+        tangentImpulse1 = 0f;
+        tangentImpulse2 = 0f;
+    }
+}
@@ -0,0 +1,308 @@
+package com.jcs;
+
+/**
+ * Holds the contacts between a pair of primitives and keeps them from
+ * one step to the next.
+ * <p>
+ * Every step the collision detector reports the contacts of the pair
+ * again. A reported contact close enough to one from the previous step
+ * is taken to be the same contact: its geometry is refreshed but the
+ * impulses the resolver accumulated on it are kept, so the resolver can
+ * start from them (warm starting) instead of from zero. Contacts that
+ * are not reported again are dropped.
+ * <p>
+ * Manifolds are created and recycled by the {@link World}, which keys
+ * them by the pair of primitive ids and evicts the ones whose pair has
+ * not been reported for a while.
+ */
+public class ContactManifold {
+
+    /**
+     * The maximum number of contacts kept for a pair.
+     */
+    public static final int MAX_CONTACTS = 4;
+
+    /**
+     * Two contacts whose positions relative to the first body are closer
+     * than this are treated as the same contact.
+     */
+    public static final float MATCH_DISTANCE = 0.05f;
+
+    /**
+     * Holds the key of the pair, see {@link #key(int, int)}.
+     */
+    long key;
+
+    /**
+     * Holds the primitives of the pair. The contact normals point from
+     * the second towards the first.
+     */
+    CollisionPrimitive one;
+    CollisionPrimitive two;
+
+    /**
+     * Holds the contacts of the pair, of which only the first
+     * contactCount are in use.
+     */
+    final Contact[] contacts = new Contact[MAX_CONTACTS];
+    int contactCount;
+
+    /**
+     * Holds the step the manifold was created in and the last step its
+     * pair was reported in.
+     */
+    int firstFrame;
+    int lastFrame;
+
+    /**
+     * Holds whether the pair had contacts at the end of the last step
+     * it was reported in, to tell begin events from stay events.
+     */
+    boolean touching;
+
+    /**
+     * Links the manifold into the world's list of manifolds ordered by
+     * the last step they were reported in.
+     */
+    ContactManifold previous;
+    ContactManifold next;
+
+    /**
+     * Links the manifold into the lists of manifolds of each of its
+     * primitives, see {@link CollisionPrimitive#manifolds}.
+     */
+    private ContactManifold previousOfOne;
+    private ContactManifold nextOfOne;
+    private ContactManifold previousOfTwo;
+    private ContactManifold nextOfTwo;
+
+    /**
+     * Holds the position of the manifold in the world's list of
+     * manifolds with contacts, valid while it is in that list.
+     */
+    int activeIndex;
+
+    public ContactManifold() {
+        for (int i = 0; i < MAX_CONTACTS; i++)
+            contacts[i] = new Contact();
+    }
+
+    /**
+     * Returns the key of the manifold between the primitives of the given
+     * ids. The key does not depend on the order of the ids and is never
+     * zero.
+     */
+    public static long key(int idOne, int idTwo) {
+        int low = Math.min(idOne, idTwo), high = Math.max(idOne, idTwo);
+        return ((long) low << 32) | (high & 0xffffffffL);
+    }
+
+    /**
+     * Links the manifold at the head of the lists of manifolds of both
+     * its primitives.
+     */
+    void attach() {
+        previousOfOne = previousOfTwo = null;
+        nextOfOne = one.manifolds;
+        nextOfTwo = two.manifolds;
+        if (nextOfOne != null)
+            nextOfOne.setPrevious(one, this);
+        if (nextOfTwo != null)
+            nextOfTwo.setPrevious(two, this);
+        one.manifolds = two.manifolds = this;
+    }
+
+    /**
+     * Unlinks the manifold from the lists of manifolds of its primitives.
+     */
+    void detach() {
+        detach(one, previousOfOne, nextOfOne);
+        detach(two, previousOfTwo, nextOfTwo);
+        previousOfOne = nextOfOne = previousOfTwo = nextOfTwo = null;
+    }
+
+    /**
+     * Gets the next manifold in the list of the given primitive of the
+     * pair.
+     */
+    ContactManifold nextOf(CollisionPrimitive primitive) {
+        return primitive == one ? nextOfOne : nextOfTwo;
+    }
+
+    private void detach(CollisionPrimitive primitive, ContactManifold previous, ContactManifold next) {
+        if (previous != null)
+            previous.setNext(primitive, next);
+        else
+            primitive.manifolds = next;
+        if (next != null)
+            next.setPrevious(primitive, previous);
+    }
+
+    private void setPrevious(CollisionPrimitive primitive, ContactManifold manifold) {
+        if (primitive == one)
+            previousOfOne = manifold;
+        else
+            previousOfTwo = manifold;
+    }
+
+    private void setNext(CollisionPrimitive primitive, ContactManifold manifold) {
+        if (primitive == one)
+            nextOfOne = manifold;
+        else
+            nextOfTwo = manifold;
+    }
+
+    /**
+     * Gets the key of the pair of primitives.
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the first primitive of the pair.
+     */
+    public CollisionPrimitive getPrimitiveOne() {
+        return one;
+    }
+
+    /**
+     * Gets the second primitive of the pair.
+     */
+    public CollisionPrimitive getPrimitiveTwo() {
+        return two;
+    }
+
+    /**
+     * Gets the number of contacts currently held.
+     */
+    public int getContactCount() {
+        return contactCount;
+    }
+
+    /**
+     * Gets one of the contacts currently held.
+     */
+    public Contact getContact(int index) {
+        return contacts[index];
+    }
+
+    /**
+     * Returns the total normal impulse applied between the pair during
+     * the last resolution.
+     */
+    public float getNormalImpulse() {
+        float impulse = 0.0f;
+        for (int i = 0; i < contactCount; i++)
+            impulse += contacts[i].normalImpulse;
+        return impulse;
+    }
+
+    /**
+     * Gets the number of steps the pair has been reported in a row, from
+     * the step the manifold was created to the last one it was reported.
+     */
+    public int getLifetime() {
+        return lastFrame - firstFrame + 1;
+    }
+
+    /**
+     * Gets the number of steps since the pair was last reported.
+     *
+     * @param frame the current step of the world
+     */
+    public int getIdleFrames(int frame) {
+        return frame - lastFrame;
+    }
+
+    /**
+     * Prepares a manifold, fresh or recycled, for a new pair.
+     */
+    void init(long key, CollisionPrimitive one, CollisionPrimitive two, int frame) {
+        this.key = key;
+        this.one = one;
+        this.two = two;
+        this.contactCount = 0;
+        this.touching = false;
+        this.firstFrame = frame;
+        this.lastFrame = frame;
+    }
+
+    /**
+     * Starts the update of the manifold for a new step. Every contact is
+     * unmatched until it is reported again.
+     */
+    void begin(int frame) {
+        lastFrame = frame;
+        for (int i = 0; i < contactCount; i++)
+            contacts[i].matched = false;
+    }
+
+    /**
+     * Reports a contact of the pair for the current step.
+     *
+     * @param px          the x coordinate of the contact point
+     * @param py          the y coordinate of the contact point
+     * @param pz          the z coordinate of the contact point
+     * @param nx          the x coordinate of the contact normal
+     * @param ny          the y coordinate of the contact normal
+     * @param nz          the z coordinate of the contact normal
+     * @param penetration the depth of penetration
+     */
+    public void addContact(float px, float py, float pz,
+                           float nx, float ny, float nz, float penetration) {
+        float rx = px - one.body.position.x;
+        float ry = py - one.body.position.y;
+        float rz = pz - one.body.position.z;
+
+        Contact contact = null;
+        for (int i = 0; i < contactCount && contact == null; i++) {
+            Contact c = contacts[i];
+            float dx = c.relativeContactPosition.x - rx;
+            float dy = c.relativeContactPosition.y - ry;
+            float dz = c.relativeContactPosition.z - rz;
+            if (!c.matched && dx * dx + dy * dy + dz * dz < MATCH_DISTANCE * MATCH_DISTANCE)
+                contact = c;
+        }
+
+        if (contact == null) {
+            if (contactCount < MAX_CONTACTS) {
+                contact = contacts[contactCount++];
+            } else {
+                // Full: replace the shallowest contact if the new one is deeper.
+                contact = contacts[0];
+                for (int i = 1; i < contactCount; i++)
+                    if (contacts[i].penetration < contact.penetration)
+                        contact = contacts[i];
+                if (contact.penetration >= penetration)
+                    return;
+            }
+            contact.clearImpulses();
+        }
+
+        contact.contactPoint.set(px, py, pz);
+        contact.contactNormal.set(nx, ny, nz);
+        contact.relativeContactPosition.set(rx, ry, rz);
+        contact.penetration = penetration;
+        contact.matched = true;
+    }
+
+    /**
+     * Finishes the update of the manifold, dropping the contacts that
+     * were not reported this step.
+     */
+    void end() {
+        int kept = 0;
+        for (int i = 0; i < contactCount; i++) {
+            if (!contacts[i].matched)
+                continue;
+            if (kept != i) {
+                Contact swap = contacts[kept];
+                contacts[kept] = contacts[i];
+                contacts[i] = swap;
+            }
+            kept++;
+        }
+        contactCount = kept;
+    }
+}
@@ -0,0 +1,227 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+import java.util.List;
+
+/**
+ * The contact resolution routine. One resolver instance can be shared
+ * for the whole simulation.
+ * <p>
+ * Contacts are resolved with sequential impulses: each iteration visits
+ * every contact and applies the change in impulse that cancels its
+ * closing velocity, clamping the running total so that contacts only
+ * ever push. Since bodies do not have angular motion yet, impulses only
+ * change the linear velocity of the bodies.
+ * <p>
+ * The total impulse of each contact is kept in its manifold. At the
+ * start of a step it is applied again (warm starting), so for resting
+ * contacts the resolver starts close to the answer and can stop after a
+ * few iterations.
+ */
+public strictfp class ContactResolver {
+
+    /**
+     * Holds the maximum number of iterations to perform.
+     */
+    public int iterations;
+
+    /**
+     * Holds the change in impulse below which the contacts are
+     * considered resolved and iterating stops early.
+     */
+    public float impulseEpsilon = 0.0001f;
+
+    /**
+     * Holds the friction coefficient of the contacts.
+     */
+    public float friction = 0.3f;
+
+    /**
+     * Holds the restitution coefficient of the contacts.
+     */
+    public float restitution = 0.2f;
+
+    /**
+     * Holds the closing velocity below which contacts do not bounce, so
+     * resting bodies are not kept jittering by restitution.
+     */
+    public float restitutionThreshold = 1.0f;
+
+    /**
+     * Holds the fraction of the penetration removed each step.
+     */
+    public float baumgarte = 0.2f;
+
+    /**
+     * Holds the penetration that is allowed to remain, so that resting
+     * contacts are not pushed apart and together every step.
+     */
+    public float penetrationSlop = 0.01f;
+
+    /**
+     * Holds whether accumulated impulses are applied again at the start
+     * of each step.
+     */
+    public boolean warmStarting = true;
+
+    /**
+     * Holds the {@link System#nanoTime()} past which iterating stops even
+     * if the contacts are not resolved yet, or zero for no deadline. At
+     * least one iteration is always performed.
+     */
+    public long deadline;
+
+    /**
+     * Stores the number of iterations used in the last call to resolve
+     * contacts.
+     */
+    public int iterationsUsed;
+
+    /**
+     * Creates a new contact resolver with the given number of iterations.
+     */
+    public ContactResolver(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Resolves the contacts of the given manifolds for velocity and
+     * interpenetration.
+     *
+     * @param manifolds the manifolds to resolve
+     * @param duration  the duration of the previous integration step
+     */
+    public void resolveContacts(List<ContactManifold> manifolds, float duration) {
+        iterationsUsed = 0;
+        if (manifolds.isEmpty() || duration <= 0.0f)
+            return;
+
+        prepareContacts(manifolds, duration);
+
+        while (iterationsUsed < iterations) {
+            iterationsUsed++;
+            if (solveVelocities(manifolds) < impulseEpsilon)
+                break;
+            if (deadline != 0L && System.nanoTime() - deadline > 0L)
+                break;
+        }
+    }
+
+    /**
+     * Works out the tangents and target velocities of every contact, and
+     * applies the impulses carried over from the previous step.
+     */
+    private void prepareContacts(List<ContactManifold> manifolds, float duration) {
+        for (int m = 0; m < manifolds.size(); m++) {
+            ContactManifold manifold = manifolds.get(m);
+            Particle one = manifold.one.body;
+            Particle two = manifold.two.body;
+
+            for (int i = 0; i < manifold.contactCount; i++) {
+                Contact contact = manifold.contacts[i];
+                contact.calculateTangents();
+
+                float closing = relativeVelocity(one, two, contact.contactNormal);
+                float bias = baumgarte / duration * Math.max(contact.penetration - penetrationSlop, 0.0f);
+                if (closing < -restitutionThreshold)
+                    bias -= restitution * closing;
+                contact.velocityBias = bias;
+
+                if (warmStarting) {
+                    applyImpulse(one, two, contact.contactNormal, contact.normalImpulse);
+                    applyImpulse(one, two, contact.tangent1, contact.tangentImpulse1);
+                    applyImpulse(one, two, contact.tangent2, contact.tangentImpulse2);
+                } else {
+                    contact.clearImpulses();
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs one iteration over all the contacts.
+     *
+     * @return the largest change in impulse applied
+     */
+    private float solveVelocities(List<ContactManifold> manifolds) {
+        float largest = 0.0f;
+
+        for (int m = 0; m < manifolds.size(); m++) {
+            ContactManifold manifold = manifolds.get(m);
+            Particle one = manifold.one.body;
+            Particle two = manifold.two.body;
+
+            float inverseMass = Math.max(one.inverseMass, 0.0f) + Math.max(two.inverseMass, 0.0f);
+            if (inverseMass <= 0.0f)
+                continue;
+
+            for (int i = 0; i < manifold.contactCount; i++) {
+                Contact contact = manifold.contacts[i];
+
+                // Normal impulse, clamped so the total never pulls.
+                float closing = relativeVelocity(one, two, contact.contactNormal);
+                float impulse = (contact.velocityBias - closing) / inverseMass;
+                float total = Math.max(contact.normalImpulse + impulse, 0.0f);
+                impulse = total - contact.normalImpulse;
+                contact.normalImpulse = total;
+                applyImpulse(one, two, contact.contactNormal, impulse);
+                largest = Math.max(largest, Math.abs(impulse));
+
+                // Friction impulse, clamped to the friction cone.
+                float limit = friction * contact.normalImpulse;
+                float t1 = contact.tangentImpulse1
+                        - relativeVelocity(one, two, contact.tangent1) / inverseMass;
+                float t2 = contact.tangentImpulse2
+                        - relativeVelocity(one, two, contact.tangent2) / inverseMass;
+                float length = (float) Math.sqrt(t1 * t1 + t2 * t2);
+                if (length > limit) {
+                    float scale = limit / length;
+                    t1 *= scale;
+                    t2 *= scale;
+                }
+                float d1 = t1 - contact.tangentImpulse1;
+                float d2 = t2 - contact.tangentImpulse2;
+                contact.tangentImpulse1 = t1;
+                contact.tangentImpulse2 = t2;
+                applyImpulse(one, two, contact.tangent1, d1);
+                applyImpulse(one, two, contact.tangent2, d2);
+                largest = Math.max(largest, Math.max(Math.abs(d1), Math.abs(d2)));
+            }
+        }
+
+        return largest;
+    }
+
+    /**
+     * Returns the velocity of the first body relative to the second,
+     * along the given direction.
+     */
+    private static float relativeVelocity(Particle one, Particle two, Vector3f direction) {
+        return (one.velocity.x - two.velocity.x) * direction.x
+                + (one.velocity.y - two.velocity.y) * direction.y
+                + (one.velocity.z - two.velocity.z) * direction.z;
+    }
+
+    /**
+     * Applies an impulse along the given direction to the first body and
+     * the opposite impulse to the second.
+     */
+    private static void applyImpulse(Particle one, Particle two, Vector3f direction, float impulse) {
+        if (impulse == 0.0f)
+            return;
+
+        if (one.inverseMass > 0.0f) {
+            float scale = impulse * one.inverseMass;
+            one.velocity.x += direction.x * scale;
+            one.velocity.y += direction.y * scale;
+            one.velocity.z += direction.z * scale;
+        }
+        if (two.inverseMass > 0.0f) {
+            float scale = impulse * two.inverseMass;
+            two.velocity.x -= direction.x * scale;
+            two.velocity.y -= direction.y * scale;
+            two.velocity.z -= direction.z * scale;
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package com.jcs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A set of radial explosions pushing the bodies of a {@link Broadphase}
+ * away from their centres.
+ * <p>
+ * Each explosion has a radius, a peak impulse given to a body at its
+ * centre and a falloff curve shrinking the impulse towards the radius.
+ * An explosion with a finite front speed is a shock front: it spreads
+ * out from its centre over several steps, hitting each body once, in the
+ * step the front reaches the surface of the body. The ids of the bodies
+ * it hit are kept until it is done, so a body the blast throws ahead of
+ * the front is not hit again; primitives stepped outside a world, whose
+ * id is -1, cannot be told apart and are not remembered. An explosion
+ * with an infinite speed hits every body within its radius in a single
+ * step.
+ * <p>
+ * Bodies are found through the broadphase, each explosion only visiting
+ * the slice of the sweep list its front overlaps. Explosions are split
+ * between the workers of a pool to find their hits, which are gathered
+ * into packed columns: a first pass counts the hits of each explosion,
+ * so a second pass can write them in place, in the order of the
+ * explosions then of the sweep list, whatever the pool. Occluded
+ * explosions then cast one ray per hit from their centre in a single
+ * {@link RaycastBatch}, and a body with another one in the way only gets
+ * {@link #occludedScale} of its impulse. The bodies the centre is inside,
+ * such as the shell of a firework, shield nothing: the rays start where
+ * they leave them. The impulses are finally applied in one pass, in
+ * order, so a body hit by several explosions sums them the same way
+ * every time.
+ * <p>
+ * The hits of the last step are kept, so the game can apply blast damage
+ * from them.
+ */
+public strictfp class Explosions {
+
+    /**
+     * Gives the full impulse to every body within the radius.
+     */
+    public static final int FALLOFF_CONSTANT = 0;
+
+    /**
+     * Shrinks the impulse linearly to nothing at the radius.
+     */
+    public static final int FALLOFF_LINEAR = 1;
+
+    /**
+     * Shrinks the impulse with the square of the distance left to the
+     * radius, so it drops fast near the centre.
+     */
+    public static final int FALLOFF_QUADRATIC = 2;
+
+    /**
+     * Shrinks the impulse along a smooth step, flat at the centre and at
+     * the radius.
+     */
+    public static final int FALLOFF_SMOOTH = 3;
+
+    /**
+     * The number of explosions a single task looks for hits of before the
+     * work stops being split.
+     */
+    private static final int CHUNK_SIZE = 8;
+
+    /**
+     * Holds the fraction of its impulse a body gets when another body
+     * stands between it and the centre of an occluded explosion.
+     */
+    public float occludedScale = 0.0f;
+
+    /*
+     * The explosions, in the order they were set off.
+     */
+    private int count;
+    private int nextKey;
+    private int[] keys = new int[0];
+    private int[] falloffs = new int[0];
+    private boolean[] occluded = new boolean[0];
+    private float[] centreX = new float[0];
+    private float[] centreY = new float[0];
+    private float[] centreZ = new float[0];
+    private float[] radii = new float[0];
+    private float[] impulses = new float[0];
+    private float[] speeds = new float[0];
+    private float[] ages = new float[0];
+
+    /*
+     * The bodies each explosion has hit, by id plus one.
+     */
+    private LongMap<Boolean>[] struck = newSets(0);
+
+    /*
+     * The shell of each explosion swept by the current step, as surface
+     * distances, the slice of the sweep list it overlaps and the offset
+     * of its first hit.
+     */
+    private float[] inner = new float[0];
+    private float[] outer = new float[0];
+    private int[] sliceFrom = new int[0];
+    private int[] sliceTo = new int[0];
+    private int[] hitOffsets = new int[1];
+
+    /*
+     * The bodies the centre of each occluded explosion is inside, from
+     * the offset of the explosion.
+     */
+    private int[] sourceOffsets = new int[1];
+    private int[] sources = new int[16];
+
+    /*
+     * The hits of the last step.
+     */
+    private int hitCount;
+    private int[] hitBodies = new int[0];
+    private int[] hitExplosions = new int[0];
+    private int[] hitKeys = new int[0];
+    private int[] hitRays = new int[0];
+    private float[] hitDistances = new float[0];
+    private float[] hitDirectionX = new float[0];
+    private float[] hitDirectionY = new float[0];
+    private float[] hitDirectionZ = new float[0];
+    private float[] hitImpulses = new float[0];
+    private CollisionSphere[] hitPrimitives = new CollisionSphere[0];
+
+    private RaycastBatch rays = new RaycastBatch(256);
+
+    /**
+     * Sets off an explosion hitting every body within its radius in the
+     * next step, with no occlusion.
+     *
+     * @return the key of the explosion, reported with its hits
+     */
+    public int add(float x, float y, float z, float radius, float impulse, int falloff) {
+        return add(x, y, z, radius, impulse, falloff, Float.POSITIVE_INFINITY, false);
+    }
+
+    /**
+     * Sets off an explosion.
+     *
+     * @param radius   the distance beyond which bodies are not hit
+     * @param impulse  the impulse given to a body at the centre
+     * @param falloff  the curve shrinking the impulse with the distance,
+     *                 one of the falloff constants
+     * @param speed    the speed of the shock front, or infinity to hit
+     *                 every body at once
+     * @param occluded whether bodies shield the bodies behind them
+     *
+     * @return the key of the explosion, reported with its hits
+     */
+    public int add(float x, float y, float z, float radius, float impulse, int falloff,
+                   float speed, boolean occluded) {
+        if (falloff < FALLOFF_CONSTANT || falloff > FALLOFF_SMOOTH)
+            throw new IllegalArgumentException("Unknown falloff " + falloff);
+        if (count == keys.length)
+            grow(Math.max(16, count * 2));
+
+        int e = count++;
+        keys[e] = nextKey++;
+        falloffs[e] = falloff;
+        this.occluded[e] = occluded;
+        centreX[e] = x;
+        centreY[e] = y;
+        centreZ[e] = z;
+        radii[e] = radius;
+        impulses[e] = impulse;
+        speeds[e] = speed > 0.0f ? speed : Float.POSITIVE_INFINITY;
+        ages[e] = 0.0f;
+        struck[e].clear();
+        return keys[e];
+    }
+
+    /**
+     * Gets the number of explosions still spreading.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Removes every explosion, and the hits of the last step.
+     */
+    public void clear() {
+        for (int e = 0; e < count; e++)
+            struck[e].clear();
+        count = 0;
+        Arrays.fill(hitPrimitives, 0, hitCount, null);
+        hitCount = 0;
+    }
+
+    /**
+     * Spreads the explosions over a step on the calling thread.
+     *
+     * @return the number of hits
+     */
+    public int step(Broadphase broadphase, float duration) {
+        return step(broadphase, duration, null);
+    }
+
+    /**
+     * Spreads the explosions over a step: finds the bodies their fronts
+     * reach, applies the impulses to them and retires the explosions
+     * whose front reached their radius. The broadphase must be up to
+     * date with the bodies, and is only read.
+     *
+     * @param broadphase the bodies
+     * @param duration   the duration of the step
+     * @param pool       the pool looking for hits and casting the
+     *                   occlusion rays, or null to do it all on the
+     *                   calling thread
+     *
+     * @return the number of hits
+     */
+    public int step(Broadphase broadphase, float duration, ForkJoinPool pool) {
+        Arrays.fill(hitPrimitives, 0, hitCount, null);
+        hitCount = 0;
+        if (count == 0)
+            return 0;
+
+        float maxRadius = broadphase.getMaxRadius();
+        for (int e = 0; e < count; e++) {
+            // The first step of an explosion takes in its centre too.
+            inner[e] = ages[e] == 0.0f ? -1.0f : Math.min(radii[e], speeds[e] * ages[e]);
+            outer[e] = Math.min(radii[e], speeds[e] * (ages[e] + duration));
+            float reach = outer[e] + maxRadius;
+            sliceFrom[e] = broadphase.lowerBound(centreX[e] - reach);
+            sliceTo[e] = broadphase.lowerBound(Math.nextUp(centreX[e] + reach));
+        }
+
+        run(broadphase, pool, false);
+        hitOffsets[0] = 0;
+        for (int e = 0; e < count; e++)
+            hitOffsets[e + 1] += hitOffsets[e];
+        hitCount = hitOffsets[count];
+        if (hitBodies.length < hitCount)
+            growHits(Math.max(hitCount, hitBodies.length * 2));
+        run(broadphase, pool, true);
+
+        occlude(broadphase, pool);
+        applyImpulses(broadphase);
+        retire(duration);
+        return hitCount;
+    }
+
+    /**
+     * Looks for the hits of every explosion, counting them or writing
+     * them, in chunks of explosions.
+     */
+    private void run(Broadphase broadphase, ForkJoinPool pool, boolean write) {
+        if (pool == null || count <= CHUNK_SIZE)
+            findHits(broadphase, 0, count, write);
+        else
+            pool.invoke(new HitTask(broadphase, write, 0, count));
+    }
+
+    /**
+     * Counts the hits of a range of explosions into the offsets following
+     * theirs, or writes them from their offsets.
+     */
+    private void findHits(Broadphase broadphase, int from, int to, boolean write) {
+        float[] centres = broadphase.getCentres();
+        float[] bodyRadii = broadphase.getRadii();
+        float maxRadius = broadphase.getMaxRadius();
+
+        for (int e = from; e < to; e++) {
+            float x = centreX[e], y = centreY[e], z = centreZ[e];
+            float innerDistance = inner[e], outerDistance = outer[e];
+            float reach = outerDistance + maxRadius;
+            LongMap<Boolean> seen = struck[e];
+            int hit = write ? hitOffsets[e] : 0;
+
+            for (int j = sliceFrom[e]; j < sliceTo[e]; j++) {
+                // The slice is only bounded along x, so most of it is
+                // rejected on the other axes before any square root.
+                float dy = centres[j * 3 + 1] - y;
+                float dz = centres[j * 3 + 2] - z;
+                if (Math.abs(dy) > reach || Math.abs(dz) > reach)
+                    continue;
+                float dx = centres[j * 3] - x;
+                float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                float distance = Math.max(0.0f, length - bodyRadii[j]);
+                if (distance <= innerDistance || distance > outerDistance)
+                    continue;
+                if (seen.size() > 0 && seen.get(idKey(broadphase.getPrimitive(j).id)) != null)
+                    continue;
+
+                if (write) {
+                    hitBodies[hit] = j;
+                    hitExplosions[hit] = e;
+                    hitKeys[hit] = keys[e];
+                    hitDistances[hit] = distance;
+                    if (length > 0.0f) {
+                        float inverse = 1.0f / length;
+                        hitDirectionX[hit] = dx * inverse;
+                        hitDirectionY[hit] = dy * inverse;
+                        hitDirectionZ[hit] = dz * inverse;
+                    } else {
+                        // A body right on the centre is thrown straight up.
+                        hitDirectionX[hit] = 0.0f;
+                        hitDirectionY[hit] = 1.0f;
+                        hitDirectionZ[hit] = 0.0f;
+                    }
+                    hitImpulses[hit] = impulses[e] * falloff(falloffs[e], distance / radii[e]);
+                }
+                hit++;
+            }
+            if (!write)
+                hitOffsets[e + 1] = hit;
+        }
+    }
+
+    /**
+     * Gets the fraction of the peak impulse left at the given fraction of
+     * the radius.
+     */
+    private static float falloff(int curve, float fraction) {
+        float left = Math.max(0.0f, 1.0f - fraction);
+        switch (curve) {
+            case FALLOFF_LINEAR:
+                return left;
+            case FALLOFF_QUADRATIC:
+                return left * left;
+            case FALLOFF_SMOOTH:
+                return left * left * (3.0f - 2.0f * left);
+            default:
+                return 1.0f;
+        }
+    }
+
+    /**
+     * Casts a ray from the centre of its explosion to every body hit by
+     * an occluded explosion, and scales down the impulse of the bodies
+     * another body stands in front of. A ray starts where it leaves the
+     * bodies the centre is inside, and a body the centre is inside is
+     * never shielded.
+     */
+    private void occlude(Broadphase broadphase, ForkJoinPool pool) {
+        int rayCount = 0;
+        for (int h = 0; h < hitCount; h++) {
+            if (casts(h))
+                rayCount++;
+        }
+        if (rayCount == 0)
+            return;
+        findSources(broadphase);
+
+        if (rays.capacity < rayCount)
+            rays = new RaycastBatch(Math.max(rayCount, rays.capacity * 2));
+        rays.clear();
+        for (int h = 0; h < hitCount; h++) {
+            if (!casts(h)) {
+                hitRays[h] = -1;
+                continue;
+            }
+            int e = hitExplosions[h];
+            float dx = hitDirectionX[h], dy = hitDirectionY[h], dz = hitDirectionZ[h];
+            float start = exitDistance(broadphase, e, dx, dy, dz);
+            hitRays[h] = rays.add(centreX[e] + dx * start, centreY[e] + dy * start, centreZ[e] + dz * start,
+                    dx, dy, dz);
+        }
+        rays.execute(broadphase, pool);
+
+        for (int h = 0; h < hitCount; h++) {
+            int ray = hitRays[h];
+            if (ray < 0)
+                continue;
+            int blocker = rays.bodies[ray];
+            if (blocker < 0 || blocker == hitBodies[h])
+                continue;
+            int e = hitExplosions[h];
+            float start = exitDistance(broadphase, e, hitDirectionX[h], hitDirectionY[h], hitDirectionZ[h]);
+            if (start + rays.distances[ray] < hitDistances[h])
+                hitImpulses[h] *= occludedScale;
+        }
+    }
+
+    /**
+     * Returns true if a hit needs a ray: its explosion is occluded, it
+     * has an impulse to scale, and the centre is not inside its body.
+     */
+    private boolean casts(int hit) {
+        return occluded[hitExplosions[hit]] && hitImpulses[hit] != 0.0f && hitDistances[hit] > 0.0f;
+    }
+
+    /**
+     * Lists the bodies the centre of every occluded explosion is inside.
+     */
+    private void findSources(Broadphase broadphase) {
+        float[] centres = broadphase.getCentres();
+        float[] bodyRadii = broadphase.getRadii();
+        float maxRadius = broadphase.getMaxRadius();
+
+        int n = 0;
+        for (int e = 0; e < count; e++) {
+            sourceOffsets[e] = n;
+            if (!occluded[e])
+                continue;
+            float x = centreX[e], y = centreY[e], z = centreZ[e];
+            int end = broadphase.lowerBound(Math.nextUp(x + maxRadius));
+            for (int j = broadphase.lowerBound(x - maxRadius); j < end; j++) {
+                float dx = centres[j * 3] - x;
+                float dy = centres[j * 3 + 1] - y;
+                float dz = centres[j * 3 + 2] - z;
+                float r = bodyRadii[j];
+                if (dx * dx + dy * dy + dz * dz >= r * r)
+                    continue;
+                if (n == sources.length)
+                    sources = Arrays.copyOf(sources, n * 2);
+                sources[n++] = j;
+            }
+        }
+        sourceOffsets[count] = n;
+    }
+
+    /**
+     * Returns the distance along a direction from the centre of an
+     * explosion to where it leaves the last of the bodies the centre is
+     * inside, zero if there are none. The distance goes a thousandth of
+     * the radius past the surface, so a ray starting there does not find
+     * the body it just left.
+     */
+    private float exitDistance(Broadphase broadphase, int e, float dx, float dy, float dz) {
+        float[] centres = broadphase.getCentres();
+        float[] bodyRadii = broadphase.getRadii();
+
+        float exit = 0.0f;
+        for (int i = sourceOffsets[e]; i < sourceOffsets[e + 1]; i++) {
+            int j = sources[i];
+            float cx = centres[j * 3] - centreX[e];
+            float cy = centres[j * 3 + 1] - centreY[e];
+            float cz = centres[j * 3 + 2] - centreZ[e];
+            float r = bodyRadii[j];
+            float along = cx * dx + cy * dy + cz * dz;
+            float square = along * along - (cx * cx + cy * cy + cz * cz - r * r);
+            exit = Math.max(exit, along + (float) Math.sqrt(square) + r * 1.0e-3f);
+        }
+        return exit;
+    }
+
+    /**
+     * Applies the impulses of the hits to their bodies, in order, and
+     * remembers the bodies hit by the explosions that go on spreading.
+     */
+    private void applyImpulses(Broadphase broadphase) {
+        for (int h = 0; h < hitCount; h++) {
+            CollisionSphere primitive = broadphase.getPrimitive(hitBodies[h]);
+            hitPrimitives[h] = primitive;
+            int e = hitExplosions[h];
+            if (outer[e] < radii[e] && primitive.id >= 0)
+                struck[e].put(idKey(primitive.id), Boolean.TRUE);
+            Particle body = primitive.body;
+            float impulse = hitImpulses[h] * body.inverseMass;
+            if (impulse != 0.0f)
+                body.velocity.add(hitDirectionX[h] * impulse, hitDirectionY[h] * impulse,
+                        hitDirectionZ[h] * impulse);
+        }
+    }
+
+    /**
+     * Ages the explosions by a step and removes the ones whose front
+     * reached their radius, keeping the order of the others.
+     */
+    private void retire(float duration) {
+        int kept = 0;
+        for (int e = 0; e < count; e++) {
+            if (outer[e] >= radii[e]) {
+                struck[e].clear();
+                continue;
+            }
+            if (kept != e) {
+                // The sets between the two were retired and cleared.
+                LongMap<Boolean> set = struck[kept];
+                struck[kept] = struck[e];
+                struck[e] = set;
+                keys[kept] = keys[e];
+                falloffs[kept] = falloffs[e];
+                occluded[kept] = occluded[e];
+                centreX[kept] = centreX[e];
+                centreY[kept] = centreY[e];
+                centreZ[kept] = centreZ[e];
+                radii[kept] = radii[e];
+                impulses[kept] = impulses[e];
+                speeds[kept] = speeds[e];
+                ages[kept] = ages[e];
+            }
+            ages[kept++] += duration;
+        }
+        count = kept;
+    }
+
+    /**
+     * Gets the number of bodies hit in the last step. A body hit by
+     * several explosions counts once for each.
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Gets the primitive of a hit of the last step.
+     */
+    public CollisionSphere getHitPrimitive(int hit) {
+        return hitPrimitives[hit];
+    }
+
+    /**
+     * Gets the key of the explosion of a hit of the last step.
+     */
+    public int getHitExplosion(int hit) {
+        return hitKeys[hit];
+    }
+
+    /**
+     * Gets the impulse given by a hit of the last step, after falloff and
+     * occlusion.
+     */
+    public float getHitImpulse(int hit) {
+        return hitImpulses[hit];
+    }
+
+    /**
+     * Gets the distance from the centre of the explosion of a hit of the
+     * last step to the surface of the body.
+     */
+    public float getHitDistance(int hit) {
+        return hitDistances[hit];
+    }
+
+    private void grow(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        falloffs = Arrays.copyOf(falloffs, capacity);
+        occluded = Arrays.copyOf(occluded, capacity);
+        centreX = Arrays.copyOf(centreX, capacity);
+        centreY = Arrays.copyOf(centreY, capacity);
+        centreZ = Arrays.copyOf(centreZ, capacity);
+        radii = Arrays.copyOf(radii, capacity);
+        impulses = Arrays.copyOf(impulses, capacity);
+        speeds = Arrays.copyOf(speeds, capacity);
+        ages = Arrays.copyOf(ages, capacity);
+        LongMap<Boolean>[] sets = newSets(capacity);
+        System.arraycopy(struck, 0, sets, 0, struck.length);
+        for (int e = struck.length; e < capacity; e++)
+            sets[e] = new LongMap<>();
+        struck = sets;
+        inner = new float[capacity];
+        outer = new float[capacity];
+        sliceFrom = new int[capacity];
+        sliceTo = new int[capacity];
+        hitOffsets = new int[capacity + 1];
+        sourceOffsets = new int[capacity + 1];
+    }
+
+    private void growHits(int capacity) {
+        hitBodies = new int[capacity];
+        hitExplosions = new int[capacity];
+        hitKeys = new int[capacity];
+        hitRays = new int[capacity];
+        hitDistances = new float[capacity];
+        hitDirectionX = new float[capacity];
+        hitDirectionY = new float[capacity];
+        hitDirectionZ = new float[capacity];
+        hitImpulses = new float[capacity];
+        hitPrimitives = new CollisionSphere[capacity];
+    }
+
+    /*
+     * The saved state of the explosions, for WorldState.
+     */
+
+    int stateSize() {
+        int size = 4 + 4 + count * (4 + 4 + 4 + 7 * 4 + 4);
+        for (int e = 0; e < count; e++)
+            size += struck[e].size() * 4;
+        return size;
+    }
+
+    void writeState(ByteBuffer buffer) {
+        buffer.putInt(nextKey);
+        buffer.putInt(count);
+        for (int e = 0; e < count; e++) {
+            buffer.putInt(keys[e]);
+            buffer.putInt(falloffs[e]);
+            buffer.putInt(occluded[e] ? 1 : 0);
+            buffer.putFloat(centreX[e]);
+            buffer.putFloat(centreY[e]);
+            buffer.putFloat(centreZ[e]);
+            buffer.putFloat(radii[e]);
+            buffer.putFloat(impulses[e]);
+            buffer.putFloat(speeds[e]);
+            buffer.putFloat(ages[e]);
+
+            // Sorted, so the same sets are saved the same way however
+            // their tables were filled.
+            LongMap<Boolean> set = struck[e];
+            int[] ids = new int[set.size()];
+            int n = 0;
+            for (int slot = 0; slot < set.capacity(); slot++) {
+                if (set.keyAt(slot) != 0)
+                    ids[n++] = (int) (set.keyAt(slot) - 1);
+            }
+            Arrays.sort(ids);
+            buffer.putInt(n);
+            for (int i = 0; i < n; i++)
+                buffer.putInt(ids[i]);
+        }
+    }
+
+    void readState(ByteBuffer buffer) {
+        clear();
+        nextKey = buffer.getInt();
+        int n = buffer.getInt();
+        if (keys.length < n)
+            grow(n);
+        for (int e = 0; e < n; e++) {
+            keys[e] = buffer.getInt();
+            falloffs[e] = buffer.getInt();
+            occluded[e] = buffer.getInt() != 0;
+            centreX[e] = buffer.getFloat();
+            centreY[e] = buffer.getFloat();
+            centreZ[e] = buffer.getFloat();
+            radii[e] = buffer.getFloat();
+            impulses[e] = buffer.getFloat();
+            speeds[e] = buffer.getFloat();
+            ages[e] = buffer.getFloat();
+            int hits = buffer.getInt();
+            for (int i = 0; i < hits; i++)
+                struck[e].put(idKey(buffer.getInt()), Boolean.TRUE);
+        }
+        count = n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LongMap<Boolean>[] newSets(int capacity) {
+        return (LongMap<Boolean>[]) new LongMap<?>[capacity];
+    }
+
+    private static long idKey(int id) {
+        return id + 1L;
+    }
+
+    /**
+     * Splits a range of the explosions in halves until it is small
+     * enough to be searched by a single worker.
+     */
+    private class HitTask extends RecursiveAction {
+        private final Broadphase broadphase;
+        private final boolean write;
+        private final int from;
+        private final int to;
+
+        HitTask(Broadphase broadphase, boolean write, int from, int to) {
+            this.broadphase = broadphase;
+            this.write = write;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                findHits(broadphase, from, to, write);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new HitTask(broadphase, write, from, mid), new HitTask(broadphase, write, mid, to));
+        }
+    }
+}
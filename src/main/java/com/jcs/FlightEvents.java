@@ -0,0 +1,118 @@
+package com.jcs;
+
+/**
+ * The Java Flight Recorder events of the engine, so physics spikes show
+ * in the same recording as garbage collections and safepoints.
+ * <p>
+ * Timed events only reach the recording when they last longer than their
+ * threshold, which a recording can change per event, by name: they can
+ * stay enabled in production. Bursts and refusals are only emitted when
+ * they happen, at most once per step.
+ * <p>
+ * The flight recorder exists from Java 8u262 and 11 on. The events are
+ * defined by {@code JfrRecorder}, in a source set of its own, which is
+ * loaded by name the first time this class is used; the rest of the
+ * engine never refers to {@code jdk.jfr}, only calls into this class
+ * once {@link #AVAILABLE} says it can, and never holds its events by
+ * type, so it builds against the Java 8 API and runs without it.
+ */
+final class FlightEvents {
+
+    /**
+     * Emits the events, implemented by {@code JfrRecorder}.
+     */
+    interface Recorder {
+
+        /**
+         * Returns true if the virtual machine has a flight recorder.
+         */
+        boolean isAvailable();
+
+        /**
+         * Starts timing a step.
+         *
+         * @return the event, or null if disabled
+         */
+        Object beginStep();
+
+        /**
+         * Ends timing a step, taking the time of each phase from the
+         * graph.
+         */
+        void endStep(Object begun, World world, TaskGraph phases, int pairs, int spawns);
+
+        Object beginBroadphase();
+
+        void endBroadphase(Object begun, int primitives, int pairs);
+
+        Object beginSolver();
+
+        void endSolver(Object begun, int manifolds, int iterationsUsed, int iterations);
+
+        void spawnBurst(int frame, int spawned, int commands);
+
+        void commandQueueFull(int frame, long refused, int capacity);
+
+        void hostSaturated(int hosted, float load);
+    }
+
+    private static final Recorder RECORDER = load();
+
+    /**
+     * Holds whether the virtual machine has a flight recorder.
+     */
+    static final boolean AVAILABLE = RECORDER != null;
+
+    private FlightEvents() {
+    }
+
+    static Object beginStep() {
+        return RECORDER.beginStep();
+    }
+
+    static void endStep(Object begun, World world, TaskGraph phases, int pairs, int spawns) {
+        RECORDER.endStep(begun, world, phases, pairs, spawns);
+    }
+
+    static Object beginBroadphase() {
+        return RECORDER.beginBroadphase();
+    }
+
+    static void endBroadphase(Object begun, int primitives, int pairs) {
+        RECORDER.endBroadphase(begun, primitives, pairs);
+    }
+
+    static Object beginSolver() {
+        return RECORDER.beginSolver();
+    }
+
+    static void endSolver(Object begun, int manifolds, int iterationsUsed, int iterations) {
+        RECORDER.endSolver(begun, manifolds, iterationsUsed, iterations);
+    }
+
+    static void spawnBurst(int frame, int spawned, int commands) {
+        RECORDER.spawnBurst(frame, spawned, commands);
+    }
+
+    static void commandQueueFull(int frame, long refused, int capacity) {
+        RECORDER.commandQueueFull(frame, refused, capacity);
+    }
+
+    static void hostSaturated(int hosted, float load) {
+        RECORDER.hostSaturated(hosted, load);
+    }
+
+    /**
+     * Loads the recorder, or returns null if it was not built in, or the
+     * virtual machine has no flight recorder.
+     */
+    private static Recorder load() {
+        try {
+            Recorder recorder = (Recorder) Class.forName("com.jcs.JfrRecorder")
+                    .getDeclaredConstructor().newInstance();
+            return recorder.isAvailable() ? recorder : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.jcs;
+
+import java.util.Arrays;
+
+/**
+ * Holds objects referred to by generational handles, such as the bodies
+ * of a game.
+ * <p>
+ * A handle is a long made of the index of a slot, in the low 32 bits,
+ * and the generation of the slot, in the high 32 bits. Removing an
+ * object frees its slot for the next one added and moves the slot to
+ * its next generation, so the handles of removed objects are told apart
+ * from those of the objects later put in the same slot, instead of
+ * silently reaching them.
+ * <p>
+ * The objects themselves are kept densely, in the order of an array: a
+ * removal moves the last object into the place of the removed one. Every
+ * slot knows where its object is in the dense array and every object
+ * knows its slot, so adding, looking up and removing are all constant
+ * time, and iterating is a walk over an array without holes:
+ * <pre>
+ * for (int i = registry.size() - 1; i &gt;= 0; i--) {
+ *     Body body = registry.getAt(i);
+ *     if (body.isDead())
+ *         registry.remove(registry.getHandleAt(i));
+ * }
+ * </pre>
+ * Walking backwards, as above, visits every object once even when
+ * removing some on the way.
+ *
+ * @param <T> the type of the objects
+ */
+public class HandleRegistry<T> {
+
+    /**
+     * A handle never given to any object.
+     */
+    public static final long NONE = 0L;
+
+    private Object[] dense;
+    private int[] denseSlots;
+    private int size;
+
+    /**
+     * Holds, for each slot in use, the index of its object in the dense
+     * array, and for each free slot, the next free slot.
+     */
+    private int[] slotDense;
+    private int[] generations;
+    private int slotCount;
+    private int freeSlot = -1;
+
+    /**
+     * Creates a new registry with room for 16 objects.
+     */
+    public HandleRegistry() {
+        this(16);
+    }
+
+    /**
+     * Creates a new registry.
+     *
+     * @param capacity the number of objects it holds before growing
+     */
+    public HandleRegistry(int capacity) {
+        capacity = Math.max(capacity, 1);
+        dense = new Object[capacity];
+        denseSlots = new int[capacity];
+        slotDense = new int[capacity];
+        generations = new int[capacity];
+    }
+
+    /**
+     * Adds an object.
+     *
+     * @return the handle of the object
+     */
+    public long add(T value) {
+        int slot;
+        if (freeSlot >= 0) {
+            slot = freeSlot;
+            freeSlot = slotDense[slot];
+        } else {
+            if (slotCount == generations.length) {
+                slotDense = Arrays.copyOf(slotDense, slotCount * 2);
+                generations = Arrays.copyOf(generations, slotCount * 2);
+            }
+            slot = slotCount++;
+            generations[slot] = 1;
+        }
+
+        if (size == dense.length) {
+            dense = Arrays.copyOf(dense, size * 2);
+            denseSlots = Arrays.copyOf(denseSlots, size * 2);
+        }
+        dense[size] = value;
+        denseSlots[size] = slot;
+        slotDense[slot] = size;
+        size++;
+        return handle(slot, generations[slot]);
+    }
+
+    /**
+     * Removes the object of a handle, moving the last object into its
+     * place.
+     *
+     * @return false if the handle is stale or was never given
+     */
+    public boolean remove(long handle) {
+        int index = indexOf(handle);
+        if (index < 0)
+            return false;
+
+        int slot = slot(handle);
+        int last = --size;
+        dense[index] = dense[last];
+        denseSlots[index] = denseSlots[last];
+        slotDense[denseSlots[index]] = index;
+        dense[last] = null;
+
+        // Generation zero is never used, so no handle is ever NONE.
+        if (++generations[slot] == 0)
+            generations[slot] = 1;
+        slotDense[slot] = freeSlot;
+        freeSlot = slot;
+        return true;
+    }
+
+    /**
+     * Gets the object of a handle.
+     *
+     * @return the object, or null if the handle is stale or was never
+     * given
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long handle) {
+        int index = indexOf(handle);
+        return index < 0 ? null : (T) dense[index];
+    }
+
+    /**
+     * Returns whether a handle refers to an object of the registry.
+     */
+    public boolean contains(long handle) {
+        return indexOf(handle) >= 0;
+    }
+
+    /**
+     * Gets the position of the object of a handle in the dense order.
+     *
+     * @return the position, or -1 if the handle is stale or was never
+     * given
+     */
+    public int indexOf(long handle) {
+        int slot = slot(handle);
+        if (slot < 0 || slot >= slotCount || generations[slot] != generation(handle))
+            return -1;
+        return slotDense[slot];
+    }
+
+    /**
+     * Gets the number of objects.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the object at a position of the dense order.
+     */
+    @SuppressWarnings("unchecked")
+    public T getAt(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return (T) dense[index];
+    }
+
+    /**
+     * Gets the handle of the object at a position of the dense order.
+     */
+    public long getHandleAt(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        int slot = denseSlots[index];
+        return handle(slot, generations[slot]);
+    }
+
+    /**
+     * Removes every object, making all the handles given so far stale.
+     */
+    public void clear() {
+        while (size > 0)
+            remove(getHandleAt(size - 1));
+    }
+
+    /**
+     * Gets the slot of a handle.
+     */
+    public static int slot(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Gets the generation of a handle.
+     */
+    public static int generation(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static long handle(int slot, int generation) {
+        return ((long) generation << 32) | (slot & 0xffffffffL);
+    }
+}
@@ -0,0 +1,213 @@
+package com.jcs;
+
+import java.util.Arrays;
+
+/**
+ * Declares where bodies leave the simulation: outside the world bounds,
+ * inside a kill box, beyond a half-space or past a lifetime.
+ * <p>
+ * The volumes are evaluated over packed columns of positions and ages
+ * rather than by asking each body whether it should go. Each volume is
+ * one flat loop over the columns, with no calls and no branches but the
+ * comparisons, marking the bodies it matches; the marks are then
+ * gathered into a list of indices, in increasing order, for the caller
+ * to remove in a single compaction. A {@link World} runs its own volumes
+ * every step, and games can run theirs over any columns they keep:
+ * <pre>
+ * int n = volumes.cull(x, y, z, null, count, culled);
+ * for (int i = n - 1; i &gt;= 0; i--)
+ *     registry.remove(registry.getHandleAt(culled[i]));
+ * </pre>
+ * Floating point is evaluated strictly, so deterministic worlds cull the
+ * same bodies everywhere.
+ */
+public strictfp class KillVolumes {
+
+    private boolean bounded;
+    private final float[] bounds = new float[6];
+
+    private float[] boxes = new float[0];
+    private int boxCount;
+
+    private float[] planes = new float[0];
+    private int planeCount;
+
+    private float maxAge = Float.POSITIVE_INFINITY;
+
+    /**
+     * Holds the marks of the last evaluation.
+     */
+    private boolean[] marks = new boolean[0];
+
+    /**
+     * Kills everything outside the given box.
+     */
+    public void setBounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        bounds[0] = minX;
+        bounds[1] = minY;
+        bounds[2] = minZ;
+        bounds[3] = maxX;
+        bounds[4] = maxY;
+        bounds[5] = maxZ;
+        bounded = true;
+    }
+
+    /**
+     * Lets bodies go anywhere again.
+     */
+    public void clearBounds() {
+        bounded = false;
+    }
+
+    /**
+     * Adds a box killing everything inside it, bounds included.
+     *
+     * @return the index of the box
+     */
+    public int addBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        if (boxes.length < (boxCount + 1) * 6)
+            boxes = Arrays.copyOf(boxes, Math.max(6, boxes.length * 2));
+        int at = boxCount * 6;
+        boxes[at] = minX;
+        boxes[at + 1] = minY;
+        boxes[at + 2] = minZ;
+        boxes[at + 3] = maxX;
+        boxes[at + 4] = maxY;
+        boxes[at + 5] = maxZ;
+        return boxCount++;
+    }
+
+    /**
+     * Adds a half-space killing every point p on or beyond the plane,
+     * where n.p &gt;= d. The normal points into the killing side: a floor
+     * at height zero is (0, -1, 0) and 0.
+     *
+     * @return the index of the half-space
+     */
+    public int addHalfSpace(float nx, float ny, float nz, float d) {
+        if (planes.length < (planeCount + 1) * 4)
+            planes = Arrays.copyOf(planes, Math.max(4, planes.length * 2));
+        int at = planeCount * 4;
+        planes[at] = nx;
+        planes[at + 1] = ny;
+        planes[at + 2] = nz;
+        planes[at + 3] = d;
+        return planeCount++;
+    }
+
+    /**
+     * Kills everything older than the given age, or nothing older if it
+     * is infinite, as it is at first.
+     */
+    public void setMaxAge(float maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public float getMaxAge() {
+        return maxAge;
+    }
+
+    public int getBoxCount() {
+        return boxCount;
+    }
+
+    public int getHalfSpaceCount() {
+        return planeCount;
+    }
+
+    /**
+     * Returns true if nothing is ever killed, so evaluating can be
+     * skipped.
+     */
+    public boolean isEmpty() {
+        return !bounded && boxCount == 0 && planeCount == 0 && maxAge == Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Removes every volume, the bounds and the lifetime.
+     */
+    public void clear() {
+        bounded = false;
+        boxCount = 0;
+        planeCount = 0;
+        maxAge = Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Marks the entries of a range of the columns matched by any volume.
+     * Entries already marked stay marked. Ranges that do not overlap can
+     * be evaluated from several threads at once.
+     *
+     * @param x      the x positions
+     * @param y      the y positions
+     * @param z      the z positions
+     * @param age    the ages, or null to ignore the lifetime
+     * @param from   the first entry
+     * @param to     the entry after the last one
+     * @param killed the marks, set to true for the entries matched
+     */
+    public void evaluate(float[] x, float[] y, float[] z, float[] age, int from, int to, boolean[] killed) {
+        if (bounded) {
+            float minX = bounds[0], minY = bounds[1], minZ = bounds[2];
+            float maxX = bounds[3], maxY = bounds[4], maxZ = bounds[5];
+            for (int i = from; i < to; i++)
+                killed[i] |= x[i] < minX | y[i] < minY | z[i] < minZ
+                        | x[i] > maxX | y[i] > maxY | z[i] > maxZ;
+        }
+
+        for (int b = 0; b < boxCount * 6; b += 6) {
+            float minX = boxes[b], minY = boxes[b + 1], minZ = boxes[b + 2];
+            float maxX = boxes[b + 3], maxY = boxes[b + 4], maxZ = boxes[b + 5];
+            for (int i = from; i < to; i++)
+                killed[i] |= x[i] >= minX & y[i] >= minY & z[i] >= minZ
+                        & x[i] <= maxX & y[i] <= maxY & z[i] <= maxZ;
+        }
+
+        for (int p = 0; p < planeCount * 4; p += 4) {
+            float nx = planes[p], ny = planes[p + 1], nz = planes[p + 2], d = planes[p + 3];
+            for (int i = from; i < to; i++)
+                killed[i] |= nx * x[i] + ny * y[i] + nz * z[i] >= d;
+        }
+
+        if (age != null && maxAge != Float.POSITIVE_INFINITY) {
+            float limit = maxAge;
+            for (int i = from; i < to; i++)
+                killed[i] |= age[i] > limit;
+        }
+    }
+
+    /**
+     * Finds the entries of the columns matched by any volume.
+     *
+     * @param x      the x positions
+     * @param y      the y positions
+     * @param z      the z positions
+     * @param age    the ages, or null to ignore the lifetime
+     * @param count  the number of entries
+     * @param culled receives the indices of the entries matched, in
+     *               increasing order; at least count long
+     *
+     * @return the number of entries matched
+     */
+    public int cull(float[] x, float[] y, float[] z, float[] age, int count, int[] culled) {
+        if (marks.length < count)
+            marks = new boolean[Math.max(count, marks.length * 2)];
+        Arrays.fill(marks, 0, count, false);
+        evaluate(x, y, z, age, 0, count, marks);
+        return gather(marks, count, culled);
+    }
+
+    /**
+     * Gathers the indices of the marked entries, in increasing order.
+     *
+     * @return the number of entries marked
+     */
+    public static int gather(boolean[] killed, int count, int[] culled) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (killed[i])
+                culled[n++] = i;
+        }
+        return n;
+    }
+}
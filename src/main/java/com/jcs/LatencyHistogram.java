@@ -0,0 +1,121 @@
+package com.jcs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, in the manner of an HDR
+ * histogram: values are counted in buckets whose width grows with the
+ * value, so any value up to hours is kept within 1.6% of its size in a
+ * fixed array of counts, and recording is a few shifts and an increment.
+ * <p>
+ * Values are recorded by a single thread, while other threads may read
+ * the histogram at any time; a read taken during a record may miss that
+ * value.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a value kept, below its leading one.
+     */
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * The number of buckets needed for any positive long.
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long count;
+    private volatile long total;
+    private volatile long max;
+
+    /**
+     * Records a value. Negative values count as zero. Only one thread
+     * may record at a time.
+     */
+    public void record(long value) {
+        if (value < 0L)
+            value = 0L;
+        int bucket = bucket(value);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        total += value;
+        if (value > max)
+            max = value;
+        count++;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the largest value recorded, exactly.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the mean of the values recorded, exactly.
+     */
+    public double getMean() {
+        long n = count;
+        return n == 0 ? 0.0 : total / (double) n;
+    }
+
+    /**
+     * Gets the value at the given percentile: the largest value that
+     * counts as equal to the value below which the given percentage of
+     * the values fall.
+     *
+     * @param percentile a percentage, such as 99.9
+     *
+     * @return the value, or zero if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count;
+        if (n == 0)
+            return 0L;
+
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0L;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(highestValue(bucket), max);
+        }
+        return max;
+    }
+
+    /**
+     * Forgets every value recorded. Must be called by the thread
+     * recording.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+            counts.lazySet(bucket, 0L);
+        total = 0L;
+        max = 0L;
+        count = 0L;
+    }
+
+    /**
+     * Values below twice the number of sub-buckets have a bucket each.
+     * Above, every power of two is split into as many buckets as there
+     * are sub-buckets.
+     */
+    private static int bucket(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - (SUB_BITS + 1));
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int bucket) {
+        int shift = Math.max(0, (bucket >> SUB_BITS) - 1);
+        long mantissa = bucket - ((long) shift << SUB_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,197 @@
+package com.jcs;
+
+/**
+ * A hash map from long keys to objects using open addressing with
+ * linear probing.
+ * <p>
+ * Keys and values live in two flat arrays, so looking up a key does not
+ * allocate or box and probes walk neighbouring slots. Removal shifts the
+ * following entries back instead of leaving tombstones, so the table
+ * never degrades however many keys come and go.
+ * <p>
+ * The key zero is reserved to mark empty slots and cannot be stored.
+ *
+ * @param <V> the type of the values
+ */
+public class LongMap<V> {
+
+    private long[] keys;
+    private V[] values;
+    private int size;
+    private int mask;
+
+    public LongMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a new map able to hold the given number of entries before
+     * it has to grow.
+     *
+     * @param capacity the expected number of entries
+     */
+    public LongMap(int capacity) {
+        allocate(tableSize(capacity));
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value stored for the given key.
+     *
+     * @param key the key, which may not be zero
+     *
+     * @return the value, or null if the key is not in the map
+     */
+    public V get(long key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            long k = keys[slot];
+            if (k == key)
+                return values[slot];
+            if (k == 0)
+                return null;
+        }
+    }
+
+    /**
+     * Stores a value for the given key, replacing any previous one.
+     *
+     * @param key   the key, which may not be zero
+     * @param value the value to store
+     *
+     * @return the previous value, or null if there was none
+     */
+    public V put(long key, V value) {
+        if (key == 0)
+            throw new IllegalArgumentException("The key zero is reserved");
+
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                V previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length)
+            rehash(keys.length * 2);
+        return null;
+    }
+
+    /**
+     * Removes the entry of the given key.
+     *
+     * @param key the key to remove
+     *
+     * @return the value that was stored, or null if there was none
+     */
+    public V remove(long key) {
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == 0)
+                return null;
+            slot = (slot + 1) & mask;
+        }
+
+        V previous = values[slot];
+        size--;
+
+        // Shift back the entries that probed past the freed slot.
+        int free = slot;
+        for (int next = (free + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        keys[free] = 0;
+        values[free] = null;
+        return previous;
+    }
+
+    /**
+     * Gets the number of slots of the table. Together with
+     * {@link #keyAt(int)} and {@link #valueAt(int)} this allows iterating
+     * over the entries without allocating.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Gets the key held in the given slot, or zero if the slot is empty.
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Gets the value held in the given slot, or null if the slot is empty.
+     */
+    public V valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Removes every entry from the map, keeping its capacity.
+     */
+    public void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the home slot of a key. The key is mixed first because
+     * packed keys often differ only in a few high or low bits.
+     */
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int length) {
+        keys = new long[length];
+        values = (V[]) new Object[length];
+        mask = length - 1;
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        V[] oldValues = values;
+        allocate(length);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0)
+                continue;
+            int slot = slot(oldKeys[i]);
+            while (keys[slot] != 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int tableSize(int capacity) {
+        int length = 2;
+        while (length < capacity * 2)
+            length <<= 1;
+        return length;
+    }
+}
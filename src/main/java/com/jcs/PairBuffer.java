@@ -0,0 +1,79 @@
+package com.jcs;
+
+/**
+ * A growable list of potential contact pairs written by the
+ * {@link Broadphase}. Each pair is stored as two consecutive ints, the
+ * broadphase indices of its primitives, so filling the buffer every
+ * step does not allocate once it has reached its working size.
+ */
+public class PairBuffer {
+
+    /**
+     * Holds the number of pairs in the buffer.
+     */
+    private int count;
+
+    /**
+     * Holds the broadphase indices of the pairs, two ints per pair.
+     */
+    private int[] pairs;
+
+    public PairBuffer() {
+        this(64);
+    }
+
+    /**
+     * Creates a new buffer able to hold the given number of pairs
+     * before it has to grow.
+     *
+     * @param capacity the initial number of pairs
+     */
+    public PairBuffer(int capacity) {
+        pairs = new int[Math.max(capacity, 1) * 2];
+    }
+
+    /**
+     * Removes all the pairs from the buffer.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a pair to the buffer.
+     *
+     * @param a the broadphase index of the first primitive
+     * @param b the broadphase index of the second primitive
+     */
+    public void add(int a, int b) {
+        if (count * 2 == pairs.length) {
+            int[] newPairs = new int[pairs.length * 2];
+            System.arraycopy(pairs, 0, newPairs, 0, pairs.length);
+            pairs = newPairs;
+        }
+        pairs[count * 2] = a;
+        pairs[count * 2 + 1] = b;
+        count++;
+    }
+
+    /**
+     * Gets the number of pairs in the buffer.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the broadphase index of the first primitive of a pair.
+     */
+    public int getA(int pair) {
+        return pairs[pair * 2];
+    }
+
+    /**
+     * Gets the broadphase index of the second primitive of a pair.
+     */
+    public int getB(int pair) {
+        return pairs[pair * 2 + 1];
+    }
+}
@@ -13,7 +13,7 @@ import org.joml.Vector3f;
  *
  * @author Juan Ibarra
  */
-public class Particle {
+public strictfp class Particle {
 
     /**
      * Holds the inverse of the mass of the particle. It
@@ -87,7 +87,7 @@ public class Particle {
 
 
         // Impose drag.
-        velocity.mul((float) Math.pow(damping, duration));
+        velocity.mul((float) StrictMath.pow(damping, duration));
         //velocity *= real_pow(damping, duration);
 
         // Clear the forces.
@@ -0,0 +1,14 @@
+package com.jcs;
+
+/**
+ * A force generator that applies a bungee force between each particle
+ * and a fixed point in space: a spring that only pulls, once stretched
+ * past its rest length.
+ */
+public strictfp class ParticleAnchoredBungee extends ParticleAnchoredSpring {
+
+    public ParticleAnchoredBungee(float anchorX, float anchorY, float anchorZ,
+                                  float springConstant, float restLength) {
+        super(anchorX, anchorY, anchorZ, springConstant, restLength, false);
+    }
+}
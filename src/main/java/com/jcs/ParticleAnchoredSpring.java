@@ -0,0 +1,69 @@
+package com.jcs;
+
+/**
+ * A force generator that applies a spring force between each particle
+ * and a fixed point in space.
+ */
+public strictfp class ParticleAnchoredSpring implements ParticleForceGenerator {
+
+    /**
+     * Holds the fixed end of the spring.
+     */
+    public float anchorX, anchorY, anchorZ;
+
+    /**
+     * Holds the spring constant.
+     */
+    public float springConstant;
+
+    /**
+     * Holds the length of the spring at rest.
+     */
+    public float restLength;
+
+    /**
+     * Holds whether the spring pushes when shorter than its rest length,
+     * as well as pulls when longer.
+     */
+    private final boolean pushes;
+
+    public ParticleAnchoredSpring(float anchorX, float anchorY, float anchorZ,
+                                  float springConstant, float restLength) {
+        this(anchorX, anchorY, anchorZ, springConstant, restLength, true);
+    }
+
+    ParticleAnchoredSpring(float anchorX, float anchorY, float anchorZ,
+                           float springConstant, float restLength, boolean pushes) {
+        this.pushes = pushes;
+        this.anchorX = anchorX;
+        this.anchorY = anchorY;
+        this.anchorZ = anchorZ;
+        this.springConstant = springConstant;
+        this.restLength = restLength;
+    }
+
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        if (indices == null) {
+            for (int i = from; i < to; i++)
+                apply(particles, i);
+        } else {
+            for (int j = from; j < to; j++)
+                apply(particles, indices[j]);
+        }
+    }
+
+    private void apply(ParticleBuffer particles, int i) {
+        float dx = particles.px[i] - anchorX;
+        float dy = particles.py[i] - anchorY;
+        float dz = particles.pz[i] - anchorZ;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length == 0.0f || (!pushes && length <= restLength))
+            return;
+
+        float magnitude = -springConstant * (length - restLength) / length;
+        particles.fx[i] += dx * magnitude;
+        particles.fy[i] += dy * magnitude;
+        particles.fz[i] += dz * magnitude;
+    }
+}
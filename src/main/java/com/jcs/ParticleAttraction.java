@@ -0,0 +1,595 @@
+package com.jcs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A force generator that makes every particle of its set attract every
+ * other, in proportion to their masses and the inverse square of their
+ * distance, as in gravity between the bodies of a swarm or a debris
+ * cloud. A negative strength makes them repel instead.
+ * <p>
+ * Summing the pull of every particle on every other is quadratic, so the
+ * forces are approximated with a Barnes-Hut octree: a cell far enough
+ * away, compared to its size, pulls as a single particle of its total
+ * mass at its centre of mass. The {@link #openingAngle} sets how far is
+ * far enough; zero opens every cell and gives the exact sum.
+ * <p>
+ * The tree is rebuilt from scratch by {@link #prepare} for every update,
+ * into flat arrays. The particles are sorted along a Morton curve, so
+ * every cell of the tree holds a contiguous range of them, and the
+ * positions and masses are gathered in that order so the particles of a
+ * cell sit together in memory. Codes, gathering and the cells of large
+ * ranges are computed in parallel, and so are the forces: each range of
+ * the set walks the tree for its own particles, in Morton order, a small
+ * group of neighbours at a time, and adds the result straight into their
+ * force columns. The result does not depend on the pool.
+ * <p>
+ * Particles that never move neither attract nor are attracted. A set
+ * holds at most {@link #MAX_PARTICLES} particles.
+ */
+public strictfp class ParticleAttraction implements ParticleForceGenerator {
+
+    /**
+     * The largest number of particles in a set.
+     */
+    public static final int MAX_PARTICLES = 1 << 21;
+
+    /**
+     * The number of levels of the tree below the root, and of bits of
+     * each coordinate in a Morton code.
+     */
+    private static final int LEVELS = 14;
+
+    /**
+     * The number of low bits of a sort key holding the entry of the
+     * particle in its set.
+     */
+    private static final int ENTRY_BITS = 21;
+
+    /**
+     * The largest number of particles a cell holds without being split.
+     */
+    private static final int LEAF_SIZE = 4;
+
+    /**
+     * The number of neighbouring particles walking the tree together.
+     */
+    private static final int GROUP_SIZE = 8;
+
+    /**
+     * The number of particles a single task codes or gathers, and the
+     * smallest range whose cell is built by a task of its own.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Holds the strength of the attraction, the gravitational constant.
+     */
+    public float strength;
+
+    /**
+     * Holds the largest ratio of the size of a cell to its distance for
+     * which the cell pulls as a whole. Larger angles are faster and less
+     * accurate; 0.5 is usually a good trade.
+     */
+    public float openingAngle = 0.5f;
+
+    /**
+     * Holds the softening length, which keeps the force finite when two
+     * particles meet.
+     */
+    public float softening = 0.01f;
+
+    /*
+     * The set being updated: the buffer, its indices and its size.
+     */
+    private ParticleBuffer particles;
+    private int[] indices;
+    private int count;
+
+    /*
+     * The particles in Morton order: their sort keys, their indices in the
+     * buffer, and their positions and masses.
+     */
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+    private float[] sortedX = new float[0];
+    private float[] sortedY = new float[0];
+    private float[] sortedZ = new float[0];
+    private float[] sortedMass = new float[0];
+
+    /*
+     * The cells of the tree, the root first: the range of sorted particles
+     * they hold, their first child and number of children, none for a
+     * leaf, their lowest corner and size, and their mass and centre of
+     * mass.
+     */
+    private int[] cellStart = new int[0];
+    private int[] cellEnd = new int[0];
+    private int[] cellChild = new int[0];
+    private int[] cellChildCount = new int[0];
+    private float[] cellX = new float[0];
+    private float[] cellY = new float[0];
+    private float[] cellZ = new float[0];
+    private float[] cellSize = new float[0];
+    private float[] cellMass = new float[0];
+    private float[] massX = new float[0];
+    private float[] massY = new float[0];
+    private float[] massZ = new float[0];
+    private final AtomicInteger cellCount = new AtomicInteger();
+
+    /*
+     * The cube holding the set.
+     */
+    private float rootX, rootY, rootZ, rootSize;
+
+    public ParticleAttraction(float strength) {
+        this.strength = strength;
+    }
+
+    /**
+     * Builds the tree of the set.
+     */
+    @Override
+    public void prepare(ParticleBuffer particles, int[] indices, int count, float duration,
+                        ForkJoinPool pool) {
+        if (count > MAX_PARTICLES)
+            throw new IllegalArgumentException("Too many particles for an attraction: " + count);
+        this.particles = particles;
+        this.indices = indices;
+        this.count = count;
+        cellCount.set(0);
+        if (count == 0)
+            return;
+        ensureCapacity(count);
+
+        findBounds();
+        run(pool, CODE, count);
+        if (pool == null || count <= CHUNK_SIZE)
+            Arrays.sort(keys, 0, count);
+        else
+            pool.invoke(ForkJoinTask.adapt(() -> Arrays.parallelSort(keys, 0, this.count)));
+        run(pool, GATHER, count);
+
+        int root = cellCount.getAndIncrement();
+        if (pool == null || count <= CHUNK_SIZE)
+            build(false, root, 0, count, 0, rootX, rootY, rootZ);
+        else
+            pool.invoke(new BuildTask(root, 0, count, 0, rootX, rootY, rootZ));
+    }
+
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        if (particles != this.particles || indices != this.indices || to > count)
+            throw new IllegalStateException("Attraction was not prepared for this set");
+
+        // Ranges of the set are taken as ranges of the Morton order, and
+        // walk the tree a group of neighbours at a time.
+        int[] stack = new int[7 * LEVELS + 8];
+        float[] ax = new float[GROUP_SIZE], ay = new float[GROUP_SIZE], az = new float[GROUP_SIZE];
+        for (int group = from - from % GROUP_SIZE; group < to; group += GROUP_SIZE) {
+            // Groups are aligned on the whole set, whatever the range, so
+            // the tree is opened the same way however the set is split.
+            int first = Math.max(group, from);
+            int last = Math.min(group + GROUP_SIZE, to);
+            Arrays.fill(ax, 0.0f);
+            Arrays.fill(ay, 0.0f);
+            Arrays.fill(az, 0.0f);
+            walk(group, Math.min(group + GROUP_SIZE, count), first, last, stack, ax, ay, az);
+
+            for (int k = first; k < last; k++) {
+                int i = order[k];
+                float scale = strength * sortedMass[k];
+                particles.fx[i] += ax[k - group] * scale;
+                particles.fy[i] += ay[k - group] * scale;
+                particles.fz[i] += az[k - group] * scale;
+            }
+        }
+    }
+
+    /**
+     * Sums the accelerations of some of a group of sorted particles, by
+     * their offset in the group. A cell pulls as a whole when it is far
+     * enough from the box around the whole group, so the group shares a
+     * single walk of the tree.
+     */
+    private void walk(int group, int groupEnd, int first, int last, int[] stack,
+                      float[] ax, float[] ay, float[] az) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int k = group; k < groupEnd; k++) {
+            minX = Math.min(minX, sortedX[k]);
+            minY = Math.min(minY, sortedY[k]);
+            minZ = Math.min(minZ, sortedZ[k]);
+            maxX = Math.max(maxX, sortedX[k]);
+            maxY = Math.max(maxY, sortedY[k]);
+            maxZ = Math.max(maxZ, sortedZ[k]);
+        }
+        float theta2 = openingAngle * openingAngle;
+        float epsilon2 = softening * softening;
+
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int cell = stack[--top];
+            float cellMass = this.cellMass[cell];
+            if (cellMass == 0.0f)
+                continue;
+
+            if (cellChildCount[cell] == 0) {
+                int start = cellStart[cell], end = cellEnd[cell];
+                for (int k = first; k < last; k++) {
+                    float x = sortedX[k], y = sortedY[k], z = sortedZ[k];
+                    float sumX = 0.0f, sumY = 0.0f, sumZ = 0.0f;
+                    for (int p = start; p < end; p++) {
+                        if (p == k)
+                            continue;
+                        float dx = sortedX[p] - x;
+                        float dy = sortedY[p] - y;
+                        float dz = sortedZ[p] - z;
+                        float pull = sortedMass[p] * inverseCube(dx * dx + dy * dy + dz * dz + epsilon2);
+                        sumX += dx * pull;
+                        sumY += dy * pull;
+                        sumZ += dz * pull;
+                    }
+                    ax[k - group] += sumX;
+                    ay[k - group] += sumY;
+                    az[k - group] += sumZ;
+                }
+                continue;
+            }
+
+            float cx = massX[cell], cy = massY[cell], cz = massZ[cell];
+            float size = cellSize[cell];
+            float gapX = Math.max(0.0f, Math.max(minX - cx, cx - maxX));
+            float gapY = Math.max(0.0f, Math.max(minY - cy, cy - maxY));
+            float gapZ = Math.max(0.0f, Math.max(minZ - cz, cz - maxZ));
+            if (size * size < theta2 * (gapX * gapX + gapY * gapY + gapZ * gapZ)
+                    && !overlaps(cell, minX, minY, minZ, maxX, maxY, maxZ)) {
+                for (int k = first; k < last; k++) {
+                    float dx = cx - sortedX[k];
+                    float dy = cy - sortedY[k];
+                    float dz = cz - sortedZ[k];
+                    float pull = cellMass * inverseCube(dx * dx + dy * dy + dz * dz + epsilon2);
+                    ax[k - group] += dx * pull;
+                    ay[k - group] += dy * pull;
+                    az[k - group] += dz * pull;
+                }
+            } else {
+                int child = cellChild[cell];
+                for (int c = cellChildCount[cell] - 1; c >= 0; c--)
+                    stack[top++] = child + c;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cells of the last tree built.
+     */
+    public int getCellCount() {
+        return cellCount.get();
+    }
+
+    private static float inverseCube(float distance2) {
+        float inverse = 1.0f / (float) Math.sqrt(distance2);
+        return inverse * inverse * inverse;
+    }
+
+    private boolean overlaps(int cell, float minX, float minY, float minZ,
+                             float maxX, float maxY, float maxZ) {
+        float size = cellSize[cell];
+        return maxX >= cellX[cell] && minX < cellX[cell] + size
+                && maxY >= cellY[cell] && minY < cellY[cell] + size
+                && maxZ >= cellZ[cell] && minZ < cellZ[cell] + size;
+    }
+
+    private int particle(int entry) {
+        return indices == null ? entry : indices[entry];
+    }
+
+    /**
+     * Finds the smallest cube around the set, slightly enlarged so every
+     * particle is strictly inside it.
+     */
+    private void findBounds() {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        float[] px = particles.px, py = particles.py, pz = particles.pz;
+        for (int entry = 0; entry < count; entry++) {
+            int i = particle(entry);
+            minX = Math.min(minX, px[i]);
+            minY = Math.min(minY, py[i]);
+            minZ = Math.min(minZ, pz[i]);
+            maxX = Math.max(maxX, px[i]);
+            maxY = Math.max(maxY, py[i]);
+            maxZ = Math.max(maxZ, pz[i]);
+        }
+        float size = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        size = Math.max(size * 1.001f, 1.0e-3f);
+        rootX = minX - size * 0.0005f;
+        rootY = minY - size * 0.0005f;
+        rootZ = minZ - size * 0.0005f;
+        rootSize = size;
+    }
+
+    /*
+     * The passes over the set.
+     */
+
+    private static final int CODE = 0;
+    private static final int GATHER = 1;
+
+    private void run(ForkJoinPool pool, int pass, int to) {
+        if (pool == null || to <= CHUNK_SIZE)
+            runRange(pass, 0, to);
+        else
+            pool.invoke(new PassTask(pass, 0, to));
+    }
+
+    private void runRange(int pass, int from, int to) {
+        switch (pass) {
+            case CODE:
+                code(from, to);
+                break;
+            case GATHER:
+                gather(from, to);
+                break;
+        }
+    }
+
+    /**
+     * Gives each particle of a range of the set its sort key: its Morton
+     * code in the root cube, then its entry in the set.
+     */
+    private void code(int from, int to) {
+        float[] px = particles.px, py = particles.py, pz = particles.pz;
+        float scale = (1 << LEVELS) / rootSize;
+        int max = (1 << LEVELS) - 1;
+        for (int entry = from; entry < to; entry++) {
+            int i = particle(entry);
+            int x = Math.min(max, (int) ((px[i] - rootX) * scale));
+            int y = Math.min(max, (int) ((py[i] - rootY) * scale));
+            int z = Math.min(max, (int) ((pz[i] - rootZ) * scale));
+            long code = spread(x) << 2 | spread(y) << 1 | spread(z);
+            keys[entry] = code << ENTRY_BITS | entry;
+        }
+    }
+
+    /**
+     * Spreads the bits of a coordinate two bits apart.
+     */
+    private static long spread(int value) {
+        long v = value & 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    /**
+     * Copies the positions and masses of a range of the sorted particles.
+     */
+    private void gather(int from, int to) {
+        int mask = (1 << ENTRY_BITS) - 1;
+        for (int k = from; k < to; k++) {
+            int i = particle((int) keys[k] & mask);
+            order[k] = i;
+            sortedX[k] = particles.px[i];
+            sortedY[k] = particles.py[i];
+            sortedZ[k] = particles.pz[i];
+            float w = particles.inverseMass[i];
+            sortedMass[k] = w > 0.0f ? 1.0f / w : 0.0f;
+        }
+    }
+
+    /**
+     * Builds a cell holding a range of the sorted particles and all its
+     * descendants, the large ones in tasks of their own when parallel,
+     * then sums its mass.
+     */
+    private void build(boolean parallel, int cell, int start, int end, int level,
+                       float x, float y, float z) {
+        // A level where all the particles fall in the same octant adds
+        // nothing, so the cell is shrunk until they split or it is a leaf.
+        while (end - start > LEAF_SIZE && level < LEVELS) {
+            int shift = 3 * (LEVELS - 1 - level) + ENTRY_BITS;
+            int octant = octant(start, shift);
+            if (octant != octant(end - 1, shift))
+                break;
+            float half = rootSize / (1 << (level + 1));
+            x += (octant >> 2 & 1) * half;
+            y += (octant >> 1 & 1) * half;
+            z += (octant & 1) * half;
+            level++;
+        }
+
+        cellStart[cell] = start;
+        cellEnd[cell] = end;
+        cellX[cell] = x;
+        cellY[cell] = y;
+        cellZ[cell] = z;
+        cellSize[cell] = rootSize / (1 << level);
+        cellChildCount[cell] = 0;
+        if (end - start <= LEAF_SIZE || level == LEVELS) {
+            sumLeaf(cell);
+            return;
+        }
+
+        // The octants of the range are sorted, so each is a run of it.
+        int shift = 3 * (LEVELS - 1 - level) + ENTRY_BITS;
+        int[] bounds = new int[9];
+        int children = 0;
+        for (int from = start; from < end; ) {
+            int octant = octant(from, shift);
+            int to = upperBound(from, end, shift, octant);
+            bounds[children] = from;
+            bounds[++children] = to;
+            from = to;
+        }
+        int child = cellCount.getAndAdd(children);
+        cellChild[cell] = child;
+        cellChildCount[cell] = children;
+
+        float half = rootSize / (1 << (level + 1));
+        if (!parallel || end - start <= CHUNK_SIZE) {
+            for (int c = 0; c < children; c++) {
+                int octant = octant(bounds[c], shift);
+                build(false, child + c, bounds[c], bounds[c + 1], level + 1,
+                        x + (octant >> 2 & 1) * half, y + (octant >> 1 & 1) * half, z + (octant & 1) * half);
+            }
+        } else {
+            BuildTask[] tasks = new BuildTask[children];
+            for (int c = 0; c < children; c++) {
+                int octant = octant(bounds[c], shift);
+                tasks[c] = new BuildTask(child + c, bounds[c], bounds[c + 1], level + 1,
+                        x + (octant >> 2 & 1) * half, y + (octant >> 1 & 1) * half, z + (octant & 1) * half);
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+        sumChildren(cell);
+    }
+
+    private int octant(int k, int shift) {
+        return (int) (keys[k] >>> shift) & 7;
+    }
+
+    /**
+     * Returns the first sorted particle of a range past the given octant.
+     */
+    private int upperBound(int from, int to, int shift, int octant) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (octant(mid, shift) <= octant)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void sumLeaf(int cell) {
+        float mass = 0.0f, x = 0.0f, y = 0.0f, z = 0.0f;
+        for (int k = cellStart[cell]; k < cellEnd[cell]; k++) {
+            float m = sortedMass[k];
+            mass += m;
+            x += sortedX[k] * m;
+            y += sortedY[k] * m;
+            z += sortedZ[k] * m;
+        }
+        setMass(cell, mass, x, y, z);
+    }
+
+    private void sumChildren(int cell) {
+        float mass = 0.0f, x = 0.0f, y = 0.0f, z = 0.0f;
+        int child = cellChild[cell];
+        for (int c = child; c < child + cellChildCount[cell]; c++) {
+            float m = cellMass[c];
+            mass += m;
+            x += massX[c] * m;
+            y += massY[c] * m;
+            z += massZ[c] * m;
+        }
+        setMass(cell, mass, x, y, z);
+    }
+
+    private void setMass(int cell, float mass, float x, float y, float z) {
+        cellMass[cell] = mass;
+        if (mass > 0.0f) {
+            massX[cell] = x / mass;
+            massY[cell] = y / mass;
+            massZ[cell] = z / mass;
+        } else {
+            float half = cellSize[cell] * 0.5f;
+            massX[cell] = cellX[cell] + half;
+            massY[cell] = cellY[cell] + half;
+            massZ[cell] = cellZ[cell] + half;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (keys.length >= n)
+            return;
+        int capacity = Math.max(n, keys.length * 2);
+        keys = new long[capacity];
+        order = new int[capacity];
+        sortedX = new float[capacity];
+        sortedY = new float[capacity];
+        sortedZ = new float[capacity];
+        sortedMass = new float[capacity];
+
+        // Every cell that is not a leaf has two children or more, so
+        // there are fewer cells than twice the particles.
+        int cells = 2 * capacity;
+        cellStart = new int[cells];
+        cellEnd = new int[cells];
+        cellChild = new int[cells];
+        cellChildCount = new int[cells];
+        cellX = new float[cells];
+        cellY = new float[cells];
+        cellZ = new float[cells];
+        cellSize = new float[cells];
+        cellMass = new float[cells];
+        massX = new float[cells];
+        massY = new float[cells];
+        massZ = new float[cells];
+    }
+
+    /**
+     * Builds a cell of the tree and its descendants.
+     */
+    private class BuildTask extends RecursiveAction {
+        private final int cell;
+        private final int start;
+        private final int end;
+        private final int level;
+        private final float x, y, z;
+
+        BuildTask(int cell, int start, int end, int level, float x, float y, float z) {
+            this.cell = cell;
+            this.start = start;
+            this.end = end;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        protected void compute() {
+            build(true, cell, start, end, level, x, y, z);
+        }
+    }
+
+    /**
+     * Splits a pass over the set in halves until it is small enough to be
+     * run by a single worker.
+     */
+    private class PassTask extends RecursiveAction {
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        PassTask(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                runRange(pass, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PassTask(pass, from, mid), new PassTask(pass, mid, to));
+        }
+    }
+}
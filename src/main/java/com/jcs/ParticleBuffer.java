@@ -0,0 +1,234 @@
+package com.jcs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A set of particles held in packed columns, one array per property,
+ * rather than one {@link Particle} object each.
+ * <p>
+ * Large numbers of simple particles, such as debris, sparks or cloth
+ * nodes, are processed by loops over the columns: a pass reads and
+ * writes a few arrays from start to end, with no object to follow and no
+ * call per particle, which the JIT can unroll and vectorize. Forces are
+ * accumulated into the force columns during a step, by
+ * {@link ParticleForceRegistry} among others, and used and cleared by
+ * {@link #integrate(float)}, just as {@link Particle#forceAccum} is.
+ * <p>
+ * Particles keep their index for as long as they are in the buffer, so
+ * other structures can refer to them by index.
+ */
+public strictfp class ParticleBuffer {
+
+    /**
+     * Holds the maximum number of particles of the buffer.
+     */
+    public final int capacity;
+
+    /**
+     * Holds the number of particles currently in the buffer.
+     */
+    public int count;
+
+    /**
+     * Hold the position of each particle.
+     */
+    public final float[] px, py, pz;
+
+    /**
+     * Hold the velocity of each particle.
+     */
+    public final float[] vx, vy, vz;
+
+    /**
+     * Hold the force accumulated on each particle for the next
+     * integration only.
+     */
+    public final float[] fx, fy, fz;
+
+    /**
+     * Holds the inverse of the mass of each particle, zero for particles
+     * that never move.
+     */
+    public final float[] inverseMass;
+
+    /**
+     * Holds the damping of each particle, as in {@link Particle#damping}.
+     */
+    public final float[] damping;
+
+    /**
+     * Holds the method {@link #step} integrates the particles with.
+     */
+    public ParticleIntegrator integrator = ParticleIntegrator.EXPLICIT_EULER;
+
+    /**
+     * Holds the columns integrators keep intermediate results in.
+     */
+    private float[][] scratch = new float[0][];
+
+    /**
+     * Creates a new buffer able to hold the given number of particles.
+     *
+     * @param capacity the maximum number of particles
+     */
+    public ParticleBuffer(int capacity) {
+        this.capacity = capacity;
+        px = new float[capacity];
+        py = new float[capacity];
+        pz = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        vz = new float[capacity];
+        fx = new float[capacity];
+        fy = new float[capacity];
+        fz = new float[capacity];
+        inverseMass = new float[capacity];
+        damping = new float[capacity];
+    }
+
+    /**
+     * Removes all the particles from the buffer.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a particle at rest with no force on it.
+     *
+     * @param inverseMass the inverse of the mass, zero for a particle that
+     *                    never moves
+     * @param damping     the damping of the particle
+     *
+     * @return the index of the particle
+     */
+    public int add(float x, float y, float z, float inverseMass, float damping) {
+        if (count == capacity)
+            throw new IllegalStateException("Particle buffer is full");
+
+        int i = count++;
+        px[i] = x;
+        py[i] = y;
+        pz[i] = z;
+        vx[i] = vy[i] = vz[i] = 0.0f;
+        fx[i] = fy[i] = fz[i] = 0.0f;
+        this.inverseMass[i] = inverseMass;
+        this.damping[i] = damping;
+        return i;
+    }
+
+    /**
+     * Adds a copy of the state of a particle. Its constant acceleration
+     * is not kept: in a buffer it is given by a force generator, such as
+     * {@link ParticleGravity}.
+     *
+     * @return the index of the particle
+     */
+    public int add(Particle particle) {
+        int i = add(particle.position.x, particle.position.y, particle.position.z,
+                particle.inverseMass, particle.damping);
+        vx[i] = particle.velocity.x;
+        vy[i] = particle.velocity.y;
+        vz[i] = particle.velocity.z;
+        fx[i] = particle.forceAccum.x;
+        fy[i] = particle.forceAccum.y;
+        fz[i] = particle.forceAccum.z;
+        return i;
+    }
+
+    /**
+     * Copies the position and velocity of a particle of the buffer into
+     * the given particle.
+     *
+     * @return the particle
+     */
+    public Particle get(int index, Particle particle) {
+        particle.setPosition(px[index], py[index], pz[index]);
+        particle.setVelocity(vx[index], vy[index], vz[index]);
+        return particle;
+    }
+
+    /**
+     * Clears the forces accumulated on every particle.
+     */
+    public void clearForces() {
+        Arrays.fill(fx, 0, count, 0.0f);
+        Arrays.fill(fy, 0, count, 0.0f);
+        Arrays.fill(fz, 0, count, 0.0f);
+    }
+
+    /**
+     * Updates the forces of the particles and integrates them forward in
+     * time with the {@link #integrator}, which may evaluate the forces
+     * several times, and clears the forces.
+     *
+     * @param duration the duration of the step
+     * @param forces   the generators of the forces, or null for the
+     *                 forces in the columns only
+     * @param pool     the pool running the kernels, or null to run them on
+     *                 the calling thread
+     */
+    public void step(float duration, ParticleForceRegistry forces, ForkJoinPool pool) {
+        if (duration > 0.0f)
+            integrator.integrate(this, forces, duration, pool);
+    }
+
+    /**
+     * Integrates every particle forward in time by the given amount, the
+     * same way as {@link Particle#integrate(float)}, and clears the
+     * forces.
+     *
+     * @param duration the delta time for integrate
+     */
+    public void integrate(float duration) {
+        integrate(duration, 0, count);
+    }
+
+    /**
+     * Integrates a range of the particles and clears their forces.
+     * Ranges that do not overlap can be integrated from several threads
+     * at once.
+     */
+    public void integrate(float duration, int from, int to) {
+        // The damping of most particles is shared, so keep its power.
+        float lastDamping = Float.NaN;
+        float drag = 1.0f;
+
+        for (int i = from; i < to; i++) {
+            float w = inverseMass[i];
+            if (w <= 0.0f)
+                continue;
+
+            px[i] += vx[i] * duration;
+            py[i] += vy[i] * duration;
+            pz[i] += vz[i] * duration;
+
+            if (damping[i] != lastDamping) {
+                lastDamping = damping[i];
+                drag = (float) StrictMath.pow(lastDamping, duration);
+            }
+            vx[i] = (vx[i] + fx[i] * w * duration) * drag;
+            vy[i] = (vy[i] + fy[i] * w * duration) * drag;
+            vz[i] = (vz[i] + fz[i] * w * duration) * drag;
+        }
+
+        Arrays.fill(fx, from, to, 0.0f);
+        Arrays.fill(fy, from, to, 0.0f);
+        Arrays.fill(fz, from, to, 0.0f);
+    }
+
+    /**
+     * Gets scratch columns for an integrator, as long as the buffer.
+     */
+    float[][] getScratch(int columns) {
+        if (scratch.length < columns) {
+            scratch = Arrays.copyOf(scratch, columns);
+            for (int c = 0; c < columns; c++) {
+                if (scratch[c] == null)
+                    scratch[c] = new float[capacity];
+            }
+        }
+        return scratch;
+    }
+}
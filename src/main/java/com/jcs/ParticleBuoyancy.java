@@ -0,0 +1,67 @@
+package com.jcs;
+
+/**
+ * A force generator that applies a buoyancy force for a plane of liquid
+ * parallel to the XZ plane. Each particle is treated as a body of the
+ * given volume, fully submerged once its centre is the maximum depth
+ * under the surface and out of the liquid once it is as far above.
+ */
+public strictfp class ParticleBuoyancy implements ParticleForceGenerator {
+
+    /**
+     * Holds the depth of the centre at which a particle is fully
+     * submerged.
+     */
+    public float maxDepth;
+
+    /**
+     * Holds the volume of each particle.
+     */
+    public float volume;
+
+    /**
+     * Holds the height of the surface of the liquid.
+     */
+    public float waterHeight;
+
+    /**
+     * Holds the density of the liquid. Pure water has a density of
+     * 1000 kg per cubic meter.
+     */
+    public float liquidDensity;
+
+    public ParticleBuoyancy(float maxDepth, float volume, float waterHeight, float liquidDensity) {
+        this.maxDepth = maxDepth;
+        this.volume = volume;
+        this.waterHeight = waterHeight;
+        this.liquidDensity = liquidDensity;
+    }
+
+    public ParticleBuoyancy(float maxDepth, float volume, float waterHeight) {
+        this(maxDepth, volume, waterHeight, 1000.0f);
+    }
+
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        float top = waterHeight + maxDepth;
+        float full = liquidDensity * volume;
+        float perDepth = full / (2.0f * maxDepth);
+        if (indices == null) {
+            for (int i = from; i < to; i++)
+                particles.fy[i] += lift(particles.py[i], top, full, perDepth);
+        } else {
+            for (int j = from; j < to; j++) {
+                int i = indices[j];
+                particles.fy[i] += lift(particles.py[i], top, full, perDepth);
+            }
+        }
+    }
+
+    /**
+     * Returns the upward force on a particle at the given height: the
+     * weight of the liquid displaced by its submerged part.
+     */
+    private static float lift(float y, float top, float full, float perDepth) {
+        return Math.min(full, Math.max(0.0f, (top - y) * perDepth));
+    }
+}
@@ -0,0 +1,523 @@
+package com.jcs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Distance constraints between the particles of a {@link ParticleBuffer},
+ * for cloth, ropes and soft debris, solved on positions.
+ * <p>
+ * There are three kinds of constraint: springs, which pull and push
+ * towards their rest length with a stiffness between 0 and 1, rods,
+ * which keep their length exactly, and cables, which only stop their
+ * particles from going further apart than their length. Constraints are
+ * held in packed arrays, and which constraints touch each particle in
+ * compressed sparse row arrays: the constraints of particle i are
+ * entries {@code rowStart[i]} to {@code rowStart[i + 1]} of one array.
+ * <p>
+ * A step moves the particles by their velocity and forces, then moves
+ * them again, several times over, until the constraints hold, and takes
+ * the velocity from how far each particle went. Two constraints that
+ * share no particle can be solved at the same time, so the constraints
+ * are colored such that no two of a color share a particle, and stored
+ * color by color: each color is then solved in parallel chunks with no
+ * lock, one color after the other. The result does not depend on the
+ * pool, nor on how the colors are split.
+ * <p>
+ * Particles must not be removed from the buffer while constraints refer
+ * to them.
+ */
+public strictfp class ParticleConstraints {
+
+    /**
+     * The number of constraints, or particles, a single task solves
+     * before the work stops being split.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ParticleBuffer particles;
+
+    /**
+     * Holds the number of times the constraints are solved per step.
+     * More iterations make cloth stiffer.
+     */
+    public int iterations = 8;
+
+    /*
+     * The constraints, in the order they were added: their particles, the
+     * distance they keep, their stiffness, and whether they only pull.
+     */
+    private int[] one = new int[0];
+    private int[] two = new int[0];
+    private float[] restLength = new float[0];
+    private float[] stiffness = new float[0];
+    private boolean[] slack = new boolean[0];
+    private int count;
+
+    /*
+     * The constraints of each particle, in compressed sparse row form.
+     */
+    private int[] rowStart = new int[1];
+    private int[] rows = new int[0];
+
+    /*
+     * The constraints sorted by color, and where each color starts.
+     */
+    private int[] colorOne = new int[0];
+    private int[] colorTwo = new int[0];
+    private float[] colorRest = new float[0];
+    private float[] colorStiffness = new float[0];
+    private boolean[] colorSlack = new boolean[0];
+
+    /**
+     * Holds the stiffness of each constraint per iteration, for the
+     * number of iterations it was worked out for.
+     */
+    private float[] colorK = new float[0];
+    private int colorKIterations;
+
+    private int[] colorStart = new int[1];
+    private int colorCount;
+
+    private boolean built = true;
+
+    /*
+     * The positions of the particles at the start of the step.
+     */
+    private float[] ox = new float[0];
+    private float[] oy = new float[0];
+    private float[] oz = new float[0];
+
+    /*
+     * The step being run, for the tasks.
+     */
+    private float stepDuration;
+    private int stepIterations;
+
+    /**
+     * Creates constraints between the particles of the given buffer.
+     */
+    public ParticleConstraints(ParticleBuffer particles) {
+        this.particles = particles;
+    }
+
+    public ParticleBuffer getParticles() {
+        return particles;
+    }
+
+    /**
+     * Adds a spring between two particles.
+     *
+     * @param restLength the length the spring tends to
+     * @param stiffness  the share of the error corrected per step, from
+     *                   0 for no spring to 1 for a rod
+     *
+     * @return the index of the constraint
+     */
+    public int addSpring(int one, int two, float restLength, float stiffness) {
+        return add(one, two, restLength, stiffness, false);
+    }
+
+    /**
+     * Adds a spring between two particles, at rest at their current
+     * distance.
+     *
+     * @return the index of the constraint
+     */
+    public int addSpring(int one, int two, float stiffness) {
+        return add(one, two, distance(one, two), stiffness, false);
+    }
+
+    /**
+     * Adds a rod keeping two particles at the given distance.
+     *
+     * @return the index of the constraint
+     */
+    public int addRod(int one, int two, float length) {
+        return add(one, two, length, 1.0f, false);
+    }
+
+    /**
+     * Adds a rod keeping two particles at their current distance.
+     *
+     * @return the index of the constraint
+     */
+    public int addRod(int one, int two) {
+        return add(one, two, distance(one, two), 1.0f, false);
+    }
+
+    /**
+     * Adds a cable stopping two particles from going further than the
+     * given distance apart.
+     *
+     * @return the index of the constraint
+     */
+    public int addCable(int one, int two, float maxLength) {
+        return add(one, two, maxLength, 1.0f, true);
+    }
+
+    /**
+     * Links a grid of particles into a sheet of cloth. The particles are
+     * taken row by row from the given one, and the constraints rest at
+     * their current distances.
+     *
+     * @param first   the index of the first particle of the grid
+     * @param width   the number of particles of a row
+     * @param height  the number of rows
+     * @param stretch the stiffness of the springs along the rows and
+     *                columns
+     * @param shear   the stiffness of the springs along the diagonals,
+     *                or zero for none
+     * @param bend    the stiffness of the springs skipping a particle,
+     *                which keep the cloth from folding, or zero for none
+     */
+    public void addCloth(int first, int width, int height, float stretch, float shear, float bend) {
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int i = first + row * width + column;
+                if (column + 1 < width)
+                    addSpring(i, i + 1, stretch);
+                if (row + 1 < height)
+                    addSpring(i, i + width, stretch);
+                if (shear > 0.0f && column + 1 < width && row + 1 < height) {
+                    addSpring(i, i + width + 1, shear);
+                    addSpring(i + 1, i + width, shear);
+                }
+                if (bend > 0.0f && column + 2 < width)
+                    addSpring(i, i + 2, bend);
+                if (bend > 0.0f && row + 2 < height)
+                    addSpring(i, i + 2 * width, bend);
+            }
+        }
+    }
+
+    /**
+     * Removes every constraint.
+     */
+    public void clear() {
+        count = 0;
+        built = false;
+    }
+
+    /**
+     * Gets the number of constraints.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the number of colors the constraints were split into, once
+     * built.
+     */
+    public int getColorCount() {
+        build();
+        return colorCount;
+    }
+
+    /**
+     * Gets the number of constraints the given particle is part of.
+     */
+    public int getDegree(int particle) {
+        build();
+        return particle + 1 < rowStart.length ? rowStart[particle + 1] - rowStart[particle] : 0;
+    }
+
+    private int add(int one, int two, float length, float stiffness, boolean slack) {
+        if (one == two || one < 0 || two < 0 || one >= particles.count || two >= particles.count)
+            throw new IllegalArgumentException("Cannot link particles " + one + " and " + two);
+
+        if (count == this.one.length) {
+            int capacity = Math.max(16, count * 2);
+            this.one = Arrays.copyOf(this.one, capacity);
+            this.two = Arrays.copyOf(this.two, capacity);
+            restLength = Arrays.copyOf(restLength, capacity);
+            this.stiffness = Arrays.copyOf(this.stiffness, capacity);
+            this.slack = Arrays.copyOf(this.slack, capacity);
+        }
+        this.one[count] = one;
+        this.two[count] = two;
+        restLength[count] = length;
+        this.stiffness[count] = Math.max(0.0f, Math.min(1.0f, stiffness));
+        this.slack[count] = slack;
+        built = false;
+        return count++;
+    }
+
+    private float distance(int one, int two) {
+        float dx = particles.px[two] - particles.px[one];
+        float dy = particles.py[two] - particles.py[one];
+        float dz = particles.pz[two] - particles.pz[one];
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Builds the rows of the particles and colors the constraints, if
+     * they changed since the last time.
+     */
+    private void build() {
+        if (built)
+            return;
+        built = true;
+
+        // Count the constraints of each particle, then place them.
+        int n = particles.count;
+        rowStart = new int[n + 1];
+        for (int c = 0; c < count; c++) {
+            rowStart[one[c] + 1]++;
+            rowStart[two[c] + 1]++;
+        }
+        for (int i = 0; i < n; i++)
+            rowStart[i + 1] += rowStart[i];
+        rows = new int[count * 2];
+        int[] next = Arrays.copyOf(rowStart, n);
+        for (int c = 0; c < count; c++) {
+            rows[next[one[c]]++] = c;
+            rows[next[two[c]]++] = c;
+        }
+
+        // Give each constraint the lowest color none of the constraints
+        // sharing a particle with it already has.
+        int[] colors = new int[count];
+        Arrays.fill(colors, -1);
+        int[] seen = new int[16];
+        Arrays.fill(seen, -1);
+        colorCount = 0;
+        for (int c = 0; c < count; c++) {
+            for (int end = 0; end < 2; end++) {
+                int particle = end == 0 ? one[c] : two[c];
+                for (int r = rowStart[particle]; r < rowStart[particle + 1]; r++) {
+                    int color = colors[rows[r]];
+                    if (color >= 0)
+                        seen[color] = c;
+                }
+            }
+            int color = 0;
+            while (color < colorCount && seen[color] == c)
+                color++;
+            colors[c] = color;
+            if (color == colorCount) {
+                colorCount++;
+                if (colorCount == seen.length) {
+                    seen = Arrays.copyOf(seen, colorCount * 2);
+                    Arrays.fill(seen, colorCount, seen.length, -1);
+                }
+            }
+        }
+
+        // Store the constraints color by color, each in the order added.
+        colorStart = new int[colorCount + 1];
+        for (int c = 0; c < count; c++)
+            colorStart[colors[c] + 1]++;
+        for (int color = 0; color < colorCount; color++)
+            colorStart[color + 1] += colorStart[color];
+        colorOne = new int[count];
+        colorTwo = new int[count];
+        colorRest = new float[count];
+        colorStiffness = new float[count];
+        colorSlack = new boolean[count];
+        colorK = new float[count];
+        colorKIterations = 0;
+        next = Arrays.copyOf(colorStart, colorCount);
+        for (int c = 0; c < count; c++) {
+            int at = next[colors[c]]++;
+            colorOne[at] = one[c];
+            colorTwo[at] = two[c];
+            colorRest[at] = restLength[c];
+            colorStiffness[at] = stiffness[c];
+            colorSlack[at] = slack[c];
+        }
+    }
+
+    /**
+     * Steps the particles of the buffer and solves the constraints on
+     * the calling thread. This replaces {@link ParticleBuffer#integrate}
+     * for the step.
+     *
+     * @param duration the duration of the step
+     */
+    public void step(float duration) {
+        step(duration, null);
+    }
+
+    /**
+     * Steps the particles of the buffer and solves the constraints,
+     * splitting every pass into chunks run in parallel on the given pool.
+     * This replaces {@link ParticleBuffer#integrate} for the step: the
+     * forces accumulated are used and cleared.
+     *
+     * @param duration the duration of the step
+     * @param pool     the pool running the chunks, or null to run them on
+     *                 the calling thread
+     */
+    public void step(float duration, ForkJoinPool pool) {
+        if (duration <= 0.0f)
+            return;
+        build();
+
+        int n = particles.count;
+        if (ox.length < n) {
+            int capacity = Math.max(n, ox.length * 2);
+            ox = new float[capacity];
+            oy = new float[capacity];
+            oz = new float[capacity];
+        }
+        stepDuration = duration;
+        stepIterations = Math.max(1, iterations);
+        if (colorKIterations != stepIterations)
+            spreadStiffness();
+
+        run(pool, PREDICT, 0, n);
+        for (int iteration = 0; iteration < stepIterations; iteration++) {
+            for (int color = 0; color < colorCount; color++)
+                run(pool, SOLVE, colorStart[color], colorStart[color + 1]);
+        }
+        run(pool, UPDATE_VELOCITY, 0, n);
+    }
+
+    /**
+     * Spreads the stiffness of each constraint over the iterations, so
+     * the stiffness of the cloth does not depend on how many there are.
+     */
+    private void spreadStiffness() {
+        for (int c = 0; c < count; c++) {
+            float k = colorStiffness[c];
+            colorK[c] = k < 1.0f ? 1.0f - (float) StrictMath.pow(1.0f - k, 1.0 / stepIterations) : 1.0f;
+        }
+        colorKIterations = stepIterations;
+    }
+
+    private static final int PREDICT = 0;
+    private static final int SOLVE = 1;
+    private static final int UPDATE_VELOCITY = 2;
+
+    private void run(ForkJoinPool pool, int pass, int from, int to) {
+        if (pool == null || to - from <= CHUNK_SIZE)
+            runRange(pass, from, to);
+        else
+            pool.invoke(new PassTask(pass, from, to));
+    }
+
+    private void runRange(int pass, int from, int to) {
+        switch (pass) {
+            case PREDICT:
+                predict(from, to);
+                break;
+            case SOLVE:
+                solve(from, to);
+                break;
+            case UPDATE_VELOCITY:
+                updateVelocity(from, to);
+                break;
+        }
+    }
+
+    /**
+     * Moves a range of the particles by their velocity, after adding the
+     * forces and damping, keeping where they started.
+     */
+    private void predict(int from, int to) {
+        ParticleBuffer p = particles;
+        float duration = stepDuration;
+        float lastDamping = Float.NaN;
+        float drag = 1.0f;
+        for (int i = from; i < to; i++) {
+            ox[i] = p.px[i];
+            oy[i] = p.py[i];
+            oz[i] = p.pz[i];
+
+            float w = p.inverseMass[i];
+            if (w <= 0.0f)
+                continue;
+            if (p.damping[i] != lastDamping) {
+                lastDamping = p.damping[i];
+                drag = (float) StrictMath.pow(lastDamping, duration);
+            }
+            p.vx[i] = (p.vx[i] + p.fx[i] * w * duration) * drag;
+            p.vy[i] = (p.vy[i] + p.fy[i] * w * duration) * drag;
+            p.vz[i] = (p.vz[i] + p.fz[i] * w * duration) * drag;
+            p.px[i] += p.vx[i] * duration;
+            p.py[i] += p.vy[i] * duration;
+            p.pz[i] += p.vz[i] * duration;
+        }
+        Arrays.fill(p.fx, from, to, 0.0f);
+        Arrays.fill(p.fy, from, to, 0.0f);
+        Arrays.fill(p.fz, from, to, 0.0f);
+    }
+
+    /**
+     * Moves the particles of a range of the constraints of a color
+     * towards their rest length, in inverse proportion to their masses.
+     * No two constraints of a color share a particle.
+     */
+    private void solve(int from, int to) {
+        ParticleBuffer p = particles;
+        float[] px = p.px, py = p.py, pz = p.pz, inverseMass = p.inverseMass;
+        for (int c = from; c < to; c++) {
+            int a = colorOne[c], b = colorTwo[c];
+            float wa = inverseMass[a], wb = inverseMass[b];
+            float w = wa + wb;
+            if (w <= 0.0f)
+                continue;
+
+            float dx = px[b] - px[a];
+            float dy = py[b] - py[a];
+            float dz = pz[b] - pz[a];
+            float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            float error = length - colorRest[c];
+            if (length == 0.0f || (colorSlack[c] && error <= 0.0f))
+                continue;
+
+            float scale = colorK[c] * error / (length * w);
+            px[a] += dx * scale * wa;
+            py[a] += dy * scale * wa;
+            pz[a] += dz * scale * wa;
+            px[b] -= dx * scale * wb;
+            py[b] -= dy * scale * wb;
+            pz[b] -= dz * scale * wb;
+        }
+    }
+
+    /**
+     * Sets the velocity of a range of the particles from how far they
+     * moved during the step.
+     */
+    private void updateVelocity(int from, int to) {
+        ParticleBuffer p = particles;
+        float inverseDuration = 1.0f / stepDuration;
+        for (int i = from; i < to; i++) {
+            if (p.inverseMass[i] <= 0.0f)
+                continue;
+            p.vx[i] = (p.px[i] - ox[i]) * inverseDuration;
+            p.vy[i] = (p.py[i] - oy[i]) * inverseDuration;
+            p.vz[i] = (p.pz[i] - oz[i]) * inverseDuration;
+        }
+    }
+
+    /**
+     * Splits a range of a pass in halves until it is small enough to be
+     * run by a single worker.
+     */
+    private class PassTask extends RecursiveAction {
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        PassTask(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                runRange(pass, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PassTask(pass, from, mid), new PassTask(pass, mid, to));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.jcs;
+
+/**
+ * A force generator that applies a drag force, opposed to the velocity
+ * of each particle relative to the air or liquid around it. The drag has
+ * a linear and a quadratic part:
+ * <pre>
+ * f = -(k1 |v| + k2 |v|^2) v / |v|
+ * </pre>
+ * Giving the medium a velocity turns the drag into wind or a current.
+ */
+public strictfp class ParticleDrag implements ParticleForceGenerator {
+
+    /**
+     * Holds the velocity drag coefficient.
+     */
+    public float k1;
+
+    /**
+     * Holds the velocity squared drag coefficient.
+     */
+    public float k2;
+
+    /**
+     * Holds the velocity of the medium, zero for still air.
+     */
+    public float windX, windY, windZ;
+
+    public ParticleDrag(float k1, float k2) {
+        this.k1 = k1;
+        this.k2 = k2;
+    }
+
+    /**
+     * Sets the velocity of the medium.
+     *
+     * @return this generator
+     */
+    public ParticleDrag setWind(float x, float y, float z) {
+        windX = x;
+        windY = y;
+        windZ = z;
+        return this;
+    }
+
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        if (indices == null) {
+            for (int i = from; i < to; i++)
+                apply(particles, i);
+        } else {
+            for (int j = from; j < to; j++)
+                apply(particles, indices[j]);
+        }
+    }
+
+    private void apply(ParticleBuffer particles, int i) {
+        float rx = particles.vx[i] - windX;
+        float ry = particles.vy[i] - windY;
+        float rz = particles.vz[i] - windZ;
+        float speed = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+        float coefficient = k1 + k2 * speed;
+        particles.fx[i] -= rx * coefficient;
+        particles.fy[i] -= ry * coefficient;
+        particles.fz[i] -= rz * coefficient;
+    }
+}
@@ -0,0 +1,647 @@
+package com.jcs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A force generator that makes the particles of its set behave as a
+ * fluid, such as water or smoke, by smoothed particle hydrodynamics.
+ * <p>
+ * Each particle stands for a small volume of fluid. Its density is the
+ * sum of the masses of its neighbours within the smoothing radius,
+ * weighted by a kernel, and its pressure grows with how far the density
+ * is above the rest density. Pressure pushes the particles apart and
+ * viscosity pulls their velocities together, with the kernels of
+ * M&uuml;ller et al.: poly6 for density, spiky for pressure and the
+ * viscosity kernel for viscosity. The forces go into the force columns
+ * of the buffer, which is integrated as usual, with gravity and the
+ * other generators.
+ * <p>
+ * Neighbours are found through a grid: the particles are sorted by a
+ * hash of the cell they are in, and their state is gathered into columns
+ * in that order, so the particles of each cell are contiguous in memory
+ * and each particle only looks at the 27 cells around it. The neighbours
+ * found are kept in Verlet lists, one row of the same length per
+ * particle so that they are found in a single pass, with a margin of
+ * {@link #skin} beyond the smoothing radius: the lists stay valid until
+ * a particle has moved half the skin, so they are only rebuilt every few
+ * steps. The rows widen when a particle has more neighbours than they
+ * hold.
+ * <p>
+ * Every pass, the sort and the checks included, is split into ranges of
+ * particles run in parallel. Each particle gathers from its own
+ * neighbours only, so no two ranges write the same particle, and ties in
+ * the sort are broken by the previous order, so the result does not
+ * depend on the pool.
+ * <p>
+ * Particles that never move are left out of the fluid.
+ */
+public strictfp class ParticleFluid implements ParticleForceGenerator {
+
+    /**
+     * The number of particles a single task processes before the work
+     * stops being split.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Holds the distance within which particles interact.
+     */
+    public final float smoothingRadius;
+
+    /**
+     * Holds the density of the fluid at rest.
+     */
+    public float restDensity;
+
+    /**
+     * Holds the stiffness of the fluid, how much pressure grows with
+     * density. Stiffer fluids compress less but need smaller steps.
+     */
+    public float stiffness = 3.0f;
+
+    /**
+     * Holds the viscosity of the fluid.
+     */
+    public float viscosity = 3.5f;
+
+    /**
+     * Holds whether pressure below the rest density is ignored, so the
+     * particles never pull each other together, as for a splashing
+     * liquid. Smoke and gases leave it off.
+     */
+    public boolean clampPressure = true;
+
+    /**
+     * Holds the margin kept around the smoothing radius in the neighbour
+     * lists. A larger skin rebuilds the lists less often, but makes them
+     * longer.
+     */
+    public final float skin;
+
+    /*
+     * The kernel constants for the smoothing radius.
+     */
+    private final float radius2;
+    private final float poly6;
+    private final float spiky;
+    private final float viscous;
+
+    /*
+     * The set being updated: the buffer, its indices and its size.
+     */
+    private ParticleBuffer particles;
+    private int[] indices;
+    private int count;
+
+    /*
+     * The state of the set gathered at each update, in the order of the
+     * grid.
+     */
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] z = new float[0];
+    private float[] vx = new float[0];
+    private float[] vy = new float[0];
+    private float[] vz = new float[0];
+    private float[] mass = new float[0];
+    private float[] density = new float[0];
+    private float[] pressure = new float[0];
+
+    /*
+     * The grid: the entry of the set in each place of the order, sorted by
+     * the hash of their cell, the place of each entry, the sort keys, and
+     * the range of places of each hash.
+     */
+    private int[] order = new int[0];
+    private int[] places = new int[0];
+    private int[] previous = new int[0];
+    private long[] keys = new long[0];
+    private int[] bucketStart = new int[0];
+    private int[] bucketEnd = new int[0];
+    private int tableSize;
+    private int mask;
+    private float cellSize;
+
+    /*
+     * The neighbour lists, the neighbours of place i being the first
+     * neighbourCount[i] entries of row i of neighbours, and the positions
+     * they were built at.
+     */
+    private int[] neighbourCount = new int[0];
+    private int[] neighbours = new int[0];
+    private int rowLength = 32;
+    private float[] builtX = new float[0];
+    private float[] builtY = new float[0];
+    private float[] builtZ = new float[0];
+    private int builtCount = -1;
+    private long rebuildCount;
+
+    /**
+     * Creates a fluid with a skin of a quarter of the smoothing radius.
+     *
+     * @param smoothingRadius the distance within which particles interact,
+     *                        about twice their spacing at rest
+     * @param restDensity     the density of the fluid at rest
+     */
+    public ParticleFluid(float smoothingRadius, float restDensity) {
+        this(smoothingRadius, restDensity, smoothingRadius * 0.25f);
+    }
+
+    /**
+     * Creates a fluid.
+     *
+     * @param smoothingRadius the distance within which particles interact,
+     *                        about twice their spacing at rest
+     * @param restDensity     the density of the fluid at rest
+     * @param skin            the margin kept around the smoothing radius
+     *                        in the neighbour lists
+     */
+    public ParticleFluid(float smoothingRadius, float restDensity, float skin) {
+        this.smoothingRadius = smoothingRadius;
+        this.restDensity = restDensity;
+        this.skin = skin;
+        float h = smoothingRadius;
+        radius2 = h * h;
+        poly6 = (float) (315.0 / (64.0 * Math.PI * Math.pow(h, 9)));
+        spiky = (float) (-45.0 / (Math.PI * Math.pow(h, 6)));
+        viscous = (float) (45.0 / (Math.PI * Math.pow(h, 6)));
+    }
+
+    /**
+     * Gathers the state of the set, rebuilds the neighbour lists if a
+     * particle moved too far since they were built, and computes the
+     * density and pressure of every particle.
+     */
+    @Override
+    public void prepare(ParticleBuffer particles, int[] indices, int count, float duration,
+                        ForkJoinPool pool) {
+        boolean sameSet = particles == this.particles && indices == this.indices && count == builtCount;
+        this.particles = particles;
+        this.indices = indices;
+        this.count = count;
+        ensureCapacity(count);
+        if (!sameSet)
+            run(pool, IDENTITY, count);
+
+        run(pool, GATHER, count);
+        if (!sameSet || scan(pool, MOVED, count) != 0)
+            rebuild(pool);
+        run(pool, DENSITY, count);
+    }
+
+    /**
+     * Adds the pressure and viscosity forces to a range of the set,
+     * taken in the order of the grid.
+     */
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        if (particles != this.particles || indices != this.indices || to > count)
+            throw new IllegalStateException("Fluid was not prepared for this set");
+
+        float h = smoothingRadius;
+        for (int i = from; i < to; i++) {
+            float massI = mass[i];
+            if (massI == 0.0f)
+                continue;
+            float xi = x[i], yi = y[i], zi = z[i];
+            float pi = pressure[i];
+            float fx = 0.0f, fy = 0.0f, fz = 0.0f;
+
+            for (int n = i * rowLength, end = n + neighbourCount[i]; n < end; n++) {
+                int j = neighbours[n];
+                float dx = xi - x[j];
+                float dy = yi - y[j];
+                float dz = zi - z[j];
+                float r2 = dx * dx + dy * dy + dz * dz;
+                if (r2 >= radius2 || r2 == 0.0f || mass[j] == 0.0f)
+                    continue;
+                float r = (float) Math.sqrt(r2);
+                float q = h - r;
+                float share = mass[j] / density[j];
+
+                // Pressure along the spiky gradient, pointing from j to i.
+                float push = -share * (pi + pressure[j]) * 0.5f * spiky * q * q / r;
+                fx += dx * push;
+                fy += dy * push;
+                fz += dz * push;
+
+                float drag = viscosity * share * viscous * q;
+                fx += (vx[j] - vx[i]) * drag;
+                fy += (vy[j] - vy[i]) * drag;
+                fz += (vz[j] - vz[i]) * drag;
+            }
+
+            // The sums are forces per volume; the particle holds a volume
+            // of its mass over its density.
+            float volume = massI / density[i];
+            int p = particle(order[i]);
+            particles.fx[p] += fx * volume;
+            particles.fy[p] += fy * volume;
+            particles.fz[p] += fz * volume;
+        }
+    }
+
+    /**
+     * Gets the density of a particle of the set at the last update.
+     *
+     * @param entry the entry of the particle in the set
+     */
+    public float getDensity(int entry) {
+        return density[places[entry]];
+    }
+
+    /**
+     * Gets the pressure of a particle of the set at the last update.
+     *
+     * @param entry the entry of the particle in the set
+     */
+    public float getPressure(int entry) {
+        return pressure[places[entry]];
+    }
+
+    /**
+     * Gets the number of entries of the neighbour lists, which hold each
+     * pair of particles within the smoothing radius and the skin twice.
+     */
+    public int getNeighbourCount() {
+        int total = 0;
+        for (int i = 0; i < count; i++)
+            total += neighbourCount[i];
+        return total;
+    }
+
+    /**
+     * Gets the number of times the neighbour lists were rebuilt.
+     */
+    public long getRebuildCount() {
+        return rebuildCount;
+    }
+
+    private int particle(int entry) {
+        return indices == null ? entry : indices[entry];
+    }
+
+    /**
+     * Returns one if a particle of a range of places moved more than half
+     * the skin since the lists were built, in which case two particles
+     * may have come within the smoothing radius without being in each
+     * other's list, zero otherwise.
+     */
+    private int moved(int from, int to) {
+        float limit = skin * 0.5f;
+        float limit2 = limit * limit;
+        for (int i = from; i < to; i++) {
+            float dx = x[i] - builtX[i];
+            float dy = y[i] - builtY[i];
+            float dz = z[i] - builtZ[i];
+            if (dx * dx + dy * dy + dz * dz > limit2)
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the most neighbours found for a place of a range.
+     */
+    private int widest(int from, int to) {
+        int most = 0;
+        for (int i = from; i < to; i++)
+            most = Math.max(most, neighbourCount[i]);
+        return most;
+    }
+
+    /**
+     * Sorts the set into the grid, gathers it again in the new order and
+     * rebuilds the neighbour lists, again with wider rows if a particle
+     * had more neighbours than its row holds.
+     */
+    private void rebuild(ForkJoinPool pool) {
+        cellSize = smoothingRadius + skin;
+        tableSize = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        mask = tableSize - 1;
+        if (bucketStart.length < tableSize) {
+            bucketStart = new int[tableSize];
+            bucketEnd = new int[tableSize];
+        }
+
+        // The places are sorted by hash, then by their previous place.
+        run(pool, KEY, count);
+        if (pool == null || count <= CHUNK_SIZE)
+            Arrays.sort(keys, 0, count);
+        else
+            pool.invoke(ForkJoinTask.adapt(() -> Arrays.parallelSort(keys, 0, this.count)));
+        int[] swap = previous;
+        previous = order;
+        order = swap;
+        run(pool, CLEAR, tableSize);
+        run(pool, PLACE, count);
+        run(pool, GATHER, count);
+
+        while (true) {
+            if (neighbours.length < (long) count * rowLength)
+                neighbours = new int[count * rowLength];
+            run(pool, FIND, count);
+
+            int most = scan(pool, WIDEST, count);
+            if (most <= rowLength)
+                break;
+            rowLength = most + most / 4;
+        }
+
+        run(pool, KEEP, count);
+        builtCount = count;
+        rebuildCount++;
+    }
+
+    /**
+     * Makes the sort key of a range of places, the hash of their cell
+     * then their place.
+     */
+    private void key(int from, int to) {
+        for (int i = from; i < to; i++) {
+            long bucket = hash(cell(x[i]), cell(y[i]), cell(z[i])) & mask;
+            keys[i] = bucket << 32 | i;
+        }
+    }
+
+    /**
+     * Empties a range of the hash table.
+     */
+    private void clear(int from, int to) {
+        Arrays.fill(bucketStart, from, to, 0);
+        Arrays.fill(bucketEnd, from, to, 0);
+    }
+
+    /**
+     * Moves the entries of a range of sorted places to their new place,
+     * and marks where the range of places of each hash starts and ends.
+     */
+    private void place(int from, int to) {
+        for (int k = from; k < to; k++) {
+            long key = keys[k];
+            int entry = previous[(int) key];
+            order[k] = entry;
+            places[entry] = k;
+
+            int bucket = (int) (key >>> 32);
+            if (k == 0 || (int) (keys[k - 1] >>> 32) != bucket)
+                bucketStart[bucket] = k;
+            if (k == count - 1 || (int) (keys[k + 1] >>> 32) != bucket)
+                bucketEnd[bucket] = k + 1;
+        }
+    }
+
+    /**
+     * Keeps the positions of a range of places the lists were built at.
+     */
+    private void keep(int from, int to) {
+        System.arraycopy(x, from, builtX, from, to - from);
+        System.arraycopy(y, from, builtY, from, to - from);
+        System.arraycopy(z, from, builtZ, from, to - from);
+    }
+
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static int hash(int cx, int cy, int cz) {
+        return cx * 73856093 ^ cy * 19349663 ^ cz * 83492791;
+    }
+
+    /**
+     * Finds the neighbours of a range of places, counting those that do
+     * not fit in their row. Neighbouring cells that share a hash are only
+     * visited once, and the distance weeds out the particles of other
+     * cells with the same hash.
+     */
+    private void findNeighbours(int from, int to) {
+        float reach = smoothingRadius + skin;
+        float reach2 = reach * reach;
+        int[] visited = new int[27];
+        for (int i = from; i < to; i++) {
+            float xi = x[i], yi = y[i], zi = z[i];
+            int cx = cell(xi), cy = cell(yi), cz = cell(zi);
+            int found = 0;
+            int row = i * rowLength;
+            int slot = row, end = row + rowLength;
+
+            for (int ox = -1; ox <= 1; ox++) {
+                for (int oy = -1; oy <= 1; oy++) {
+                    for (int oz = -1; oz <= 1; oz++) {
+                        int bucket = hash(cx + ox, cy + oy, cz + oz) & mask;
+                        boolean seen = false;
+                        for (int v = 0; v < found && !seen; v++)
+                            seen = visited[v] == bucket;
+                        if (seen)
+                            continue;
+                        visited[found++] = bucket;
+
+                        for (int j = bucketStart[bucket], last = bucketEnd[bucket]; j < last; j++) {
+                            if (j == i)
+                                continue;
+                            float dx = x[j] - xi;
+                            float dy = y[j] - yi;
+                            float dz = z[j] - zi;
+                            if (dx * dx + dy * dy + dz * dz >= reach2)
+                                continue;
+                            if (slot < end)
+                                neighbours[slot] = j;
+                            slot++;
+                        }
+                    }
+                }
+            }
+            neighbourCount[i] = slot - row;
+        }
+    }
+
+    /**
+     * Copies the state of the particles of a range of places.
+     */
+    private void gather(int from, int to) {
+        ParticleBuffer p = particles;
+        for (int i = from; i < to; i++) {
+            int q = particle(order[i]);
+            x[i] = p.px[q];
+            y[i] = p.py[q];
+            z[i] = p.pz[q];
+            vx[i] = p.vx[q];
+            vy[i] = p.vy[q];
+            vz[i] = p.vz[q];
+            float w = p.inverseMass[q];
+            mass[i] = w > 0.0f ? 1.0f / w : 0.0f;
+        }
+    }
+
+    /**
+     * Sums the density of a range of places and finds their pressure.
+     */
+    private void density(int from, int to) {
+        float selfWeight = poly6 * radius2 * radius2 * radius2;
+        for (int i = from; i < to; i++) {
+            float xi = x[i], yi = y[i], zi = z[i];
+            float sum = mass[i] * selfWeight;
+            for (int n = i * rowLength, end = n + neighbourCount[i]; n < end; n++) {
+                int j = neighbours[n];
+                float dx = xi - x[j];
+                float dy = yi - y[j];
+                float dz = zi - z[j];
+                float left = radius2 - (dx * dx + dy * dy + dz * dz);
+                if (left > 0.0f)
+                    sum += mass[j] * poly6 * left * left * left;
+            }
+            density[i] = sum;
+            float p = stiffness * (sum - restDensity);
+            pressure[i] = clampPressure ? Math.max(0.0f, p) : p;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (x.length >= n)
+            return;
+        int capacity = Math.max(n, x.length * 2);
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        vz = new float[capacity];
+        mass = new float[capacity];
+        density = new float[capacity];
+        pressure = new float[capacity];
+        order = new int[capacity];
+        places = new int[capacity];
+        previous = new int[capacity];
+        keys = new long[capacity];
+        neighbourCount = new int[capacity];
+        builtX = new float[capacity];
+        builtY = new float[capacity];
+        builtZ = new float[capacity];
+        builtCount = -1;
+    }
+
+    /*
+     * The passes over the set.
+     */
+
+    private static final int GATHER = 0;
+    private static final int FIND = 1;
+    private static final int DENSITY = 2;
+    private static final int IDENTITY = 3;
+    private static final int KEY = 4;
+    private static final int CLEAR = 5;
+    private static final int PLACE = 6;
+    private static final int KEEP = 7;
+
+    /*
+     * The checks over the set, which give the largest of the results of
+     * their ranges.
+     */
+
+    private static final int MOVED = 0;
+    private static final int WIDEST = 1;
+
+    private void run(ForkJoinPool pool, int pass, int to) {
+        if (pool == null || to <= CHUNK_SIZE)
+            runRange(pass, 0, to);
+        else
+            pool.invoke(new PassTask(pass, 0, to));
+    }
+
+    private void runRange(int pass, int from, int to) {
+        switch (pass) {
+            case GATHER:
+                gather(from, to);
+                break;
+            case FIND:
+                findNeighbours(from, to);
+                break;
+            case DENSITY:
+                density(from, to);
+                break;
+            case IDENTITY:
+                for (int i = from; i < to; i++)
+                    order[i] = places[i] = i;
+                break;
+            case KEY:
+                key(from, to);
+                break;
+            case CLEAR:
+                clear(from, to);
+                break;
+            case PLACE:
+                place(from, to);
+                break;
+            case KEEP:
+                keep(from, to);
+                break;
+        }
+    }
+
+    private int scan(ForkJoinPool pool, int check, int to) {
+        if (pool == null || to <= CHUNK_SIZE)
+            return scanRange(check, 0, to);
+        return pool.invoke(new ScanTask(check, 0, to));
+    }
+
+    private int scanRange(int check, int from, int to) {
+        return check == MOVED ? moved(from, to) : widest(from, to);
+    }
+
+    /**
+     * Splits a pass over the set in halves until it is small enough to be
+     * run by a single worker.
+     */
+    private class PassTask extends RecursiveAction {
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        PassTask(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                runRange(pass, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PassTask(pass, from, mid), new PassTask(pass, mid, to));
+        }
+    }
+
+    /**
+     * Splits a check over the set in halves until it is small enough to
+     * be run by a single worker, and keeps the largest result.
+     */
+    private class ScanTask extends RecursiveTask<Integer> {
+        private final int check;
+        private final int from;
+        private final int to;
+
+        ScanTask(int check, int from, int to) {
+            this.check = check;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= CHUNK_SIZE)
+                return scanRange(check, from, to);
+            int mid = (from + to) >>> 1;
+            ScanTask right = new ScanTask(check, mid, to);
+            right.fork();
+            int left = new ScanTask(check, from, mid).compute();
+            return Math.max(left, right.join());
+        }
+    }
+}
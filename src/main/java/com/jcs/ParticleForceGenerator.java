@@ -0,0 +1,48 @@
+package com.jcs;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A force generator adds forces to particles of a {@link ParticleBuffer}.
+ * <p>
+ * A generator is called once for every set of particles it affects, not
+ * once per particle, and applies its force to the whole set in a single
+ * loop over the columns of the buffer.
+ * <p>
+ * A generator whose forces depend on the whole set at once, such as the
+ * attraction of every particle to every other, gathers what it needs
+ * from the set in {@link #prepare}, which is called once before the set
+ * is split into ranges.
+ */
+public interface ParticleForceGenerator {
+
+    /**
+     * Adds the force of the generator to a range of a set of particles.
+     *
+     * @param particles the particles
+     * @param indices   the indices of the particles of the set, or null
+     *                  if the set is every particle of the buffer, in
+     *                  which case the range is of the particles
+     *                  themselves
+     * @param from      the first entry of the range
+     * @param to        the entry after the last one of the range
+     * @param duration  the duration of the step
+     */
+    void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration);
+
+    /**
+     * Gets ready to add the forces of a whole set of particles, before
+     * {@link #updateForces} is called for the ranges of the set. Does
+     * nothing by default.
+     *
+     * @param particles the particles
+     * @param indices   the indices of the particles of the set, or null
+     *                  if the set is every particle of the buffer
+     * @param count     the number of particles of the set
+     * @param duration  the duration of the step
+     * @param pool      the pool the ranges will be updated on, or null
+     */
+    default void prepare(ParticleBuffer particles, int[] indices, int count, float duration,
+                         ForkJoinPool pool) {
+    }
+}
@@ -0,0 +1,200 @@
+package com.jcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Holds the force generators acting on the particles of a
+ * {@link ParticleBuffer}, each with the set of particles it affects.
+ * <p>
+ * Forces are updated generator by generator: each generator is called
+ * once with its whole set, which it walks in a single loop, instead of
+ * every particle calling every generator acting on it. Wind over ten
+ * thousand particles is one loop over the velocity and force columns.
+ * Large sets are split into chunks updated in parallel; generators are
+ * still updated one after the other, so a particle can be in the sets
+ * of several generators, but only once in each set.
+ */
+public class ParticleForceRegistry {
+
+    /**
+     * The number of particles of a set a single task updates before the
+     * registry stops splitting the work.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * A generator and the particles it affects.
+     */
+    public static class Registration {
+
+        public final ParticleForceGenerator generator;
+
+        /**
+         * Holds the indices of the particles affected, or null if the
+         * generator affects every particle of the buffer.
+         */
+        private int[] indices;
+        private int count;
+
+        Registration(ParticleForceGenerator generator, int[] indices, int count) {
+            this.generator = generator;
+            this.indices = indices;
+            this.count = count;
+        }
+
+        /**
+         * Adds a particle to the set of the generator. Does nothing if the
+         * generator affects every particle.
+         *
+         * @return this registration
+         */
+        public Registration add(int particle) {
+            if (indices == null)
+                return this;
+            if (count == indices.length)
+                indices = Arrays.copyOf(indices, Math.max(8, count * 2));
+            indices[count++] = particle;
+            return this;
+        }
+
+        /**
+         * Removes a particle from the set of the generator, moving the
+         * last particle of the set into its place.
+         *
+         * @return false if the particle is not in the set
+         */
+        public boolean remove(int particle) {
+            if (indices == null)
+                return false;
+            for (int j = 0; j < count; j++) {
+                if (indices[j] == particle) {
+                    indices[j] = indices[--count];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns whether the generator affects every particle.
+         */
+        public boolean isGlobal() {
+            return indices == null;
+        }
+
+        /**
+         * Gets the number of particles in the set, or -1 if the generator
+         * affects every particle.
+         */
+        public int getCount() {
+            return indices == null ? -1 : count;
+        }
+    }
+
+    private final List<Registration> registrations = new ArrayList<>();
+
+    /**
+     * Registers a generator acting on every particle of the buffer.
+     */
+    public Registration add(ParticleForceGenerator generator) {
+        Registration registration = new Registration(generator, null, 0);
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Registers a generator acting on the given particles, which must be
+     * distinct. More can be added to the registration later.
+     */
+    public Registration add(ParticleForceGenerator generator, int[] particles, int count) {
+        Registration registration = new Registration(generator,
+                Arrays.copyOf(particles, Math.max(count, 8)), count);
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Removes a registration.
+     */
+    public void remove(Registration registration) {
+        registrations.remove(registration);
+    }
+
+    /**
+     * Removes every registration.
+     */
+    public void clear() {
+        registrations.clear();
+    }
+
+    public int size() {
+        return registrations.size();
+    }
+
+    /**
+     * Calls every generator to add its forces to its particles, on the
+     * calling thread.
+     *
+     * @param particles the particles
+     * @param duration  the duration of the step
+     */
+    public void updateForces(ParticleBuffer particles, float duration) {
+        updateForces(particles, duration, null);
+    }
+
+    /**
+     * Calls every generator to add its forces to its particles, splitting
+     * large sets into chunks run in parallel on the given pool.
+     *
+     * @param particles the particles
+     * @param duration  the duration of the step
+     * @param pool      the pool running the chunks, or null to update on
+     *                  the calling thread
+     */
+    public void updateForces(ParticleBuffer particles, float duration, ForkJoinPool pool) {
+        for (int r = 0; r < registrations.size(); r++) {
+            Registration registration = registrations.get(r);
+            int count = registration.indices == null ? particles.count : registration.count;
+            registration.generator.prepare(particles, registration.indices, count, duration, pool);
+            if (pool == null || count <= CHUNK_SIZE)
+                registration.generator.updateForces(particles, registration.indices, 0, count, duration);
+            else
+                pool.invoke(new UpdateTask(registration, particles, duration, 0, count));
+        }
+    }
+
+    /**
+     * Splits a set of particles in halves until it is small enough to be
+     * updated by a single worker.
+     */
+    private static class UpdateTask extends RecursiveAction {
+        private final Registration registration;
+        private final ParticleBuffer particles;
+        private final float duration;
+        private final int from;
+        private final int to;
+
+        UpdateTask(Registration registration, ParticleBuffer particles, float duration, int from, int to) {
+            this.registration = registration;
+            this.particles = particles;
+            this.duration = duration;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                registration.generator.updateForces(particles, registration.indices, from, to, duration);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new UpdateTask(registration, particles, duration, from, mid),
+                    new UpdateTask(registration, particles, duration, mid, to));
+        }
+    }
+}
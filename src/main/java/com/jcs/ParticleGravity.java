@@ -0,0 +1,41 @@
+package com.jcs;
+
+/**
+ * A force generator that applies a gravitational force: the same
+ * acceleration for every particle, whatever its mass. Particles that
+ * never move are left alone.
+ */
+public strictfp class ParticleGravity implements ParticleForceGenerator {
+
+    /**
+     * Holds the acceleration due to gravity.
+     */
+    public float gx, gy, gz;
+
+    public ParticleGravity(float gx, float gy, float gz) {
+        this.gx = gx;
+        this.gy = gy;
+        this.gz = gz;
+    }
+
+    @Override
+    public void updateForces(ParticleBuffer particles, int[] indices, int from, int to, float duration) {
+        if (indices == null) {
+            for (int i = from; i < to; i++)
+                apply(particles, i);
+        } else {
+            for (int j = from; j < to; j++)
+                apply(particles, indices[j]);
+        }
+    }
+
+    private void apply(ParticleBuffer particles, int i) {
+        float w = particles.inverseMass[i];
+        if (w <= 0.0f)
+            return;
+        float mass = 1.0f / w;
+        particles.fx[i] += gx * mass;
+        particles.fy[i] += gy * mass;
+        particles.fz[i] += gz * mass;
+    }
+}
@@ -0,0 +1,399 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A method of integrating particles forward in time.
+ * <p>
+ * Every method comes as a kernel over the columns of a
+ * {@link ParticleBuffer}, which calls the force generators as often as
+ * it needs to evaluate the forces, and as a single step of a
+ * {@link Particle}, whose forces stay the same during the step. A buffer
+ * is stepped with its own {@link ParticleBuffer#integrator}, so each
+ * class of bodies, kept in its own buffer, can use the method that suits
+ * it; the bodies of a {@link World} use {@link World#integrator}.
+ * <p>
+ * Forces already in the force columns when a step starts, such as those
+ * of commands, are held constant over the step; damping is applied once
+ * per step, after the forces, as {@link Particle#integrate} does.
+ */
+public abstract strictfp class ParticleIntegrator {
+
+    /**
+     * The number of particles a single task integrates before the work
+     * stops being split.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Moves by the velocity at the start of the step, then updates the
+     * velocity: the method of {@link Particle#integrate}. First order and
+     * adds energy to oscillations, so springs need small steps.
+     */
+    public static final ParticleIntegrator EXPLICIT_EULER = new ExplicitEuler();
+
+    /**
+     * Updates the velocity, then moves by the new velocity. First order
+     * but symplectic: oscillations keep their energy instead of blowing
+     * up, for the same cost as explicit Euler.
+     */
+    public static final ParticleIntegrator SEMI_IMPLICIT_EULER = new SemiImplicitEuler();
+
+    /**
+     * Position Verlet: moves half a step, evaluates the forces there,
+     * updates the velocity and moves the other half. Second order and
+     * symplectic with a single evaluation of the forces per step, so
+     * springs and orbits stay stable at much larger steps.
+     */
+    public static final ParticleIntegrator VERLET = new Verlet();
+
+    /**
+     * Classic fourth order Runge-Kutta: four evaluations of the forces
+     * per step, the most accurate for smooth forces, though not
+     * symplectic.
+     */
+    public static final ParticleIntegrator RK4 = new RungeKutta();
+
+    /**
+     * A kernel over a range of particles.
+     */
+    interface Kernel {
+        void run(int from, int to);
+    }
+
+    private final int order;
+
+    /**
+     * Creates a method of the given order, as given by
+     * {@link #getOrder()}.
+     */
+    protected ParticleIntegrator(int order) {
+        this.order = order;
+    }
+
+    /**
+     * Gets the order of the method: halving the step divides the error
+     * of a whole simulation by two to the power of the order.
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Integrates a particle forward in time by the given amount, with
+     * its constant acceleration and accumulated force, and clears the
+     * force.
+     */
+    public abstract void integrate(Particle particle, float duration);
+
+    /**
+     * Integrates the particles of a buffer forward in time by the given
+     * amount, and clears their forces.
+     *
+     * @param particles the particles
+     * @param forces    the generators of the forces, or null for the
+     *                  forces in the columns only
+     * @param duration  the duration of the step
+     * @param pool      the pool running the kernels, or null to run them
+     *                  on the calling thread
+     */
+    public abstract void integrate(ParticleBuffer particles, ParticleForceRegistry forces,
+                                   float duration, ForkJoinPool pool);
+
+    static void updateForces(ParticleBuffer particles, ParticleForceRegistry forces,
+                             float duration, ForkJoinPool pool) {
+        if (forces != null)
+            forces.updateForces(particles, duration, pool);
+    }
+
+    /**
+     * Runs a kernel over every particle of a buffer, in parallel chunks
+     * when given a pool.
+     */
+    static void run(ParticleBuffer particles, ForkJoinPool pool, Kernel kernel) {
+        if (pool == null || particles.count <= CHUNK_SIZE)
+            kernel.run(0, particles.count);
+        else
+            pool.invoke(new KernelTask(kernel, 0, particles.count));
+    }
+
+    /**
+     * Splits a range of particles in halves until it is small enough to
+     * be run by a single worker.
+     */
+    private static class KernelTask extends RecursiveAction {
+        private final Kernel kernel;
+        private final int from;
+        private final int to;
+
+        KernelTask(Kernel kernel, int from, int to) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                kernel.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new KernelTask(kernel, from, mid), new KernelTask(kernel, mid, to));
+        }
+    }
+
+    private static class ExplicitEuler extends ParticleIntegrator {
+
+        ExplicitEuler() {
+            super(1);
+        }
+
+        @Override
+        public void integrate(Particle particle, float duration) {
+            particle.integrate(duration);
+        }
+
+        @Override
+        public void integrate(ParticleBuffer particles, ParticleForceRegistry forces,
+                              float duration, ForkJoinPool pool) {
+            updateForces(particles, forces, duration, pool);
+            run(particles, pool, (from, to) -> particles.integrate(duration, from, to));
+        }
+    }
+
+    private static class SemiImplicitEuler extends ParticleIntegrator {
+
+        SemiImplicitEuler() {
+            super(1);
+        }
+
+        @Override
+        public void integrate(Particle particle, float duration) {
+            float w = particle.inverseMass;
+            if (w <= 0.0f)
+                return;
+            kick(particle, duration);
+            particle.position.add(particle.velocity.x * duration, particle.velocity.y * duration,
+                    particle.velocity.z * duration);
+            particle.clearAccumulator();
+        }
+
+        @Override
+        public void integrate(ParticleBuffer particles, ParticleForceRegistry forces,
+                              float duration, ForkJoinPool pool) {
+            updateForces(particles, forces, duration, pool);
+            run(particles, pool, (from, to) -> {
+                kick(particles, duration, from, to);
+                drift(particles, duration, from, to);
+            });
+        }
+    }
+
+    private static class Verlet extends ParticleIntegrator {
+
+        Verlet() {
+            super(2);
+        }
+
+        @Override
+        public void integrate(Particle particle, float duration) {
+            float w = particle.inverseMass;
+            if (w <= 0.0f)
+                return;
+            float half = duration * 0.5f;
+            particle.position.add(particle.velocity.x * half, particle.velocity.y * half,
+                    particle.velocity.z * half);
+            kick(particle, duration);
+            particle.position.add(particle.velocity.x * half, particle.velocity.y * half,
+                    particle.velocity.z * half);
+            particle.clearAccumulator();
+        }
+
+        @Override
+        public void integrate(ParticleBuffer particles, ParticleForceRegistry forces,
+                              float duration, ForkJoinPool pool) {
+            float half = duration * 0.5f;
+            run(particles, pool, (from, to) -> drift(particles, half, from, to));
+            updateForces(particles, forces, duration, pool);
+            run(particles, pool, (from, to) -> {
+                kick(particles, duration, from, to);
+                drift(particles, half, from, to);
+            });
+        }
+    }
+
+    private static class RungeKutta extends ParticleIntegrator {
+
+        RungeKutta() {
+            super(4);
+        }
+
+        /*
+         * The scratch columns of a buffer: the state at the start of the
+         * step, the forces held constant, and the weighted sums of the
+         * derivatives.
+         */
+        private static final int X0 = 0, V0 = 3, EXTERNAL = 6, SUM_X = 9, SUM_V = 12;
+        private static final int SCRATCH_COLUMNS = 15;
+
+        @Override
+        public void integrate(Particle particle, float duration) {
+            // With forces constant over the step the method is exact.
+            float w = particle.inverseMass;
+            if (w <= 0.0f)
+                return;
+            float ax = particle.acceleration.x + particle.forceAccum.x * w;
+            float ay = particle.acceleration.y + particle.forceAccum.y * w;
+            float az = particle.acceleration.z + particle.forceAccum.z * w;
+            float half = 0.5f * duration * duration;
+            particle.position.add(particle.velocity.x * duration + ax * half,
+                    particle.velocity.y * duration + ay * half,
+                    particle.velocity.z * duration + az * half);
+            kick(particle, duration);
+            particle.clearAccumulator();
+        }
+
+        @Override
+        public void integrate(ParticleBuffer particles, ParticleForceRegistry forces,
+                              float duration, ForkJoinPool pool) {
+            float[][] s = particles.getScratch(SCRATCH_COLUMNS);
+            run(particles, pool, (from, to) -> begin(particles, s, from, to));
+
+            for (int stage = 0; stage < 3; stage++) {
+                float weight = stage == 0 ? 1.0f : 2.0f;
+                float offset = stage == 2 ? duration : duration * 0.5f;
+                updateForces(particles, forces, duration, pool);
+                run(particles, pool, (from, to) -> stage(particles, s, weight, offset, from, to));
+            }
+            updateForces(particles, forces, duration, pool);
+            run(particles, pool, (from, to) -> end(particles, s, duration, from, to));
+        }
+
+        /**
+         * Keeps the state at the start of the step and the forces in the
+         * columns, and clears the sums.
+         */
+        private static void begin(ParticleBuffer p, float[][] s, int from, int to) {
+            for (int i = from; i < to; i++) {
+                s[X0][i] = p.px[i];
+                s[X0 + 1][i] = p.py[i];
+                s[X0 + 2][i] = p.pz[i];
+                s[V0][i] = p.vx[i];
+                s[V0 + 1][i] = p.vy[i];
+                s[V0 + 2][i] = p.vz[i];
+                s[EXTERNAL][i] = p.fx[i];
+                s[EXTERNAL + 1][i] = p.fy[i];
+                s[EXTERNAL + 2][i] = p.fz[i];
+                s[SUM_X][i] = s[SUM_X + 1][i] = s[SUM_X + 2][i] = 0.0f;
+                s[SUM_V][i] = s[SUM_V + 1][i] = s[SUM_V + 2][i] = 0.0f;
+            }
+        }
+
+        /**
+         * Adds the derivative at the current state to the sums, and moves
+         * to the state the next derivative is taken at.
+         */
+        private static void stage(ParticleBuffer p, float[][] s, float weight, float offset,
+                                  int from, int to) {
+            for (int i = from; i < to; i++) {
+                float w = p.inverseMass[i];
+                if (w > 0.0f) {
+                    float ax = p.fx[i] * w, ay = p.fy[i] * w, az = p.fz[i] * w;
+                    s[SUM_X][i] += weight * p.vx[i];
+                    s[SUM_X + 1][i] += weight * p.vy[i];
+                    s[SUM_X + 2][i] += weight * p.vz[i];
+                    s[SUM_V][i] += weight * ax;
+                    s[SUM_V + 1][i] += weight * ay;
+                    s[SUM_V + 2][i] += weight * az;
+                    p.px[i] = s[X0][i] + p.vx[i] * offset;
+                    p.py[i] = s[X0 + 1][i] + p.vy[i] * offset;
+                    p.pz[i] = s[X0 + 2][i] + p.vz[i] * offset;
+                    p.vx[i] = s[V0][i] + ax * offset;
+                    p.vy[i] = s[V0 + 1][i] + ay * offset;
+                    p.vz[i] = s[V0 + 2][i] + az * offset;
+                }
+                p.fx[i] = s[EXTERNAL][i];
+                p.fy[i] = s[EXTERNAL + 1][i];
+                p.fz[i] = s[EXTERNAL + 2][i];
+            }
+        }
+
+        /**
+         * Adds the last derivative and sets the state at the end of the
+         * step, damped.
+         */
+        private static void end(ParticleBuffer p, float[][] s, float duration, int from, int to) {
+            float sixth = duration / 6.0f;
+            float lastDamping = Float.NaN;
+            float drag = 1.0f;
+            for (int i = from; i < to; i++) {
+                float w = p.inverseMass[i];
+                if (w > 0.0f) {
+                    if (p.damping[i] != lastDamping) {
+                        lastDamping = p.damping[i];
+                        drag = (float) StrictMath.pow(lastDamping, duration);
+                    }
+                    p.px[i] = s[X0][i] + (s[SUM_X][i] + p.vx[i]) * sixth;
+                    p.py[i] = s[X0 + 1][i] + (s[SUM_X + 1][i] + p.vy[i]) * sixth;
+                    p.pz[i] = s[X0 + 2][i] + (s[SUM_X + 2][i] + p.vz[i]) * sixth;
+                    p.vx[i] = (s[V0][i] + (s[SUM_V][i] + p.fx[i] * w) * sixth) * drag;
+                    p.vy[i] = (s[V0 + 1][i] + (s[SUM_V + 1][i] + p.fy[i] * w) * sixth) * drag;
+                    p.vz[i] = (s[V0 + 2][i] + (s[SUM_V + 2][i] + p.fz[i] * w) * sixth) * drag;
+                }
+                p.fx[i] = p.fy[i] = p.fz[i] = 0.0f;
+            }
+        }
+    }
+
+    /**
+     * Updates the velocity of a particle from its acceleration and force
+     * and damps it.
+     */
+    static void kick(Particle particle, float duration) {
+        float w = particle.inverseMass;
+        float drag = (float) StrictMath.pow(particle.damping, duration);
+        Vector3f velocity = particle.velocity;
+        velocity.x = (velocity.x + (particle.acceleration.x + particle.forceAccum.x * w) * duration) * drag;
+        velocity.y = (velocity.y + (particle.acceleration.y + particle.forceAccum.y * w) * duration) * drag;
+        velocity.z = (velocity.z + (particle.acceleration.z + particle.forceAccum.z * w) * duration) * drag;
+    }
+
+    /**
+     * Updates the velocity of a range of particles from their forces and
+     * damps it.
+     */
+    static void kick(ParticleBuffer p, float duration, int from, int to) {
+        float lastDamping = Float.NaN;
+        float drag = 1.0f;
+        for (int i = from; i < to; i++) {
+            float w = p.inverseMass[i];
+            if (w > 0.0f) {
+                if (p.damping[i] != lastDamping) {
+                    lastDamping = p.damping[i];
+                    drag = (float) StrictMath.pow(lastDamping, duration);
+                }
+                p.vx[i] = (p.vx[i] + p.fx[i] * w * duration) * drag;
+                p.vy[i] = (p.vy[i] + p.fy[i] * w * duration) * drag;
+                p.vz[i] = (p.vz[i] + p.fz[i] * w * duration) * drag;
+            }
+            p.fx[i] = p.fy[i] = p.fz[i] = 0.0f;
+        }
+    }
+
+    /**
+     * Moves a range of particles by their velocity.
+     */
+    static void drift(ParticleBuffer p, float duration, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (p.inverseMass[i] > 0.0f) {
+                p.px[i] += p.vx[i] * duration;
+                p.py[i] += p.vy[i] * duration;
+                p.pz[i] += p.vz[i] * duration;
+            }
+        }
+    }
+}
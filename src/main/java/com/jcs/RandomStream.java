@@ -0,0 +1,79 @@
+package com.jcs;
+
+/**
+ * A small, fast pseudo random number generator (SplitMix64) whose
+ * sequence depends only on its seed and stream index.
+ * <p>
+ * Unlike a shared {@link java.util.Random}, every user of randomness
+ * gets its own stream, so the numbers one system draws do not depend on
+ * how many another system drew before it, nor on which thread got there
+ * first. Two runs seeded alike draw the same numbers.
+ */
+public class RandomStream {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param seed   the seed shared by all the streams of a simulation
+     * @param stream the index of this stream
+     */
+    public RandomStream(long seed, int stream) {
+        this.state = mix(seed + mix(stream * GOLDEN_GAMMA));
+    }
+
+    /**
+     * Returns the next 64 random bits.
+     */
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    /**
+     * Returns a random int between zero (inclusive) and the given bound
+     * (exclusive).
+     */
+    public int nextInt(int bound) {
+        assert (bound > 0);
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * Returns a random float between zero (inclusive) and one
+     * (exclusive).
+     */
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    /**
+     * Returns a random float between the given bounds.
+     */
+    public float nextFloat(float min, float max) {
+        return (max - min) * nextFloat() + min;
+    }
+
+    /**
+     * Gets the internal state of the stream, to save it.
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Sets the internal state of the stream, to restore it.
+     */
+    public void setState(long state) {
+        this.state = state;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
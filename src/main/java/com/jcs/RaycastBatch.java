@@ -0,0 +1,282 @@
+package com.jcs;
+
+import org.joml.Intersectionf;
+import org.joml.Vector2f;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch of rays cast together against a {@link Broadphase}.
+ * <p>
+ * Rays and results are held in packed arrays rather than one object per
+ * ray, so a batch can be filled once, reused every frame and executed
+ * across all the cores of the machine. Before executing, the rays are
+ * grouped by the octant of their direction: rays in the same octant
+ * walk the sweep list in the same direction and touch the same part of
+ * it, which keeps the caches warm.
+ * <p>
+ * The broadphase is only read while the batch executes, so it must not
+ * be updated until {@link #execute(Broadphase)} returns.
+ */
+public class RaycastBatch {
+
+    /**
+     * The number of rays a single task casts before the batch stops
+     * splitting the work.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Holds the maximum number of rays of the batch.
+     */
+    public final int capacity;
+
+    /**
+     * Holds the number of rays currently in the batch.
+     */
+    public int count;
+
+    /**
+     * Holds the maximum distance along each ray a hit is reported at.
+     */
+    public float maxDistance = Float.POSITIVE_INFINITY;
+
+    /**
+     * Holds the origin of each ray, three floats per ray.
+     */
+    public final float[] origins;
+
+    /**
+     * Holds the normalised direction of each ray, three floats per ray.
+     */
+    public final float[] directions;
+
+    /**
+     * Holds, after execution, the distance to the closest hit of each
+     * ray, or {@link Float#POSITIVE_INFINITY} if the ray hit nothing.
+     */
+    public final float[] distances;
+
+    /**
+     * Holds, after execution, the broadphase index of the primitive hit
+     * by each ray, or -1 if the ray hit nothing. The primitive can be
+     * fetched with {@link Broadphase#getPrimitive(int)}.
+     */
+    public final int[] bodies;
+
+    /**
+     * Holds, after execution, the surface normal at the hit point of each
+     * ray, three floats per ray.
+     */
+    public final float[] normals;
+
+    /**
+     * Holds the ray indices grouped by direction octant.
+     */
+    private final int[] order;
+
+    /**
+     * Creates a new batch able to hold the given number of rays.
+     *
+     * @param capacity the maximum number of rays
+     */
+    public RaycastBatch(int capacity) {
+        this.capacity = capacity;
+        this.origins = new float[capacity * 3];
+        this.directions = new float[capacity * 3];
+        this.distances = new float[capacity];
+        this.bodies = new int[capacity];
+        this.normals = new float[capacity * 3];
+        this.order = new int[capacity];
+    }
+
+    /**
+     * Removes all the rays from the batch.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a ray to the batch. The direction does not need to be
+     * normalised.
+     *
+     * @return the index of the ray, used to read its results
+     */
+    public int add(float ox, float oy, float oz, float dx, float dy, float dz) {
+        if (count == capacity)
+            throw new IllegalStateException("Raycast batch is full");
+
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        assert (length > 0.0f);
+
+        int i = count++;
+        origins[i * 3] = ox;
+        origins[i * 3 + 1] = oy;
+        origins[i * 3 + 2] = oz;
+        directions[i * 3] = dx / length;
+        directions[i * 3 + 1] = dy / length;
+        directions[i * 3 + 2] = dz / length;
+        return i;
+    }
+
+    /**
+     * Casts every ray of the batch using the common fork join pool.
+     *
+     * @param broadphase the broadphase to cast the rays against
+     */
+    public void execute(Broadphase broadphase) {
+        execute(broadphase, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Casts every ray of the batch in parallel on the given pool and
+     * waits until all of them have been resolved.
+     *
+     * @param broadphase the broadphase to cast the rays against
+     * @param pool       the pool running the ray tasks, or null to cast
+     *                   them all on the calling thread
+     */
+    public void execute(Broadphase broadphase, ForkJoinPool pool) {
+        sortByOctant();
+        if (pool == null || count <= CHUNK_SIZE)
+            castRange(broadphase, 0, count, new Vector2f());
+        else
+            pool.invoke(new CastTask(broadphase, 0, count));
+    }
+
+    /**
+     * Orders the rays by the sign bits of their direction with a single
+     * counting sort pass.
+     */
+    private void sortByOctant() {
+        int[] offsets = new int[9];
+        for (int i = 0; i < count; i++)
+            offsets[octant(i) + 1]++;
+        for (int i = 1; i < offsets.length; i++)
+            offsets[i] += offsets[i - 1];
+        for (int i = 0; i < count; i++)
+            order[offsets[octant(i)]++] = i;
+    }
+
+    private int octant(int ray) {
+        int octant = 0;
+        if (directions[ray * 3] < 0) octant |= 1;
+        if (directions[ray * 3 + 1] < 0) octant |= 2;
+        if (directions[ray * 3 + 2] < 0) octant |= 4;
+        return octant;
+    }
+
+    private void castRange(Broadphase broadphase, int from, int to, Vector2f result) {
+        for (int i = from; i < to; i++)
+            cast(broadphase, order[i], result);
+    }
+
+    /**
+     * Casts a single ray. The sweep list is walked from the origin of the
+     * ray in the direction it travels along x, and the walk stops as soon
+     * as the remaining spheres start further away than the closest hit.
+     */
+    private void cast(Broadphase broadphase, int ray, Vector2f result) {
+        float ox = origins[ray * 3], oy = origins[ray * 3 + 1], oz = origins[ray * 3 + 2];
+        float dx = directions[ray * 3], dy = directions[ray * 3 + 1], dz = directions[ray * 3 + 2];
+
+        float[] centres = broadphase.getCentres();
+        float[] radii = broadphase.getRadii();
+        float maxRadius = broadphase.getMaxRadius();
+        int n = broadphase.getCount();
+
+        float best = maxDistance;
+        int hit = -1;
+
+        if (dx >= 0.0f) {
+            for (int j = broadphase.lowerBound(ox - maxRadius); j < n; j++) {
+                if (centres[j * 3] - maxRadius > ox + reach(dx, best))
+                    break;
+                float t = intersect(ox, oy, oz, dx, dy, dz, centres, radii, j, result);
+                if (t < best) {
+                    best = t;
+                    hit = j;
+                }
+            }
+        } else {
+            for (int j = broadphase.lowerBound(Math.nextUp(ox + maxRadius)) - 1; j >= 0; j--) {
+                if (centres[j * 3] + maxRadius < ox + reach(dx, best))
+                    break;
+                float t = intersect(ox, oy, oz, dx, dy, dz, centres, radii, j, result);
+                if (t < best) {
+                    best = t;
+                    hit = j;
+                }
+            }
+        }
+
+        bodies[ray] = hit;
+        if (hit < 0) {
+            distances[ray] = Float.POSITIVE_INFINITY;
+            normals[ray * 3] = normals[ray * 3 + 1] = normals[ray * 3 + 2] = 0.0f;
+            return;
+        }
+
+        distances[ray] = best;
+        if (best == 0.0f) {
+            // The ray starts inside the sphere, so push it straight back.
+            normals[ray * 3] = -dx;
+            normals[ray * 3 + 1] = -dy;
+            normals[ray * 3 + 2] = -dz;
+        } else {
+            float inverseRadius = 1.0f / radii[hit];
+            normals[ray * 3] = (ox + dx * best - centres[hit * 3]) * inverseRadius;
+            normals[ray * 3 + 1] = (oy + dy * best - centres[hit * 3 + 1]) * inverseRadius;
+            normals[ray * 3 + 2] = (oz + dz * best - centres[hit * 3 + 2]) * inverseRadius;
+        }
+    }
+
+    /**
+     * Returns how far along x a ray travels within the given distance,
+     * taking care not to multiply a zero direction by infinity.
+     */
+    private static float reach(float d, float distance) {
+        return d == 0.0f ? 0.0f : d * distance;
+    }
+
+    /**
+     * Returns the distance along the ray to the given sphere, zero if the
+     * origin is inside it, or infinity if the ray misses it.
+     */
+    private static float intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+                                   float[] centres, float[] radii, int j, Vector2f result) {
+        float r = radii[j];
+        if (!Intersectionf.intersectRaySphere(ox, oy, oz, dx, dy, dz,
+                centres[j * 3], centres[j * 3 + 1], centres[j * 3 + 2], r * r, result))
+            return Float.POSITIVE_INFINITY;
+        return Math.max(result.x, 0.0f);
+    }
+
+    /**
+     * Splits a range of the sorted rays in halves until it is small
+     * enough to be cast by a single worker.
+     */
+    private class CastTask extends RecursiveAction {
+        private final Broadphase broadphase;
+        private final int from;
+        private final int to;
+
+        CastTask(Broadphase broadphase, int from, int to) {
+            this.broadphase = broadphase;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                castRange(broadphase, from, to, new Vector2f());
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CastTask(broadphase, from, mid), new CastTask(broadphase, mid, to));
+        }
+    }
+}
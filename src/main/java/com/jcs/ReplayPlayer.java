@@ -0,0 +1,263 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plays back a session recorded by a {@link ReplayRecorder}.
+ * <p>
+ * When the file is opened its records are scanned once to index the
+ * keyframes. Seeking to a step restores the world from the nearest
+ * keyframe before it and then runs the recorded steps up to the target,
+ * headless and as fast as the world can step, feeding each step the
+ * commands recorded for it.
+ * <p>
+ * Whenever a keyframe is passed while fast forwarding, the state hash of
+ * the world is compared with the recorded one. The first step where they
+ * differ is reported by {@link #getDesyncFrame()}, which narrows a desync
+ * down to a single keyframe interval. As the hash covers the random
+ * streams, a stream drawn from outside the steps, by code the player
+ * does not run, also shows up as a desync.
+ */
+public class ReplayPlayer implements Closeable {
+
+    private final FileChannel channel;
+    private final long size;
+
+    private int keyframeCount;
+    private int[] keyframeFrames = new int[16];
+    private long[] keyframeOffsets = new long[16];
+    private int lastFrame;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long bufferStart;
+
+    private int desyncFrame = -1;
+
+    /**
+     * Opens a recording and indexes its keyframes.
+     *
+     * @param path the file written by a recorder
+     *
+     * @throws IOException if the file cannot be read or is not a
+     *                     recording
+     */
+    public ReplayPlayer(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        buffer.limit(0);
+
+        ByteBuffer header = read(0, 8);
+        if (header.getInt() != ReplayRecorder.MAGIC)
+            throw new IOException("Not a replay file: " + path);
+        int version = header.getInt();
+        if (version != ReplayRecorder.VERSION)
+            throw new IOException("Unknown replay version " + version);
+
+        index();
+    }
+
+    /**
+     * Gets the step of the first keyframe, the earliest step playback can
+     * start from.
+     */
+    public int getFirstFrame() {
+        return keyframeCount == 0 ? -1 : keyframeFrames[0];
+    }
+
+    /**
+     * Gets the last step in the recording.
+     */
+    public int getLastFrame() {
+        return lastFrame;
+    }
+
+    /**
+     * Gets the first step at which a keyframe did not match the replayed
+     * world, or -1 if every keyframe passed so far matched.
+     */
+    public int getDesyncFrame() {
+        return desyncFrame;
+    }
+
+    /**
+     * Brings the world to the state it had at the given step: restores
+     * the last keyframe at or before it, then replays the recorded steps.
+     *
+     * @param world the world, set up like the recorded one, with the
+     *              same templates, and in deterministic mode
+     * @param frame the step to seek to
+     *
+     * @return the step reached, lower than asked if the recording ends
+     * earlier
+     */
+    public int seek(World world, int frame) throws IOException {
+        int keyframe = findKeyframe(frame);
+        if (keyframe < 0)
+            throw new IllegalArgumentException("No keyframe at or before step " + frame);
+        return play(world, keyframe, frame);
+    }
+
+    /**
+     * Restores the first keyframe and replays the whole recording,
+     * checking every keyframe on the way.
+     *
+     * @return the last step reached
+     */
+    public int playAll(World world) throws IOException {
+        if (keyframeCount == 0)
+            throw new IllegalStateException("The recording holds no keyframe");
+        desyncFrame = -1;
+        return play(world, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Restores the given keyframe, then runs the recorded steps that
+     * follow it up to the target step.
+     */
+    private int play(World world, int keyframe, int target) throws IOException {
+        long offset = keyframeOffsets[keyframe];
+        int length = read(offset + 1, 4).getInt();
+        ByteBuffer payload = read(offset + ReplayRecorder.RECORD_HEADER, length);
+        payload.getInt();
+        payload.getLong();
+        WorldState.read(world, payload);
+
+        return fastForward(world, offset + ReplayRecorder.RECORD_HEADER + length, target);
+    }
+
+    /**
+     * Runs the recorded steps that follow the given offset, until the
+     * world reaches the target step.
+     */
+    private int fastForward(World world, long offset, int target) throws IOException {
+        CommandQueue commands = world.getCommands();
+        float pendingDuration = 0.0f;
+        boolean pending = false;
+
+        while (offset < size) {
+            ByteBuffer header = read(offset, ReplayRecorder.RECORD_HEADER);
+            byte type = header.get();
+            int length = header.getInt();
+            ByteBuffer payload = read(offset + ReplayRecorder.RECORD_HEADER, length);
+
+            if (type == ReplayRecorder.STEP) {
+                int frame = payload.getInt();
+                float duration = payload.getFloat();
+                if (pending)
+                    world.step(pendingDuration);
+                pending = false;
+                if (frame > target)
+                    return world.getFrame();
+                pendingDuration = duration;
+                pending = true;
+            } else if (type == ReplayRecorder.COMMAND) {
+                commands.offer(payload.getInt(), payload.getInt(), payload.getInt(),
+                        payload.getFloat(), payload.getFloat(), payload.getFloat(),
+                        payload.getFloat(), payload.getFloat(), payload.getFloat());
+            } else if (type == ReplayRecorder.KEYFRAME) {
+                if (pending) {
+                    world.step(pendingDuration);
+                    pending = false;
+                }
+                int frame = payload.getInt();
+                long hash = payload.getLong();
+                if (desyncFrame < 0 && frame == world.getFrame() && hash != world.getStateHash())
+                    desyncFrame = frame;
+            }
+
+            offset += ReplayRecorder.RECORD_HEADER + length;
+        }
+
+        if (pending)
+            world.step(pendingDuration);
+        return world.getFrame();
+    }
+
+    /**
+     * Scans the records once to find the keyframes and the last step.
+     */
+    private void index() throws IOException {
+        long offset = 8;
+        while (offset + ReplayRecorder.RECORD_HEADER <= size) {
+            ByteBuffer header = read(offset, ReplayRecorder.RECORD_HEADER);
+            byte type = header.get();
+            int length = header.getInt();
+            if (offset + ReplayRecorder.RECORD_HEADER + length > size)
+                break; // A record cut short by a crash ends the recording.
+
+            if (type == ReplayRecorder.STEP) {
+                lastFrame = read(offset + ReplayRecorder.RECORD_HEADER, 4).getInt();
+            } else if (type == ReplayRecorder.KEYFRAME) {
+                int frame = read(offset + ReplayRecorder.RECORD_HEADER, 4).getInt();
+                if (keyframeCount == keyframeFrames.length) {
+                    keyframeFrames = Arrays.copyOf(keyframeFrames, keyframeCount * 2);
+                    keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+                }
+                keyframeFrames[keyframeCount] = frame;
+                keyframeOffsets[keyframeCount] = offset;
+                keyframeCount++;
+                lastFrame = Math.max(lastFrame, frame);
+            }
+
+            offset += ReplayRecorder.RECORD_HEADER + length;
+        }
+    }
+
+    /**
+     * Returns the index of the last keyframe at or before the given step,
+     * or -1 if there is none.
+     */
+    private int findKeyframe(int frame) {
+        int lo = 0, hi = keyframeCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyframeFrames[mid] <= frame)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Returns a buffer holding the given bytes of the file. Reads go
+     * through a window of the file kept in memory, so walking the records
+     * in order only touches the disk once per window.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        long bufferEnd = bufferStart + buffer.limit();
+        if (position < bufferStart || position + length > bufferEnd) {
+            if (length > buffer.capacity())
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.clear();
+            bufferStart = position;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    break;
+            }
+            buffer.flip();
+            if (buffer.limit() < length)
+                throw new IOException("Unexpected end of replay file");
+        }
+
+        ByteBuffer slice = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = (int) (position - bufferStart);
+        slice.position(start);
+        slice.limit(start + length);
+        return slice;
+    }
+}
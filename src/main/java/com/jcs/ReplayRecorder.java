@@ -0,0 +1,247 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the inputs of a deterministic {@link World} into an append
+ * only binary file, so the session can be replayed later by a
+ * {@link ReplayPlayer}.
+ * <p>
+ * Only what cannot be worked out again is logged: the size of every
+ * step and the commands executed at its start, that is spawns, despawns,
+ * forces, impulses and state changes. Every few steps a keyframe with
+ * the full {@link WorldState} is added, so playback can start close to
+ * any step instead of from the beginning.
+ * <p>
+ * The stepping thread does not wait on the disk. Records are appended
+ * to a buffer in memory; full buffers are handed to a background thread
+ * that writes them through a {@link FileChannel} and gives them back.
+ * Only when the disk falls behind by all the buffers of the pool does
+ * the stepping thread wait for one to come back.
+ * <p>
+ * The file starts with a header (magic number, version) followed by
+ * records, each made of a type byte, the length of its payload and the
+ * payload itself:
+ * <ul>
+ * <li>step: the step number and its duration;</li>
+ * <li>command: the opcode, two ints and six floats of a command;</li>
+ * <li>keyframe: the step number, the state hash and the world state.</li>
+ * </ul>
+ */
+public class ReplayRecorder implements Closeable {
+
+    static final int MAGIC = 0x4a435352;
+    static final int VERSION = 2;
+
+    static final byte STEP = 1;
+    static final byte COMMAND = 2;
+    static final byte KEYFRAME = 3;
+
+    static final int RECORD_HEADER = 1 + 4;
+    static final int STEP_BYTES = 4 + 4;
+    static final int COMMAND_BYTES = 3 * 4 + 6 * 4;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BUFFER_COUNT = 4;
+
+    /**
+     * Tells the writer thread to stop.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * Holds the number of steps between two keyframes.
+     */
+    public final int keyframeInterval;
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> fullBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final Thread writer;
+
+    private ByteBuffer current;
+
+    /**
+     * Holds the first error met by the writer thread, reported to the
+     * stepping thread on its next flush.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Creates a new recorder writing to the given file, replacing it if
+     * it exists. Attach it with {@link World#setRecorder}.
+     *
+     * @param path             the file to record to
+     * @param keyframeInterval the number of steps between two keyframes
+     */
+    public ReplayRecorder(Path path, int keyframeInterval) throws IOException {
+        this.keyframeInterval = keyframeInterval;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        for (int i = 0; i < BUFFER_COUNT; i++)
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+        current = freeBuffers.poll();
+        current.putInt(MAGIC).putInt(VERSION);
+
+        writer = new Thread(this::writeBuffers, "replay-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs the start of a step.
+     */
+    void beginStep(int frame, float duration) {
+        reserve(RECORD_HEADER + STEP_BYTES);
+        current.put(STEP).putInt(STEP_BYTES);
+        current.putInt(frame).putFloat(duration);
+    }
+
+    /**
+     * Logs a command executed at the start of the current step.
+     */
+    void recordCommand(int opcode, int target, int argument,
+                       float a, float b, float c, float d, float e, float f) {
+        reserve(RECORD_HEADER + COMMAND_BYTES);
+        current.put(COMMAND).putInt(COMMAND_BYTES);
+        current.putInt(opcode).putInt(target).putInt(argument);
+        current.putFloat(a).putFloat(b).putFloat(c).putFloat(d).putFloat(e).putFloat(f);
+    }
+
+    /**
+     * Logs the end of a step, adding a keyframe when one is due.
+     */
+    void endStep(World world) {
+        if (world.getFrame() % keyframeInterval == 0)
+            writeKeyframe(world);
+    }
+
+    /**
+     * Logs a keyframe of the current state of the world, and hands the
+     * buffered records to the writer thread.
+     */
+    void writeKeyframe(World world) {
+        int size = 4 + 8 + WorldState.size(world);
+        ByteBuffer target;
+        if (RECORD_HEADER + size > BUFFER_SIZE) {
+            // Too large for the pooled buffers: write it on its own.
+            flush();
+            target = ByteBuffer.allocate(RECORD_HEADER + size).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            reserve(RECORD_HEADER + size);
+            target = current;
+        }
+
+        target.put(KEYFRAME).putInt(size);
+        target.putInt(world.getFrame()).putLong(world.getStateHash());
+        WorldState.write(world, target);
+
+        if (target != current)
+            submit(target);
+        flush();
+    }
+
+    /**
+     * Hands the records buffered so far to the writer thread.
+     *
+     * @throws UncheckedIOException if the writer thread failed to write
+     */
+    public void flush() {
+        if (failure != null)
+            throw new UncheckedIOException(failure);
+        if (current.position() == 0)
+            return;
+
+        submit(current);
+        current = takeFreeBuffer();
+    }
+
+    /**
+     * Flushes the remaining records, waits for them to be written and
+     * closes the file. Detach the recorder from its world first.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            submit(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Makes sure the current buffer can take the given number of bytes.
+     */
+    private void reserve(int bytes) {
+        if (current.remaining() < bytes)
+            flush();
+    }
+
+    private void submit(ByteBuffer buffer) {
+        try {
+            fullBuffers.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while recording", e);
+        }
+    }
+
+    private ByteBuffer takeFreeBuffer() {
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while recording", e);
+        }
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void writeBuffers() {
+        try {
+            while (true) {
+                ByteBuffer buffer = fullBuffers.take();
+                if (buffer == END)
+                    break;
+
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+
+                // Pooled buffers go back to the stepping thread.
+                if (buffer.capacity() == BUFFER_SIZE && buffer.isDirect()) {
+                    buffer.clear();
+                    freeBuffers.put(buffer);
+                }
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
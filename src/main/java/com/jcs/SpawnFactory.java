@@ -0,0 +1,14 @@
+package com.jcs;
+
+/**
+ * Creates the primitives spawned into a world through its command
+ * queue, such as one kind of projectile.
+ */
+public interface SpawnFactory {
+
+    /**
+     * Creates a new primitive, with its own rigid body. The world sets
+     * its position and velocity afterwards.
+     */
+    CollisionSphere create();
+}
@@ -0,0 +1,227 @@
+package com.jcs;
+
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Publishes the positions and orientations of the primitives of a
+ * {@link World} after every step into a memory mapped file, so other
+ * processes on the same machine, such as a visualizer, can follow a
+ * headless simulation without sockets. They read it with a
+ * {@link StateExportReader}.
+ * <p>
+ * The file is a ring of slots, each holding a whole step. Every slot is
+ * guarded by its own sequence number, in the manner of a seqlock: the
+ * world makes it odd before writing the slot and even once done, and a
+ * reader copies the slot and only keeps the copy if the sequence number
+ * was the same even value before and after. The world never waits for
+ * readers: a reader too slow to copy a slot before the world comes back
+ * to it simply tries again with the latest one.
+ * <p>
+ * The file starts with a header: magic number, version, number of
+ * slots, maximum number of bodies per slot, size of a slot, then the
+ * number of steps published so far. A slot starts with its sequence
+ * number, the step number and the number of bodies, followed by the
+ * columns of ids, positions (x, y, z) and orientations (x, y, z, w of a
+ * unit quaternion). Everything is little endian.
+ */
+public class StateExport implements Closeable {
+
+    static final int MAGIC = 0x4a435358;
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 64;
+    static final int SLOT_HEADER_BYTES = 64;
+
+    /*
+     * Offsets of the header fields.
+     */
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int SLOT_COUNT_OFFSET = 8;
+    static final int MAX_BODIES_OFFSET = 12;
+    static final int SLOT_BYTES_OFFSET = 16;
+    static final int PUBLISHED_OFFSET = 24;
+
+    /*
+     * Offsets of the slot header fields.
+     */
+    static final int SEQUENCE_OFFSET = 0;
+    static final int FRAME_OFFSET = 8;
+    static final int COUNT_OFFSET = 12;
+
+    /**
+     * Written and read back to order memory accesses to the mapped file.
+     */
+    private static volatile int barrier;
+
+    /**
+     * Holds the maximum number of bodies in a slot. Bodies past it are
+     * not published.
+     */
+    public final int maxBodies;
+
+    private final int slotCount;
+    private final int slotBytes;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+
+    private final IntBuffer[] ids;
+    private final FloatBuffer[] positions;
+    private final FloatBuffer[] orientations;
+
+    private long published;
+
+    private final Vector3f centre = new Vector3f();
+    private final Quaternionf orientation = new Quaternionf();
+
+    /**
+     * Creates the export file, replacing it if it exists.
+     *
+     * @param path      the file to map, ideally on a memory backed file
+     *                  system such as /dev/shm
+     * @param slotCount the number of steps kept in the ring
+     * @param maxBodies the maximum number of bodies in a step
+     */
+    public StateExport(Path path, int slotCount, int maxBodies) throws IOException {
+        this.slotCount = slotCount;
+        this.maxBodies = maxBodies;
+        this.slotBytes = slotBytes(maxBodies);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_BYTES + (long) slotCount * slotBytes);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        ids = new IntBuffer[slotCount];
+        positions = new FloatBuffer[slotCount];
+        orientations = new FloatBuffer[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = slotOffset(slot, slotBytes);
+            ids[slot] = view(offset + idsOffset(), maxBodies * 4).asIntBuffer();
+            positions[slot] = view(offset + positionsOffset(maxBodies), maxBodies * 12).asFloatBuffer();
+            orientations[slot] = view(offset + orientationsOffset(maxBodies), maxBodies * 16).asFloatBuffer();
+        }
+
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+        mapped.putInt(VERSION_OFFSET, VERSION);
+        mapped.putInt(SLOT_COUNT_OFFSET, slotCount);
+        mapped.putInt(MAX_BODIES_OFFSET, maxBodies);
+        mapped.putInt(SLOT_BYTES_OFFSET, slotBytes);
+        mapped.putLong(PUBLISHED_OFFSET, 0L);
+    }
+
+    /**
+     * Publishes the current state of the world into the next slot of the
+     * ring. Called by the world after each step once attached with
+     * {@link World#setExport}.
+     */
+    public void publish(World world) {
+        int slot = (int) (published % slotCount);
+        int offset = slotOffset(slot, slotBytes);
+
+        mapped.putLong(offset + SEQUENCE_OFFSET, published * 2 + 1);
+        fullFence();
+
+        List<CollisionSphere> primitives = world.getPrimitives();
+        int count = Math.min(primitives.size(), maxBodies);
+        IntBuffer slotIds = ids[slot];
+        FloatBuffer slotPositions = positions[slot];
+        FloatBuffer slotOrientations = orientations[slot];
+        for (int i = 0; i < count; i++) {
+            CollisionSphere primitive = primitives.get(i);
+            primitive.getCentre(centre);
+            primitive.getTransform().getNormalizedRotation(orientation);
+
+            slotIds.put(i, primitive.id);
+            slotPositions.put(i * 3, centre.x);
+            slotPositions.put(i * 3 + 1, centre.y);
+            slotPositions.put(i * 3 + 2, centre.z);
+            slotOrientations.put(i * 4, orientation.x);
+            slotOrientations.put(i * 4 + 1, orientation.y);
+            slotOrientations.put(i * 4 + 2, orientation.z);
+            slotOrientations.put(i * 4 + 3, orientation.w);
+        }
+        mapped.putInt(offset + FRAME_OFFSET, world.getFrame());
+        mapped.putInt(offset + COUNT_OFFSET, count);
+
+        fullFence();
+        mapped.putLong(offset + SEQUENCE_OFFSET, published * 2 + 2);
+        published++;
+        fullFence();
+        mapped.putLong(PUBLISHED_OFFSET, published);
+    }
+
+    /**
+     * Gets the number of steps published so far.
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Closes the file. The mapping stays readable by other processes
+     * until they close it too.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Keeps the memory accesses made before it from being reordered with
+     * those made after it, including accesses to mapped memory. A
+     * volatile write keeps earlier accesses before it, and a volatile
+     * read of the same field keeps later accesses after it.
+     */
+    static void fullFence() {
+        barrier = 0;
+        if (barrier != 0)
+            throw new AssertionError();
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /*
+     * The layout of a slot, shared with StateExportReader.
+     */
+
+    static int slotBytes(int maxBodies) {
+        int bytes = SLOT_HEADER_BYTES + maxBodies * (4 + 12 + 16);
+        // Start every slot on its own cache line.
+        return (bytes + 63) & ~63;
+    }
+
+    static int slotOffset(int slot, int slotBytes) {
+        return HEADER_BYTES + slot * slotBytes;
+    }
+
+    static int idsOffset() {
+        return SLOT_HEADER_BYTES;
+    }
+
+    static int positionsOffset(int maxBodies) {
+        return SLOT_HEADER_BYTES + maxBodies * 4;
+    }
+
+    static int orientationsOffset(int maxBodies) {
+        return SLOT_HEADER_BYTES + maxBodies * (4 + 12);
+    }
+}
@@ -0,0 +1,176 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the steps published by a {@link StateExport}, possibly from
+ * another process.
+ * <p>
+ * A step is copied out of its slot into a {@link Frame} owned by the
+ * caller, and the copy is only kept if the world did not touch the slot
+ * meanwhile. The reader never makes the world wait.
+ */
+public class StateExportReader implements Closeable {
+
+    /**
+     * A step copied out of the export. The arrays grow as needed and are
+     * reused from one read to the next.
+     */
+    public static class Frame {
+
+        /**
+         * Holds the number of the step, counted from the first one
+         * published, so skipped steps can be noticed.
+         */
+        public long sequence;
+
+        /**
+         * Holds the step number of the world.
+         */
+        public int frame;
+
+        /**
+         * Holds the number of bodies.
+         */
+        public int count;
+
+        public int[] ids = new int[0];
+
+        /**
+         * Holds x, y and z of the centre of each body.
+         */
+        public float[] positions = new float[0];
+
+        /**
+         * Holds x, y, z and w of the orientation of each body.
+         */
+        public float[] orientations = new float[0];
+    }
+
+    /**
+     * The number of times a read is tried before giving up, when the
+     * world keeps overwriting the slot being read.
+     */
+    private static final int MAX_ATTEMPTS = 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final int slotCount;
+    private final int maxBodies;
+    private final int slotBytes;
+
+    /**
+     * Maps an export file for reading.
+     *
+     * @throws IOException if the file cannot be mapped or is not an
+     *                     export
+     */
+    public StateExportReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mapped.capacity() < StateExport.HEADER_BYTES
+                || mapped.getInt(StateExport.MAGIC_OFFSET) != StateExport.MAGIC)
+            throw new IOException("Not a state export file: " + path);
+        int version = mapped.getInt(StateExport.VERSION_OFFSET);
+        if (version != StateExport.VERSION)
+            throw new IOException("Unknown state export version " + version);
+
+        slotCount = mapped.getInt(StateExport.SLOT_COUNT_OFFSET);
+        maxBodies = mapped.getInt(StateExport.MAX_BODIES_OFFSET);
+        slotBytes = mapped.getInt(StateExport.SLOT_BYTES_OFFSET);
+    }
+
+    /**
+     * Gets the number of steps published so far.
+     */
+    public long getPublished() {
+        long published = mapped.getLong(StateExport.PUBLISHED_OFFSET);
+        StateExport.fullFence();
+        return published;
+    }
+
+    /**
+     * Copies the latest step published.
+     *
+     * @param frame the frame to copy into
+     *
+     * @return false if nothing was published yet, or if the world kept
+     * overwriting the slots faster than they could be copied
+     */
+    public boolean readLatest(Frame frame) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long published = getPublished();
+            if (published == 0)
+                return false;
+            if (read(published - 1, frame))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the given step, counted from the first one published.
+     *
+     * @param sequence the number of the step
+     * @param frame    the frame to copy into
+     *
+     * @return false if the step is not in the ring, because it was not
+     * published yet or was already overwritten
+     */
+    public boolean read(long sequence, Frame frame) {
+        int offset = StateExport.slotOffset((int) (sequence % slotCount), slotBytes);
+        long expected = sequence * 2 + 2;
+
+        long before = mapped.getLong(offset + StateExport.SEQUENCE_OFFSET);
+        if (before != expected)
+            return false;
+        StateExport.fullFence();
+
+        int count = mapped.getInt(offset + StateExport.COUNT_OFFSET);
+        if (count < 0 || count > maxBodies)
+            return false;
+        ensureCapacity(frame, count);
+        frame.sequence = sequence;
+        frame.frame = mapped.getInt(offset + StateExport.FRAME_OFFSET);
+        frame.count = count;
+
+        IntBuffer ids = view(offset + StateExport.idsOffset()).asIntBuffer();
+        ids.get(frame.ids, 0, count);
+        FloatBuffer positions = view(offset + StateExport.positionsOffset(maxBodies)).asFloatBuffer();
+        positions.get(frame.positions, 0, count * 3);
+        FloatBuffer orientations = view(offset + StateExport.orientationsOffset(maxBodies)).asFloatBuffer();
+        orientations.get(frame.orientations, 0, count * 4);
+
+        StateExport.fullFence();
+        return mapped.getLong(offset + StateExport.SEQUENCE_OFFSET) == expected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void ensureCapacity(Frame frame, int count) {
+        if (frame.ids.length >= count)
+            return;
+        frame.ids = new int[count];
+        frame.positions = new float[count * 3];
+        frame.orientations = new float[count * 4];
+    }
+}
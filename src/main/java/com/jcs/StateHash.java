@@ -0,0 +1,132 @@
+package com.jcs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes a 64 bit hash of the simulation state, used to check cheaply
+ * that two runs of a simulation are still identical without comparing
+ * the whole state.
+ * <p>
+ * Each body is hashed on its own, from its id and the exact bits of its
+ * position and velocity, and the body hashes are added together. The
+ * sum does not depend on the order bodies are visited in, so the hash
+ * costs a single pass over the bodies and needs no sorting. Random
+ * streams and contact manifolds are summed the same way, so that the
+ * hash of a world covers every section a {@link WorldState} saves.
+ */
+public final class StateHash {
+
+    private static final long PRIME1 = 0x9e3779b185ebca87L;
+    private static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME3 = 0x165667b19e3779f9L;
+
+    private StateHash() {
+    }
+
+    /**
+     * Returns the hash of a single body.
+     *
+     * @param id   the id of the body
+     * @param body the body
+     */
+    public static long hashBody(int id, Particle body) {
+        long hash = id * PRIME3;
+        hash = round(hash, pack(body.position.x, body.position.y));
+        hash = round(hash, pack(body.position.z, body.velocity.x));
+        hash = round(hash, pack(body.velocity.y, body.velocity.z));
+        return avalanche(hash);
+    }
+
+    /**
+     * Returns the hash of a set of primitives and their bodies.
+     *
+     * @param frame      the step the state belongs to
+     * @param primitives the primitives, in any order
+     */
+    public static long hash(int frame, Iterable<? extends CollisionPrimitive> primitives) {
+        long hash = avalanche(frame * PRIME1);
+        for (CollisionPrimitive primitive : primitives)
+            hash += hashBody(primitive.id, primitive.body);
+        return hash;
+    }
+
+    /**
+     * Returns the hash of the id, template and spawn step of a body.
+     */
+    public static long hashSpawn(int id, int template, int spawnFrame) {
+        long hash = id * PRIME3;
+        hash = round(hash, ((long) template << 32) | (spawnFrame & 0xffffffffL));
+        return avalanche(hash);
+    }
+
+    /**
+     * Returns the hash of a random stream.
+     *
+     * @param stream the index of the stream
+     * @param state  the state of the stream
+     */
+    public static long hashStream(int stream, long state) {
+        return avalanche(round(stream * PRIME3, state));
+    }
+
+    /**
+     * Returns the hash of a contact manifold: its pair, the steps it
+     * spans and every saved field of its contacts, the accumulated
+     * impulses included.
+     */
+    static long hashManifold(ContactManifold m) {
+        long hash = m.key * PRIME3;
+        hash = round(hash, ((long) m.firstFrame << 32) | (m.lastFrame & 0xffffffffL));
+        hash = round(hash, ((long) m.contactCount << 1) | (m.touching ? 1 : 0));
+        for (int i = 0; i < m.contactCount; i++) {
+            Contact c = m.contacts[i];
+            hash = round(hash, pack(c.contactPoint.x, c.contactPoint.y));
+            hash = round(hash, pack(c.contactPoint.z, c.contactNormal.x));
+            hash = round(hash, pack(c.contactNormal.y, c.contactNormal.z));
+            hash = round(hash, pack(c.relativeContactPosition.x, c.relativeContactPosition.y));
+            hash = round(hash, pack(c.relativeContactPosition.z, c.penetration));
+            hash = round(hash, pack(c.normalImpulse, c.tangentImpulse1));
+            hash = round(hash, pack(c.tangentImpulse2, 0));
+        }
+        return avalanche(hash);
+    }
+
+    /**
+     * Returns the hash of the bytes of a buffer between its position and
+     * its limit, in order. The position is moved to the limit.
+     */
+    static long hashBytes(ByteBuffer buffer) {
+        long hash = buffer.remaining() * PRIME3;
+        while (buffer.remaining() >= 8)
+            hash = round(hash, buffer.getLong());
+        while (buffer.hasRemaining())
+            hash = round(hash, buffer.get());
+        return avalanche(hash);
+    }
+
+    /**
+     * Mixes a value into a hash. Unlike the sums above, the result
+     * depends on the order values are mixed in.
+     */
+    static long combine(long hash, long value) {
+        return avalanche(round(hash, value));
+    }
+
+    private static long pack(float a, float b) {
+        return ((long) Float.floatToIntBits(a) << 32) | (Float.floatToIntBits(b) & 0xffffffffL);
+    }
+
+    private static long round(long hash, long value) {
+        hash += value * PRIME2;
+        hash = Long.rotateLeft(hash, 31);
+        return hash * PRIME1;
+    }
+
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        return hash ^ (hash >>> 32);
+    }
+}
@@ -0,0 +1,262 @@
+package com.jcs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rebuilds on a client the state of the bodies replicated by a
+ * {@link StateReplicator} on the server.
+ * <p>
+ * Every packet decoded must be acknowledged to the server, which then
+ * uses the values it carried as baselines for the next packets. For that
+ * the replica keeps, for every body, the values it received in the last
+ * packets, so whichever of them the server picks as a baseline is at
+ * hand. Packets may arrive late or out of order: a body only takes the
+ * value of a packet newer than the last one it was updated by, a late
+ * packet coded against a baseline a newer one overwrote is dropped, and
+ * a removed body is remembered for as long as late packets about it are
+ * accepted, so they cannot bring it back.
+ */
+public class StateReplica {
+
+    private static final int WINDOW = StateReplicator.WINDOW;
+    private static final int COMPONENTS = StateReplicator.COMPONENTS;
+
+    /**
+     * What the client knows about a body.
+     */
+    private static class BodyHistory {
+        int latestSequence = -1;
+        int removedSequence = -1;
+        final int[] sequences = new int[WINDOW];
+        final int[] values = new int[WINDOW * COMPONENTS];
+
+        BodyHistory() {
+            Arrays.fill(sequences, -1);
+        }
+    }
+
+    public final float positionScale;
+    public final float velocityScale;
+
+    private final LongMap<BodyHistory> bodies = new LongMap<>();
+    private final int[] decoded = new int[COMPONENTS];
+
+    private int latestSequence = -1;
+    private int latestFrame;
+    private int bodyCount;
+
+    /**
+     * Holds the ids of the removed bodies still remembered, and the
+     * packet that removed each.
+     */
+    private int[] removedIds = new int[16];
+    private int[] removedSequences = new int[16];
+    private int removedCount;
+
+    /**
+     * Creates a new replica matching a replicator with the default
+     * scales.
+     */
+    public StateReplica() {
+        this(1024.0f, 128.0f);
+    }
+
+    /**
+     * Creates a new replica, with the same scales as the replicator.
+     */
+    public StateReplica(float positionScale, float velocityScale) {
+        this.positionScale = positionScale;
+        this.velocityScale = velocityScale;
+    }
+
+    /**
+     * Decodes a packet from the position of the buffer.
+     * <p>
+     * A late packet may be coded against a baseline the replica no longer
+     * holds, overwritten by a newer packet that arrived first. Such a
+     * packet is dropped whole, before anything is changed, and must not be
+     * acknowledged, so the server never codes against it.
+     *
+     * @return the sequence number of the packet, to acknowledge, or -1 if
+     *         it was dropped
+     */
+    public int decode(ByteBuffer buffer) {
+        int sequence = buffer.getInt();
+        int frame = buffer.getInt();
+
+        // Too late: the server no longer codes anything against it.
+        if (sequence <= latestSequence - WINDOW)
+            return -1;
+
+        int start = buffer.position();
+        if (!holdsBaselines(buffer, sequence))
+            return -1;
+        buffer.position(start);
+
+        if (sequence > latestSequence) {
+            latestSequence = sequence;
+            latestFrame = frame;
+            forgetRemoved();
+        }
+
+        int removals = StateReplicator.readVarint(buffer);
+        int id = 0;
+        for (int i = 0; i < removals; i++) {
+            id += StateReplicator.unzigzag(StateReplicator.readVarint(buffer));
+            remove(id, sequence);
+        }
+
+        int count = StateReplicator.readVarint(buffer);
+        id = 0;
+        for (int i = 0; i < count; i++) {
+            id += StateReplicator.unzigzag(StateReplicator.readVarint(buffer));
+            int age = StateReplicator.readVarint(buffer);
+            for (int c = 0; c < COMPONENTS; c++)
+                decoded[c] = StateReplicator.unzigzag(StateReplicator.readVarint(buffer));
+
+            BodyHistory body = bodies.get(idKey(id));
+            if (body == null) {
+                body = new BodyHistory();
+                bodies.put(idKey(id), body);
+                bodyCount++;
+            } else if (body.removedSequence >= 0) {
+                continue;
+            }
+
+            if (age > 0) {
+                int slot = (sequence - age) % WINDOW;
+                for (int c = 0; c < COMPONENTS; c++)
+                    decoded[c] += body.values[slot * COMPONENTS + c];
+            }
+
+            int slot = sequence % WINDOW;
+            body.sequences[slot] = sequence;
+            System.arraycopy(decoded, 0, body.values, slot * COMPONENTS, COMPONENTS);
+            if (sequence > body.latestSequence)
+                body.latestSequence = sequence;
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads the rest of a packet and tells whether every body in it that
+     * is not removed is coded against a baseline the replica holds.
+     */
+    private boolean holdsBaselines(ByteBuffer buffer, int sequence) {
+        int removals = StateReplicator.readVarint(buffer);
+        for (int i = 0; i < removals; i++)
+            StateReplicator.readVarint(buffer);
+
+        int count = StateReplicator.readVarint(buffer);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += StateReplicator.unzigzag(StateReplicator.readVarint(buffer));
+            int age = StateReplicator.readVarint(buffer);
+            for (int c = 0; c < COMPONENTS; c++)
+                StateReplicator.readVarint(buffer);
+            if (age == 0)
+                continue;
+
+            BodyHistory body = bodies.get(idKey(id));
+            if (body == null)
+                return false;
+            if (body.removedSequence >= 0)
+                continue;
+            int baseline = sequence - age;
+            if (body.sequences[baseline % WINDOW] != baseline)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the sequence number of the newest packet decoded.
+     */
+    public int getLatestSequence() {
+        return latestSequence;
+    }
+
+    /**
+     * Gets the step number of the newest packet decoded.
+     */
+    public int getLatestFrame() {
+        return latestFrame;
+    }
+
+    /**
+     * Gets the number of bodies known to the replica.
+     */
+    public int getBodyCount() {
+        return bodyCount;
+    }
+
+    /**
+     * Fills the given array with the latest position and velocity of a
+     * body.
+     *
+     * @param id    the id of the body
+     * @param state an array of six floats: x, y and z of the position,
+     *              then of the velocity
+     *
+     * @return false if the body is unknown
+     */
+    public boolean getState(int id, float[] state) {
+        BodyHistory body = bodies.get(idKey(id));
+        if (body == null || body.removedSequence >= 0)
+            return false;
+
+        int base = (body.latestSequence % WINDOW) * COMPONENTS;
+        for (int c = 0; c < 3; c++)
+            state[c] = body.values[base + c] / positionScale;
+        for (int c = 3; c < COMPONENTS; c++)
+            state[c] = body.values[base + c] / velocityScale;
+        return true;
+    }
+
+    /**
+     * Marks a body as removed. Ids are never given again, so the removal
+     * is final.
+     */
+    private void remove(int id, int sequence) {
+        BodyHistory body = bodies.get(idKey(id));
+        if (body == null) {
+            body = new BodyHistory();
+            bodies.put(idKey(id), body);
+        } else if (body.removedSequence >= 0) {
+            return;
+        } else {
+            bodyCount--;
+        }
+        body.removedSequence = sequence;
+
+        if (removedCount == removedIds.length) {
+            removedIds = Arrays.copyOf(removedIds, removedCount * 2);
+            removedSequences = Arrays.copyOf(removedSequences, removedCount * 2);
+        }
+        removedIds[removedCount] = id;
+        removedSequences[removedCount] = sequence;
+        removedCount++;
+    }
+
+    /**
+     * Drops the removed bodies no packet still accepted can mention.
+     */
+    private void forgetRemoved() {
+        int kept = 0;
+        for (int i = 0; i < removedCount; i++) {
+            if (removedSequences[i] <= latestSequence - WINDOW) {
+                bodies.remove(idKey(removedIds[i]));
+            } else {
+                removedIds[kept] = removedIds[i];
+                removedSequences[kept] = removedSequences[i];
+                kept++;
+            }
+        }
+        removedCount = kept;
+    }
+
+    private static long idKey(int id) {
+        return id + 1L;
+    }
+}
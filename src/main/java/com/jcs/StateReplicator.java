@@ -0,0 +1,422 @@
+package com.jcs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes the state of a {@link World} into compact packets for one
+ * client, on the server that owns the simulation. The client decodes
+ * them with a {@link StateReplica}.
+ * <p>
+ * Positions and velocities are quantized to a fixed precision, and each
+ * body is sent as the difference from its baseline: the last value of
+ * that body the client acknowledged having received. Differences are
+ * small for bodies that move little and are written as variable length
+ * integers, and bodies that did not change since their baseline are not
+ * sent at all. Since a baseline is only moved forward by
+ * acknowledgements, lost packets never leave the client decoding against
+ * a value it does not have.
+ * <p>
+ * When more bodies changed than fit in the byte budget of a packet, the
+ * most relevant ones are sent first. Every body accumulates its
+ * relevance each tick until it is sent, so distant bodies are sent less
+ * often but never starve.
+ * <p>
+ * A packet holds its sequence number and the step number, the ids of
+ * the bodies that left the world, then for each body sent: its id (as a
+ * difference from the previous one), the age of its baseline in packets
+ * (zero for none) and the six quantized components, as zigzag variable
+ * length integers.
+ */
+public class StateReplicator {
+
+    /**
+     * The number of packets a baseline stays usable for. The client keeps
+     * the values of this many packets per body.
+     */
+    static final int WINDOW = 32;
+
+    static final int COMPONENTS = 6;
+
+    /**
+     * The smallest size of a body entry: a byte for the id, the age and
+     * each component.
+     */
+    private static final int MIN_ENTRY_BYTES = 8;
+
+    private static final int HEADER_BYTES = 4 + 4 + 5 + 5;
+
+    /**
+     * Gives the relevance of a body to the client, such as the inverse of
+     * its distance to the player.
+     */
+    public interface Relevance {
+        float relevance(CollisionSphere primitive);
+    }
+
+    /**
+     * What the server knows about a body on the client.
+     */
+    private static class BodyState {
+        int id;
+        boolean sent;
+        boolean removed;
+        int seenTick;
+        int lastSentSequence = -1;
+        int baselineSequence = -1;
+        final int[] baseline = new int[COMPONENTS];
+        final int[] current = new int[COMPONENTS];
+        float priority;
+    }
+
+    /**
+     * The bodies sent in a packet, kept until it is acknowledged or too
+     * old.
+     */
+    private static class SentPacket {
+        int sequence = -1;
+        int count;
+        int[] ids = new int[64];
+        int[] values = new int[64 * COMPONENTS];
+        int removedCount;
+        int[] removed = new int[16];
+    }
+
+    /**
+     * Holds the number of bytes a packet may take.
+     */
+    public int budget = 1200;
+
+    /**
+     * Holds the relevance of bodies to the client, or null if they are
+     * all equally relevant.
+     */
+    public Relevance relevance;
+
+    /**
+     * Holds the scale applied to positions before rounding them; the
+     * precision of positions is its inverse.
+     */
+    public final float positionScale;
+
+    /**
+     * Holds the scale applied to velocities before rounding them.
+     */
+    public final float velocityScale;
+
+    private final LongMap<BodyState> bodies = new LongMap<>();
+    private final SentPacket[] sentPackets = new SentPacket[WINDOW];
+
+    private int sequence;
+    private int tick;
+
+    /*
+     * Scratch space of the encoder.
+     */
+    private BodyState[] candidates = new BodyState[64];
+    private long[] order = new long[64];
+    private BodyState[] selected = new BodyState[64];
+    private int[] removed = new int[16];
+    private int[] forgotten = new int[16];
+
+    /**
+     * Creates a new replicator with positions to the millimetre and
+     * velocities to the centimetre per second, roughly.
+     */
+    public StateReplicator() {
+        this(1024.0f, 128.0f);
+    }
+
+    /**
+     * Creates a new replicator.
+     *
+     * @param positionScale the number of steps per unit of position
+     * @param velocityScale the number of steps per unit of velocity
+     */
+    public StateReplicator(float positionScale, float velocityScale) {
+        this.positionScale = positionScale;
+        this.velocityScale = velocityScale;
+        for (int i = 0; i < WINDOW; i++)
+            sentPackets[i] = new SentPacket();
+    }
+
+    /**
+     * Encodes the next packet for the client at the position of the
+     * buffer, within the byte budget.
+     *
+     * @param world  the world to replicate
+     * @param buffer the buffer to write into, reused from one packet to
+     *               the next, with at least {@link #budget} bytes left
+     *
+     * @return the sequence number of the packet
+     */
+    public int encode(World world, ByteBuffer buffer) {
+        int packetSequence = sequence++;
+        tick++;
+        int candidateCount = collectChanges(world.getPrimitives());
+        int removedCount = collectRemovals();
+
+        // Removals come first, they are cheap and must not starve.
+        int remaining = budget - HEADER_BYTES;
+        int removedSent = Math.min(removedCount, remaining / 5);
+        remaining -= removedSent * 5;
+
+        int selectedCount = select(candidateCount, remaining, packetSequence);
+
+        SentPacket packet = sentPackets[packetSequence % WINDOW];
+        packet.sequence = packetSequence;
+        packet.count = 0;
+        packet.removedCount = 0;
+
+        buffer.putInt(packetSequence);
+        buffer.putInt(world.getFrame());
+
+        writeVarint(buffer, removedSent);
+        int previousId = 0;
+        for (int i = 0; i < removedSent; i++) {
+            int id = removed[i];
+            writeVarint(buffer, zigzag(id - previousId));
+            previousId = id;
+            recordRemoved(packet, id);
+        }
+
+        writeVarint(buffer, selectedCount);
+        previousId = 0;
+        for (int i = 0; i < selectedCount; i++) {
+            BodyState body = selected[i];
+            writeVarint(buffer, zigzag(body.id - previousId));
+            previousId = body.id;
+
+            int age = baselineAge(body, packetSequence);
+            writeVarint(buffer, age);
+            for (int c = 0; c < COMPONENTS; c++) {
+                int value = body.current[c];
+                writeVarint(buffer, zigzag(age > 0 ? value - body.baseline[c] : value));
+            }
+
+            body.sent = true;
+            body.lastSentSequence = packetSequence;
+            body.priority = 0.0f;
+            recordBody(packet, body);
+        }
+        return packetSequence;
+    }
+
+    /**
+     * Tells that the client received the packet of the given sequence
+     * number: the bodies it carried become their new baselines.
+     */
+    public void acknowledge(int packetSequence) {
+        SentPacket packet = sentPackets[packetSequence % WINDOW];
+        if (packet.sequence != packetSequence)
+            return;
+        packet.sequence = -1;
+
+        for (int i = 0; i < packet.count; i++) {
+            BodyState body = bodies.get(idKey(packet.ids[i]));
+            if (body == null || body.baselineSequence >= packetSequence)
+                continue;
+            body.baselineSequence = packetSequence;
+            System.arraycopy(packet.values, i * COMPONENTS, body.baseline, 0, COMPONENTS);
+        }
+        for (int i = 0; i < packet.removedCount; i++) {
+            BodyState body = bodies.get(idKey(packet.removed[i]));
+            if (body != null && body.removed)
+                bodies.remove(idKey(packet.removed[i]));
+        }
+    }
+
+    /**
+     * Quantizes the bodies of the world and lists those whose value
+     * differs from their baseline, adding their relevance to their
+     * priority.
+     *
+     * @return the number of candidates
+     */
+    private int collectChanges(List<CollisionSphere> primitives) {
+        int count = 0;
+        for (int i = 0; i < primitives.size(); i++) {
+            CollisionSphere primitive = primitives.get(i);
+            BodyState body = bodies.get(idKey(primitive.id));
+            if (body == null) {
+                body = new BodyState();
+                body.id = primitive.id;
+                bodies.put(idKey(primitive.id), body);
+            }
+            body.seenTick = tick;
+
+            Particle particle = primitive.body;
+            int[] q = body.current;
+            q[0] = Math.round(particle.position.x * positionScale);
+            q[1] = Math.round(particle.position.y * positionScale);
+            q[2] = Math.round(particle.position.z * positionScale);
+            q[3] = Math.round(particle.velocity.x * velocityScale);
+            q[4] = Math.round(particle.velocity.y * velocityScale);
+            q[5] = Math.round(particle.velocity.z * velocityScale);
+
+            // The client holds the baseline unless a newer value was sent
+            // since, which it may or may not have received.
+            if (body.baselineSequence >= 0 && body.lastSentSequence <= body.baselineSequence
+                    && Arrays.equals(q, body.baseline))
+                continue;
+
+            body.priority += relevance == null ? 1.0f : relevance.relevance(primitive);
+            if (count == candidates.length)
+                candidates = Arrays.copyOf(candidates, count * 2);
+            candidates[count++] = body;
+        }
+        return count;
+    }
+
+    /**
+     * Lists the bodies that left the world since the last tick, and
+     * those whose removal the client did not acknowledge yet.
+     *
+     * @return the number of removed ids
+     */
+    private int collectRemovals() {
+        int count = 0;
+        int forgottenCount = 0;
+        for (int slot = 0; slot < bodies.capacity(); slot++) {
+            BodyState body = bodies.valueAt(slot);
+            if (body == null || body.seenTick == tick)
+                continue;
+            if (!body.sent) {
+                // The client never heard of it; forget it after the scan.
+                if (forgottenCount == forgotten.length)
+                    forgotten = Arrays.copyOf(forgotten, forgottenCount * 2);
+                forgotten[forgottenCount++] = body.id;
+                continue;
+            }
+            body.removed = true;
+            if (count == removed.length)
+                removed = Arrays.copyOf(removed, count * 2);
+            removed[count++] = body.id;
+        }
+        for (int i = 0; i < forgottenCount; i++)
+            bodies.remove(idKey(forgotten[i]));
+        Arrays.sort(removed, 0, count);
+        return count;
+    }
+
+    /**
+     * Selects the candidates of highest priority that fit in the given
+     * number of bytes, and sorts them by id so ids are coded as small
+     * differences.
+     *
+     * @return the number of bodies selected
+     */
+    private int select(int candidateCount, int bytes, int packetSequence) {
+        if (order.length < candidateCount)
+            order = new long[Math.max(candidateCount, order.length * 2)];
+        for (int i = 0; i < candidateCount; i++) {
+            // Priorities are positive, so their bits sort like them.
+            order[i] = (long) Float.floatToIntBits(candidates[i].priority) << 32 | i;
+        }
+        Arrays.sort(order, 0, candidateCount);
+
+        if (selected.length < candidateCount)
+            selected = new BodyState[Math.max(candidateCount, selected.length * 2)];
+        int count = 0;
+        for (int i = candidateCount - 1; i >= 0 && bytes >= MIN_ENTRY_BYTES; i--) {
+            BodyState body = candidates[(int) order[i]];
+            int size = entrySize(body, packetSequence);
+            if (size > bytes)
+                continue;
+            bytes -= size;
+            selected[count++] = body;
+        }
+        Arrays.sort(selected, 0, count, (a, b) -> Integer.compare(a.id, b.id));
+        return count;
+    }
+
+    /**
+     * Returns the age in packets of the baseline of a body, or zero if it
+     * has none the client is sure to still hold.
+     */
+    private static int baselineAge(BodyState body, int packetSequence) {
+        if (body.baselineSequence < 0 || packetSequence - body.baselineSequence >= WINDOW)
+            return 0;
+        return packetSequence - body.baselineSequence;
+    }
+
+    /**
+     * Returns the size of the entry of a body, counting its id in full
+     * since the id it will follow is not known yet.
+     */
+    private static int entrySize(BodyState body, int packetSequence) {
+        int age = baselineAge(body, packetSequence);
+        int size = varintSize(zigzag(body.id)) + varintSize(age);
+        for (int c = 0; c < COMPONENTS; c++) {
+            int value = body.current[c];
+            size += varintSize(zigzag(age > 0 ? value - body.baseline[c] : value));
+        }
+        return size;
+    }
+
+    private static void recordBody(SentPacket packet, BodyState body) {
+        int i = packet.count++;
+        if (i == packet.ids.length) {
+            packet.ids = Arrays.copyOf(packet.ids, i * 2);
+            packet.values = Arrays.copyOf(packet.values, i * 2 * COMPONENTS);
+        }
+        packet.ids[i] = body.id;
+        System.arraycopy(body.current, 0, packet.values, i * COMPONENTS, COMPONENTS);
+    }
+
+    private static void recordRemoved(SentPacket packet, int id) {
+        int i = packet.removedCount++;
+        if (i == packet.removed.length)
+            packet.removed = Arrays.copyOf(packet.removed, i * 2);
+        packet.removed[i] = id;
+    }
+
+    private static long idKey(int id) {
+        return id + 1L;
+    }
+
+    /*
+     * Variable length integers, shared with StateReplica.
+     */
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes seven bits per byte, lowest first, with the high bit set on
+     * every byte but the last.
+     */
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalStateException("Malformed variable length integer");
+    }
+}
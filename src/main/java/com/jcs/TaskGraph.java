@@ -0,0 +1,311 @@
+package com.jcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+/**
+ * A graph of tasks run over a shared {@link ForkJoinPool}, such as the
+ * phases of a step.
+ * <p>
+ * A task runs once every task it depends on has finished. A task over a
+ * range, such as the bodies of a world, is split into chunks run in
+ * parallel, and finishes with its last chunk. Tasks that do not depend
+ * on each other run at the same time. The only synchronization between
+ * tasks is a counter per task: the last chunk of a task decrements the
+ * counters of the tasks depending on it, and starts those that reach
+ * zero.
+ * <p>
+ * The graph is built once and run as many times as needed; running it
+ * allocates nothing once the chunks of every task are allocated. Tasks
+ * can only depend on tasks added before them, so the order they were
+ * added in is an order they can run in, which is the one used when no
+ * pool is given.
+ * <p>
+ * When {@link #timed}, the time each task took in the last run is kept,
+ * from the start of its first chunk to the end of its last one.
+ */
+public class TaskGraph {
+
+    /**
+     * The work of a task over a range.
+     */
+    public interface Work {
+
+        /**
+         * Processes a chunk of the range.
+         *
+         * @param chunk the index of the chunk, for scratch space kept per
+         *              chunk
+         * @param from  the first index of the chunk
+         * @param to    the index after the last one of the chunk
+         */
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * A task of the graph.
+     */
+    public class Task {
+
+        public final String name;
+
+        private final int index;
+        private final Runnable action;
+        private final IntSupplier size;
+        private final int grain;
+        private final Work work;
+
+        private final List<Task> successors = new ArrayList<>();
+        private int dependencyCount;
+
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger chunksLeft = new AtomicInteger();
+        private int rangeSize;
+        private Chunk[] chunks = new Chunk[0];
+
+        private long startTime;
+        private long lastTime;
+
+        private Task(String name, Runnable action, IntSupplier size, int grain, Work work) {
+            this.name = name;
+            this.index = tasks.size();
+            this.action = action;
+            this.size = size;
+            this.grain = grain;
+            this.work = work;
+        }
+
+        /**
+         * Makes the task wait for the given tasks.
+         *
+         * @return this task
+         *
+         * @throws IllegalArgumentException if a task is not of the same
+         *                                  graph or was added after this
+         *                                  one
+         */
+        public Task after(Task... dependencies) {
+            for (Task dependency : dependencies) {
+                if (dependency.graph() != TaskGraph.this || dependency.index >= index)
+                    throw new IllegalArgumentException(name + " cannot depend on " + dependency.name);
+                dependency.successors.add(this);
+                dependencyCount++;
+            }
+            return this;
+        }
+
+        /**
+         * Gets the time the task took in the last timed run, in
+         * nanoseconds.
+         */
+        public long getLastTime() {
+            return lastTime;
+        }
+
+        private TaskGraph graph() {
+            return TaskGraph.this;
+        }
+
+        /**
+         * Works out the chunks of this run.
+         */
+        private int chunkCount() {
+            if (action != null)
+                return 1;
+            rangeSize = size.getAsInt();
+            return (rangeSize + grain - 1) / grain;
+        }
+
+        private void runChunk(int chunk) {
+            if (action != null) {
+                action.run();
+            } else {
+                int from = chunk * grain;
+                work.run(chunk, from, Math.min(from + grain, rangeSize));
+            }
+        }
+    }
+
+    /**
+     * A chunk of a task, forked into the pool. As a completer without
+     * parent that never completes, it is never marked done, so it can be
+     * forked again in the next run while the thread that ran it last may
+     * still be returning from it.
+     */
+    private class Chunk extends CountedCompleter<Void> {
+        private final Task task;
+        private final int chunk;
+
+        Chunk(Task task, int chunk) {
+            this.task = task;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void compute() {
+            if (failure.get() == null) {
+                try {
+                    task.runChunk(chunk);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+            if (task.chunksLeft.decrementAndGet() == 0)
+                finish(task);
+        }
+    }
+
+    /**
+     * Starts the tasks without dependencies, and completes once every
+     * task has finished.
+     */
+    private class Root extends CountedCompleter<Void> {
+        @Override
+        public void compute() {
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                if (task.dependencyCount == 0)
+                    start(task);
+            }
+        }
+    }
+
+    /**
+     * Holds whether the time taken by each task is measured.
+     */
+    public boolean timed;
+
+    private final List<Task> tasks = new ArrayList<>();
+    private final Root root = new Root();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Adds a task run as a whole on a single thread.
+     */
+    public Task add(String name, Runnable action) {
+        Task task = new Task(name, action, null, 1, null);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Adds a task over a range, split into chunks run in parallel.
+     *
+     * @param name  the name of the task
+     * @param size  gives the size of the range when the task starts
+     * @param grain the number of indices per chunk
+     * @param work  the work done on each chunk
+     */
+    public Task add(String name, IntSupplier size, int grain, Work work) {
+        if (grain <= 0)
+            throw new IllegalArgumentException("Grain must be positive: " + grain);
+        Task task = new Task(name, null, size, grain, work);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Gets the number of tasks of the graph.
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Gets a task by the order it was added in.
+     */
+    public Task getTask(int index) {
+        return tasks.get(index);
+    }
+
+    /**
+     * Runs every task of the graph and waits for them to finish.
+     *
+     * @param pool the pool to run the tasks on, or null to run them one
+     *             after the other on the calling thread
+     *
+     * @throws RuntimeException the first exception thrown by a task,
+     *                          after which the tasks not started yet are
+     *                          skipped
+     */
+    public void run(ForkJoinPool pool) {
+        if (tasks.isEmpty())
+            return;
+
+        if (pool == null) {
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                if (timed)
+                    task.startTime = System.nanoTime();
+                int chunkCount = task.chunkCount();
+                for (int chunk = 0; chunk < chunkCount; chunk++)
+                    task.runChunk(chunk);
+                if (timed)
+                    task.lastTime = System.nanoTime() - task.startTime;
+            }
+            return;
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            task.waiting.set(task.dependencyCount);
+        }
+        failure.set(null);
+        root.reinitialize();
+        root.setPendingCount(tasks.size() - 1);
+        pool.invoke(root);
+
+        Throwable thrown = failure.getAndSet(null);
+        if (thrown instanceof RuntimeException)
+            throw (RuntimeException) thrown;
+        if (thrown instanceof Error)
+            throw (Error) thrown;
+        if (thrown != null)
+            throw new RuntimeException(thrown);
+    }
+
+    /**
+     * Forks the chunks of a task whose dependencies have all finished.
+     */
+    private void start(Task task) {
+        if (timed)
+            task.startTime = System.nanoTime();
+        int chunkCount = failure.get() == null ? task.chunkCount() : 0;
+        if (chunkCount == 0) {
+            finish(task);
+            return;
+        }
+
+        if (task.chunks.length < chunkCount) {
+            int previous = task.chunks.length;
+            task.chunks = Arrays.copyOf(task.chunks, Math.max(chunkCount, previous * 2));
+            for (int i = previous; i < task.chunks.length; i++)
+                task.chunks[i] = new Chunk(task, i);
+        }
+
+        task.chunksLeft.set(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            task.chunks[i].fork();
+        }
+    }
+
+    /**
+     * Starts the tasks that were only waiting for the given one.
+     */
+    private void finish(Task task) {
+        if (timed)
+            task.lastTime = System.nanoTime() - task.startTime;
+        for (int i = 0; i < task.successors.size(); i++) {
+            Task successor = task.successors.get(i);
+            if (successor.waiting.decrementAndGet() == 0)
+                start(successor);
+        }
+        root.tryComplete();
+    }
+}
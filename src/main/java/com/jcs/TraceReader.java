@@ -0,0 +1,226 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the file written by a {@link TraceWriter}.
+ * <p>
+ * Opening a trace only reads the headers of its chunks. Reading a range
+ * of steps of one attribute then reads and decompresses, for each chunk
+ * overlapping the range, its step numbers, its ids and the column of
+ * that attribute, skipping every other column and chunk.
+ */
+public class TraceReader implements Closeable {
+
+    /**
+     * Receives the values read from a trace.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each row in the range, in order of steps and, within
+         * a step, in the order the rows were traced.
+         *
+         * @param frame the step number
+         * @param id    the id of the body
+         * @param value the value of the attribute
+         */
+        void value(int frame, int id, float value);
+    }
+
+    private final FileChannel channel;
+    private final int attributes;
+    private final int[] selected;
+    private final int headerBytes;
+
+    private int chunkCount;
+    private long[] offsets = new long[16];
+    private int[] firstFrames = new int[16];
+    private int[] lastFrames = new int[16];
+
+    private final Inflater inflater = new Inflater();
+    private byte[] section = new byte[0];
+    private byte[] planes = new byte[0];
+    private int[] steps = new int[0];
+    private int[] ids = new int[0];
+    private int[] values = new int[0];
+
+    /**
+     * Opens a trace and indexes its chunks.
+     *
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public TraceReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        ByteBuffer header = read(0, 12);
+        if (header.getInt() != TraceWriter.MAGIC)
+            throw new IOException("Not a trace file: " + path);
+        int version = header.getInt();
+        if (version != TraceWriter.VERSION)
+            throw new IOException("Unknown trace version " + version);
+        attributes = header.getInt();
+        selected = TraceWriter.selectedAttributes(attributes);
+        headerBytes = 16 + 4 * (2 + selected.length);
+
+        index();
+    }
+
+    /**
+     * Gets the mask of the traced attributes.
+     */
+    public int getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Gets the first traced step, or -1 if the trace is empty.
+     */
+    public int getFirstFrame() {
+        return chunkCount == 0 ? -1 : firstFrames[0];
+    }
+
+    /**
+     * Gets the last traced step, or -1 if the trace is empty.
+     */
+    public int getLastFrame() {
+        return chunkCount == 0 ? -1 : lastFrames[chunkCount - 1];
+    }
+
+    /**
+     * Reads the values of an attribute over a range of steps.
+     *
+     * @param attribute the attribute, such as
+     *                  {@link TraceWriter#POSITION_Y}
+     * @param fromFrame the first step of the range
+     * @param toFrame   the last step of the range, inclusive
+     * @param visitor   the visitor receiving the values
+     *
+     * @throws IllegalArgumentException if the attribute was not traced
+     */
+    public void read(int attribute, int fromFrame, int toFrame, Visitor visitor) throws IOException {
+        int column = Arrays.binarySearch(selected, attribute);
+        if (column < 0)
+            throw new IllegalArgumentException("Attribute " + attribute + " was not traced");
+
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (lastFrames[chunk] < fromFrame)
+                continue;
+            if (firstFrames[chunk] > toFrame)
+                break;
+            readChunk(chunk, column, fromFrame, toFrame, visitor);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private void readChunk(int chunk, int column, int fromFrame, int toFrame,
+                           Visitor visitor) throws IOException {
+        ByteBuffer header = read(offsets[chunk], headerBytes);
+        header.position(8);
+        int stepCount = header.getInt();
+        int rows = header.getInt();
+        int[] lengths = new int[2 + selected.length];
+        for (int s = 0; s < lengths.length; s++)
+            lengths[s] = header.getInt();
+
+        long stepsOffset = offsets[chunk] + headerBytes;
+        long idsOffset = stepsOffset + lengths[0];
+        long columnOffset = idsOffset + lengths[1];
+        for (int c = 0; c < column; c++)
+            columnOffset += lengths[2 + c];
+
+        steps = readSection(stepsOffset, lengths[0], stepCount * 2, steps);
+        TraceWriter.deltaDecode(steps, 0, stepCount);
+        ids = readSection(idsOffset, lengths[1], rows, ids);
+        TraceWriter.deltaDecode(ids, 0, rows);
+        values = readSection(columnOffset, lengths[2 + column], rows, values);
+        TraceWriter.xorPrevious(ids, steps, stepCount, stepCount, values, false);
+
+        int row = 0;
+        for (int s = 0; s < stepCount; s++) {
+            int frame = steps[s];
+            int count = steps[stepCount + s];
+            if (frame >= fromFrame && frame <= toFrame) {
+                for (int i = row; i < row + count; i++)
+                    visitor.value(frame, ids[i], Float.intBitsToFloat(values[i]));
+            }
+            row += count;
+        }
+    }
+
+    /**
+     * Reads and decompresses a section of the given number of words,
+     * into the given array if it is large enough.
+     */
+    private int[] readSection(long offset, int length, int count, int[] words) throws IOException {
+        if (section.length < length)
+            section = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(section, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new IOException("Unexpected end of trace file");
+        }
+
+        if (planes.length < count * 4)
+            planes = new byte[count * 4];
+        if (words.length < count)
+            words = new int[count];
+        TraceWriter.decompress(inflater, section, length, count, planes, words);
+        return words;
+    }
+
+    /**
+     * Scans the chunk headers once to find the steps of each chunk.
+     */
+    private void index() throws IOException {
+        long size = channel.size();
+        long offset = 12;
+        while (offset + headerBytes <= size) {
+            ByteBuffer header = read(offset, headerBytes);
+            int firstFrame = header.getInt();
+            int lastFrame = header.getInt();
+            header.getInt();
+            header.getInt();
+            long length = headerBytes;
+            for (int s = 0; s < 2 + selected.length; s++)
+                length += header.getInt();
+            if (offset + length > size)
+                break; // A chunk cut short by a crash ends the trace.
+
+            if (chunkCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, chunkCount * 2);
+                firstFrames = Arrays.copyOf(firstFrames, chunkCount * 2);
+                lastFrames = Arrays.copyOf(lastFrames, chunkCount * 2);
+            }
+            offsets[chunkCount] = offset;
+            firstFrames[chunkCount] = firstFrame;
+            lastFrames[chunkCount] = lastFrame;
+            chunkCount++;
+
+            offset += length;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of trace file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,506 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Traces selected attributes of a set of bodies, step after step, into a
+ * compressed columnar file for offline analysis. The file is read back
+ * with a {@link TraceReader}.
+ * <p>
+ * Each step adds one row per body: the id of the body and the selected
+ * attributes, chosen among the components of its position and velocity.
+ * Rows are gathered into chunks of a fixed number of steps, in which
+ * every attribute is stored as its own column, so a reader interested in
+ * a single attribute only has to read and decompress that column.
+ * <p>
+ * The stepping thread only copies values into the chunk being filled.
+ * Filled chunks go to a background thread that compresses and writes
+ * them through a {@link FileChannel}, while the stepping thread fills
+ * the other one. Columns are compressed by splitting their values into
+ * byte planes before deflating them: the sign and exponent bytes of
+ * neighbouring values are usually alike and compress far better when
+ * laid out together. Values are first XORed with the value of the same
+ * body in the previous step, and ids and step numbers are delta coded.
+ * <p>
+ * The file starts with a header (magic number, version, attribute mask),
+ * followed by chunks. A chunk starts with its first and last step, its
+ * number of steps and of rows, and the compressed length of each of its
+ * sections: the step numbers and row counts, the ids, then each selected
+ * attribute in order.
+ */
+public class TraceWriter implements Closeable {
+
+    static final int MAGIC = 0x4a435354;
+    static final int VERSION = 1;
+
+    /*
+     * The attributes that can be traced.
+     */
+    public static final int POSITION_X = 0;
+    public static final int POSITION_Y = 1;
+    public static final int POSITION_Z = 2;
+    public static final int VELOCITY_X = 3;
+    public static final int VELOCITY_Y = 4;
+    public static final int VELOCITY_Z = 5;
+
+    static final int ATTRIBUTE_COUNT = 6;
+
+    /*
+     * Masks selecting attributes to trace.
+     */
+    public static final int POSITION = 1 << POSITION_X | 1 << POSITION_Y | 1 << POSITION_Z;
+    public static final int VELOCITY = 1 << VELOCITY_X | 1 << VELOCITY_Y | 1 << VELOCITY_Z;
+    public static final int ALL = POSITION | VELOCITY;
+
+    /**
+     * Tells the writer thread to stop.
+     */
+    private static final Chunk END = new Chunk(0, 0);
+
+    /**
+     * The rows of a run of steps, stored by column.
+     */
+    private static class Chunk {
+        int stepCount;
+        int rows;
+        int[] frames;
+        int[] counts;
+        int[] ids = new int[1024];
+        float[][] columns;
+
+        Chunk(int steps, int columnCount) {
+            this.frames = new int[steps];
+            this.counts = new int[steps];
+            this.columns = new float[columnCount][1024];
+        }
+
+        void ensureRows(int count) {
+            if (ids.length >= count)
+                return;
+            int capacity = Math.max(count, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            for (int c = 0; c < columns.length; c++)
+                columns[c] = Arrays.copyOf(columns[c], capacity);
+        }
+    }
+
+    /**
+     * Holds the mask of the traced attributes.
+     */
+    public final int attributes;
+
+    private final int stepsPerChunk;
+    private final int[] selected;
+
+    private final FileChannel channel;
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<Chunk> fullChunks = new ArrayBlockingQueue<>(3);
+    private final Thread writer;
+
+    private Chunk current;
+    private int stepStart = -1;
+
+    /*
+     * Scratch space of the writer thread.
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private int[] words = new int[0];
+    private byte[] planes = new byte[0];
+    private byte[][] sections;
+    private int[] sectionLengths;
+
+    private volatile IOException failure;
+
+    /**
+     * Creates a new trace, replacing the given file if it exists.
+     *
+     * @param path          the file to write
+     * @param attributes    the mask of the attributes to trace, such as
+     *                      {@link #POSITION} or {@link #ALL}
+     * @param stepsPerChunk the number of steps in each chunk; larger
+     *                      chunks compress better, smaller ones let range
+     *                      reads skip more
+     */
+    public TraceWriter(Path path, int attributes, int stepsPerChunk) throws IOException {
+        if ((attributes & ~ALL) != 0 || attributes == 0)
+            throw new IllegalArgumentException("Invalid attribute mask " + attributes);
+
+        this.attributes = attributes;
+        this.stepsPerChunk = stepsPerChunk;
+        this.selected = selectedAttributes(attributes);
+        this.sections = new byte[2 + selected.length][0];
+        this.sectionLengths = new int[2 + selected.length];
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(attributes).flip();
+        while (header.hasRemaining())
+            channel.write(header);
+
+        freeChunks.add(new Chunk(stepsPerChunk, selected.length));
+        current = new Chunk(stepsPerChunk, selected.length);
+
+        writer = new Thread(this::writeChunks, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts the rows of a step. Steps must be traced in increasing
+     * order.
+     *
+     * @param frame the step number
+     */
+    public void beginStep(int frame) {
+        Chunk chunk = current;
+        chunk.frames[chunk.stepCount] = frame;
+        stepStart = chunk.rows;
+    }
+
+    /**
+     * Adds the row of a body to the current step.
+     *
+     * @param id   the id of the body, which rows are matched by across
+     *             steps
+     * @param body the body
+     */
+    public void add(int id, Particle body) {
+        Chunk chunk = current;
+        int row = chunk.rows;
+        chunk.ensureRows(row + 1);
+        chunk.ids[row] = id;
+        for (int c = 0; c < selected.length; c++)
+            chunk.columns[c][row] = attribute(body, selected[c]);
+        chunk.rows = row + 1;
+    }
+
+    /**
+     * Ends the current step, handing the chunk to the writer thread once
+     * it holds all its steps.
+     *
+     * @throws UncheckedIOException if the writer thread failed to write
+     */
+    public void endStep() {
+        Chunk chunk = current;
+        chunk.counts[chunk.stepCount] = chunk.rows - stepStart;
+        chunk.stepCount++;
+        if (chunk.stepCount == stepsPerChunk)
+            flush();
+    }
+
+    /**
+     * Traces a whole step of a world: one row per primitive, with the id
+     * the world gave it.
+     */
+    public void record(World world) {
+        List<CollisionSphere> primitives = world.getPrimitives();
+        beginStep(world.getFrame());
+        current.ensureRows(current.rows + primitives.size());
+        for (int i = 0; i < primitives.size(); i++) {
+            CollisionSphere primitive = primitives.get(i);
+            add(primitive.id, primitive.body);
+        }
+        endStep();
+    }
+
+    /**
+     * Hands the steps traced so far to the writer thread, even if their
+     * chunk is not full.
+     *
+     * @throws UncheckedIOException if the writer thread failed to write
+     */
+    public void flush() {
+        if (failure != null)
+            throw new UncheckedIOException(failure);
+        if (current.stepCount == 0)
+            return;
+
+        put(current);
+        try {
+            current = freeChunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while tracing", e);
+        }
+        current.stepCount = 0;
+        current.rows = 0;
+    }
+
+    /**
+     * Writes the remaining steps and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void put(Chunk chunk) {
+        try {
+            fullChunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while tracing", e);
+        }
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void writeChunks() {
+        try {
+            while (true) {
+                Chunk chunk = fullChunks.take();
+                if (chunk == END)
+                    break;
+                try {
+                    if (failure == null)
+                        writeChunk(chunk);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                freeChunks.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Compresses the sections of a chunk and writes them, on the writer
+     * thread.
+     */
+    private void writeChunk(Chunk chunk) throws IOException {
+        int stepCount = chunk.stepCount;
+        int rows = chunk.rows;
+
+        // Step numbers, delta coded, followed by the row counts.
+        ensureWords(stepCount * 2);
+        System.arraycopy(chunk.frames, 0, words, 0, stepCount);
+        System.arraycopy(chunk.counts, 0, words, stepCount, stepCount);
+        deltaEncode(words, 0, stepCount);
+        compress(0, stepCount * 2);
+
+        ensureWords(rows);
+        System.arraycopy(chunk.ids, 0, words, 0, rows);
+        deltaEncode(words, 0, rows);
+        compress(1, rows);
+
+        for (int c = 0; c < selected.length; c++) {
+            float[] column = chunk.columns[c];
+            for (int i = 0; i < rows; i++)
+                words[i] = Float.floatToRawIntBits(column[i]);
+            xorPrevious(chunk.ids, chunk.counts, 0, stepCount, words, true);
+            compress(2 + c, rows);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(16 + 4 * sections.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(chunk.frames[0]);
+        header.putInt(chunk.frames[stepCount - 1]);
+        header.putInt(stepCount);
+        header.putInt(rows);
+        for (int length : sectionLengths)
+            header.putInt(length);
+        header.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[1 + sections.length];
+        buffers[0] = header;
+        for (int s = 0; s < sections.length; s++)
+            buffers[1 + s] = ByteBuffer.wrap(sections[s], 0, sectionLengths[s]);
+
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        while (remaining > 0)
+            remaining -= channel.write(buffers);
+    }
+
+    /**
+     * Compresses the first words of the scratch space into a section.
+     */
+    private void compress(int section, int count) {
+        int bytes = count * 4;
+        if (planes.length < bytes)
+            planes = new byte[bytes];
+        splitPlanes(words, count, planes);
+
+        deflater.reset();
+        deflater.setInput(planes, 0, bytes);
+        deflater.finish();
+
+        byte[] out = sections[section];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length)
+                out = Arrays.copyOf(out, Math.max(64, out.length * 2));
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        sections[section] = out;
+        sectionLengths[section] = length;
+    }
+
+    private void ensureWords(int count) {
+        if (words.length < count)
+            words = new int[Math.max(count, words.length * 2)];
+    }
+
+    private static float attribute(Particle body, int attribute) {
+        switch (attribute) {
+            case POSITION_X:
+                return body.position.x;
+            case POSITION_Y:
+                return body.position.y;
+            case POSITION_Z:
+                return body.position.z;
+            case VELOCITY_X:
+                return body.velocity.x;
+            case VELOCITY_Y:
+                return body.velocity.y;
+            default:
+                return body.velocity.z;
+        }
+    }
+
+    /**
+     * Lists the attributes of a mask in increasing order.
+     */
+    static int[] selectedAttributes(int attributes) {
+        int[] selected = new int[Integer.bitCount(attributes)];
+        int s = 0;
+        for (int a = 0; a < ATTRIBUTE_COUNT; a++)
+            if ((attributes & 1 << a) != 0)
+                selected[s++] = a;
+        return selected;
+    }
+
+    /*
+     * The codec of the sections, shared with TraceReader.
+     */
+
+    static void deltaEncode(int[] values, int from, int to) {
+        for (int i = to - 1; i > from; i--)
+            values[i] -= values[i - 1];
+    }
+
+    static void deltaDecode(int[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++)
+            values[i] += values[i - 1];
+    }
+
+    /**
+     * XORs the value of each row with the value of the same body in the
+     * previous step. Bodies usually keep their row from one step to the
+     * next and move little, so most of the high bits cancel out. A row
+     * is matched with the row at the same place in the previous step,
+     * when it holds the same id.
+     *
+     * @param ids    the ids of the rows
+     * @param counts the row counts of the steps, from the given offset
+     * @param encode true to encode, walking backwards so every row is
+     *               XORed with an original value; false to decode,
+     *               walking forwards so it is XORed with a decoded one
+     */
+    static void xorPrevious(int[] ids, int[] counts, int offset, int stepCount,
+                            int[] words, boolean encode) {
+        int end = 0;
+        for (int s = 0; s < stepCount; s++)
+            end += counts[offset + s];
+
+        if (encode) {
+            for (int s = stepCount - 1; s > 0; s--) {
+                int count = counts[offset + s];
+                int previousCount = counts[offset + s - 1];
+                int start = end - count;
+                xorStep(ids, words, start - previousCount, start, Math.min(count, previousCount));
+                end = start;
+            }
+        } else {
+            int start = 0;
+            for (int s = 1; s < stepCount; s++) {
+                int previousCount = counts[offset + s - 1];
+                int count = counts[offset + s];
+                xorStep(ids, words, start, start + previousCount, Math.min(count, previousCount));
+                start += previousCount;
+            }
+        }
+    }
+
+    private static void xorStep(int[] ids, int[] words, int previous, int current, int count) {
+        for (int k = 0; k < count; k++) {
+            if (ids[previous + k] == ids[current + k])
+                words[current + k] ^= words[previous + k];
+        }
+    }
+
+    /**
+     * Stores the lowest bytes of all the words first, then the second
+     * lowest bytes, and so on.
+     */
+    static void splitPlanes(int[] words, int count, byte[] planes) {
+        for (int i = 0; i < count; i++) {
+            int word = words[i];
+            planes[i] = (byte) word;
+            planes[count + i] = (byte) (word >>> 8);
+            planes[count * 2 + i] = (byte) (word >>> 16);
+            planes[count * 3 + i] = (byte) (word >>> 24);
+        }
+    }
+
+    static void joinPlanes(byte[] planes, int count, int[] words) {
+        for (int i = 0; i < count; i++) {
+            words[i] = (planes[i] & 0xFF)
+                    | (planes[count + i] & 0xFF) << 8
+                    | (planes[count * 2 + i] & 0xFF) << 16
+                    | (planes[count * 3 + i] & 0xFF) << 24;
+        }
+    }
+
+    /**
+     * Decompresses a section of the given number of words.
+     */
+    static void decompress(Inflater inflater, byte[] section, int length, int count,
+                           byte[] planes, int[] words) throws IOException {
+        inflater.reset();
+        inflater.setInput(section, 0, length);
+        try {
+            int bytes = count * 4;
+            int read = 0;
+            while (read < bytes && !inflater.finished()) {
+                int n = inflater.inflate(planes, read, bytes - read);
+                if (n == 0 && inflater.needsInput())
+                    break;
+                read += n;
+            }
+            if (read != bytes)
+                throw new IOException("Corrupt trace section");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt trace section", e);
+        }
+        joinPlanes(planes, count, words);
+    }
+}
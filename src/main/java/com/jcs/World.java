@@ -0,0 +1,1418 @@
+package com.jcs;
+
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The world represents an independent simulation of physics. It keeps
+ * track of a set of collision primitives and provides the means to
+ * update them all.
+ * <p>
+ * Each step integrates the bodies, rebuilds the broadphase, generates
+ * the contacts of every pair it reports and resolves them. Contacts are
+ * kept in a {@link ContactManifold} per pair of primitives, looked up by
+ * pair key in an open addressing {@link LongMap}, so the impulses found
+ * in one step warm start the resolver in the next.
+ * <p>
+ * When a pair starts, keeps or stops touching the world reports it
+ * through its {@link #events}, which the game drains after the step.
+ * The events of a step are all added by its last phase, the ends first,
+ * so their order does not depend on the pool.
+ * <p>
+ * Apart from the methods documented as thread safe, a world must only be
+ * used from the thread stepping it. Other threads, such as network or
+ * AI threads, change the simulation through commands: spawns, despawns,
+ * forces, impulses and state changes are encoded into a lock free
+ * {@link CommandQueue} and executed at the start of the next step.
+ * <p>
+ * In deterministic mode two worlds given the same inputs stay bit for
+ * bit identical: {@link #advance(float)} only ever steps by the fixed
+ * step, randomness comes from seeded {@link RandomStream}s, pairs are
+ * processed in order of their key whatever order the broadphase found
+ * them in, and floating point is evaluated strictly. The state hash of
+ * {@link #getStateHash()} is cheap enough to compare every step.
+ * <p>
+ * Given a {@link #stepBudget}, a world trades fidelity for time when a
+ * step runs over it, giving up more at each level of degradation until
+ * the steps fit again: fewer solver iterations, then no eviction of
+ * stale manifolds, then fewer commands executed per step, then no
+ * catching up in {@link #advance(float)}. The level reached by the last
+ * step is given by {@link #getDegradation()}.
+ * <p>
+ * A step is a {@link TaskGraph} of phases: commands, forces, integration,
+ * the internal data of the primitives, culling, broadphase, explosions,
+ * narrowphase, resolution and events. Each phase only waits for the
+ * phases whose results it reads, so given a pool with {@link #setPool}
+ * the internal data is updated while the bodies are culled, and the
+ * explosions spread while the narrowphase runs; the phases over bodies
+ * or pairs are also split into chunks run in parallel. Every body and
+ * every pair is processed the same way whatever its chunk, and phases
+ * running at the same time never write what the other reads, so the
+ * result does not depend on the pool.
+ * <p>
+ * Bodies leave the world when they reach one of its {@link #killVolumes}.
+ * Culling packs the positions and ages of the bodies into columns, the
+ * volumes are evaluated over the columns in parallel, and the bodies
+ * matched are compacted out of the list of primitives in one pass, along
+ * with their manifolds, before the broadphase sees them. The game finds
+ * them through {@link #getCulledCount()} and {@link #getCulled(int)}.
+ * <p>
+ * Its {@link #explosions} are spread once the broadphase is rebuilt,
+ * finding the bodies they reach through it and pushing them before the
+ * contacts are resolved.
+ */
+public strictfp class World {
+
+    /**
+     * The world runs at full fidelity.
+     */
+    public static final int DEGRADE_NONE = 0;
+
+    /**
+     * The resolver runs half of its iterations.
+     */
+    public static final int DEGRADE_SOLVER = 1;
+
+    /**
+     * Stale manifolds are no longer evicted, so pairs that drifted apart
+     * keep their manifolds until the world catches up.
+     */
+    public static final int DEGRADE_HOUSEKEEPING = 2;
+
+    /**
+     * At most {@link #degradedCommandLimit} commands are executed per
+     * step, the others waiting in order for the next steps. Spawns from
+     * bursts of emitters are spread over several steps.
+     */
+    public static final int DEGRADE_COMMANDS = 3;
+
+    /**
+     * {@link #advance(float)} runs a single step per call, dropping the
+     * time it is behind.
+     */
+    public static final int DEGRADE_CATCH_UP = 4;
+
+    /**
+     * Holds the primitives being simulated.
+     */
+    private final List<CollisionSphere> primitives = new ArrayList<>();
+
+    /**
+     * Holds the primitives being simulated, by id.
+     */
+    private final LongMap<CollisionSphere> primitivesById = new LongMap<>();
+
+    /**
+     * Holds the id the next primitive added will be given. Ids of
+     * spawned primitives are taken when the spawn is enqueued, so this
+     * is shared with the producer threads.
+     */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Holds the factories of the primitives that can be spawned.
+     */
+    private final List<SpawnFactory> templates = new ArrayList<>();
+
+    /**
+     * Holds the commands enqueued by other threads for the next step.
+     */
+    private final CommandQueue commands;
+
+    private final CommandQueue.Handler commandHandler = this::execute;
+
+    /**
+     * Holds the broadphase built in the last step, and the one the next
+     * step will build into. Swapping them leaves the last broadphase
+     * untouched for a whole step, so queries can run on it while the
+     * world moves on.
+     */
+    private Broadphase broadphase = new Broadphase();
+    private Broadphase nextBroadphase = new Broadphase();
+
+    private final PairBuffer pairs = new PairBuffer();
+
+    /**
+     * Holds the detector of each chunk of the narrowphase, since
+     * detectors keep scratch space.
+     */
+    private CollisionDetector[] detectors = {new CollisionDetector()};
+
+    /**
+     * Holds the manifold of each pair of the current step, in the order
+     * the pairs are processed.
+     */
+    private ContactManifold[] pairManifolds = new ContactManifold[0];
+    private int pairCount;
+
+    /**
+     * The number of bodies integrated, and of pairs tested, per chunk.
+     */
+    private static final int INTEGRATE_GRAIN = 512;
+    private static final int NARROWPHASE_GRAIN = 256;
+
+    /**
+     * Orders manifolds by the key of their pair.
+     */
+    private static final Comparator<ContactManifold> BY_KEY = Comparator.comparingLong(m -> m.key);
+
+    /*
+     * The positions and ages of the bodies, packed by integration for the
+     * kill volumes, and the marks of the bodies they matched.
+     */
+    private float[] cullX = new float[0];
+    private float[] cullY = new float[0];
+    private float[] cullZ = new float[0];
+    private float[] cullAge = new float[0];
+    private boolean[] cullMarks = new boolean[0];
+    private boolean culling;
+
+    /**
+     * Holds the primitives culled by the last step, and their ids.
+     */
+    private CollisionSphere[] culled = new CollisionSphere[0];
+    private int[] culledIds = new int[0];
+    private int culledCount;
+
+    /**
+     * Holds the phases of a step.
+     */
+    private final TaskGraph phases = new TaskGraph();
+
+    /**
+     * Holds the pool the phases run on, or null to run them on the
+     * thread stepping the world.
+     */
+    private ForkJoinPool pool;
+
+    /*
+     * The step being run, for the phases.
+     */
+    private float stepDuration;
+    private long stepStart;
+    private boolean budgeted;
+    private int stepSpawns;
+    private int stepCommands;
+
+    /**
+     * Holds the metrics the steps are measured into, if any.
+     */
+    private WorldMetrics metrics;
+
+    /**
+     * Holds the manifold of every pair reported recently, by pair key.
+     */
+    private final LongMap<ContactManifold> manifolds = new LongMap<>();
+
+    /**
+     * Holds the manifolds with contacts in the current step.
+     */
+    private final List<ContactManifold> activeManifolds = new ArrayList<>();
+
+    /**
+     * Holds the manifolds of a primitive being removed.
+     */
+    private ContactManifold[] removedManifolds = new ContactManifold[8];
+
+    /**
+     * Holds the manifolds ordered by the last step their pair was
+     * reported in, oldest first, so stale ones can be evicted from the
+     * head of the list without visiting the others.
+     */
+    private ContactManifold oldest;
+    private ContactManifold newest;
+
+    /**
+     * Holds evicted manifolds waiting to be used for another pair.
+     */
+    private final ArrayDeque<ContactManifold> freeManifolds = new ArrayDeque<>();
+
+    /**
+     * Holds the resolver for contacts.
+     */
+    public ContactResolver resolver = new ContactResolver(10);
+
+    /**
+     * Holds the collision events produced by the steps.
+     */
+    public final CollisionEvents events = new CollisionEvents();
+
+    /**
+     * Holds the end events found since the last events phase, by
+     * whichever phase or method saw the pair stop touching, until that
+     * phase adds them.
+     */
+    private final CollisionEventBuffer endEvents = new CollisionEventBuffer();
+
+    /**
+     * Holds the volumes removing the bodies that reach them. Ages are
+     * counted in steps of {@link #fixedStep} since a body was added.
+     * Like the templates, the volumes are part of the setup of a world:
+     * a world replaying or restoring another one needs the same.
+     */
+    public final KillVolumes killVolumes = new KillVolumes();
+
+    /**
+     * Holds the explosions spreading through the world, which can also be
+     * set off from any thread with {@link #explode}.
+     */
+    public final Explosions explosions = new Explosions();
+
+    /**
+     * Holds the method the bodies are integrated with. The forces on a
+     * body stay the same during a step.
+     */
+    public ParticleIntegrator integrator = ParticleIntegrator.EXPLICIT_EULER;
+
+    /**
+     * Holds the forces added to every body at each step, before it is
+     * integrated.
+     */
+    private final List<BodyForce> forces = new ArrayList<>();
+
+    /**
+     * Holds the number of steps a manifold is kept after its pair stops
+     * being reported. Pairs that touch again within this time keep their
+     * accumulated impulses.
+     */
+    public int maxIdleFrames = 3;
+
+    /**
+     * Holds whether the world runs in deterministic mode.
+     */
+    public boolean deterministic;
+
+    /**
+     * Holds the duration of each step run by {@link #advance(float)}.
+     */
+    public float fixedStep = 1.0f / 60.0f;
+
+    /**
+     * Holds the maximum number of steps a single call to
+     * {@link #advance(float)} runs, so a long stall does not make the
+     * world spend even longer catching up.
+     */
+    public int maxStepsPerAdvance = 8;
+
+    /**
+     * Holds the time a step may take, in nanoseconds, or zero for no
+     * limit. Timing is not reproducible, so the budget is ignored in
+     * deterministic mode.
+     */
+    public long stepBudget;
+
+    /**
+     * Holds the number of commands executed per step from
+     * {@link #DEGRADE_COMMANDS} on.
+     */
+    public int degradedCommandLimit = 64;
+
+    /**
+     * Holds the number of spawns in a single step from which the step is
+     * reported as a spawn burst to the flight recorder.
+     */
+    public int spawnBurstThreshold = 256;
+
+    /**
+     * Holds the number of refused commands already reported to the
+     * flight recorder.
+     */
+    private long reportedRefusals;
+
+    /**
+     * Holds the level of degradation of the current step.
+     */
+    private int degradation;
+
+    /**
+     * Holds the time taken by the last step, in nanoseconds, when
+     * stepping within a budget.
+     */
+    private long lastStepTime;
+
+    /**
+     * Holds the time passed to {@link #advance(float)} not yet simulated.
+     */
+    private float accumulator;
+
+    /**
+     * Holds the seed of the random streams of the world.
+     */
+    private long seed;
+
+    /**
+     * Holds the random streams handed out so far, by stream index.
+     */
+    private final LongMap<RandomStream> randomStreams = new LongMap<>();
+
+    /**
+     * Holds the state of the explosions while it is hashed, grown as
+     * needed.
+     */
+    private ByteBuffer hashBuffer = ByteBuffer.allocate(64);
+
+    /**
+     * Holds the keys of the pairs of the current step, sorted in
+     * deterministic mode.
+     */
+    private long[] pairKeys = new long[0];
+
+    /**
+     * Holds the number of steps run so far.
+     */
+    private int frame;
+
+    /**
+     * Holds the recorder the steps are logged to, if any.
+     */
+    private ReplayRecorder recorder;
+
+    /**
+     * Holds the export the state is published to after each step, if any.
+     */
+    private StateExport export;
+
+    /**
+     * Creates a new world whose command queue holds up to 4096 commands.
+     */
+    public World() {
+        this(4096);
+    }
+
+    /**
+     * Creates a new world.
+     *
+     * @param commandCapacity the maximum number of commands waiting for
+     *                        the next step
+     */
+    public World(int commandCapacity) {
+        commands = new CommandQueue(commandCapacity);
+
+        // The internal data only feeds the broadphase and narrowphase, so
+        // it is updated while the bodies are culled; the explosions only
+        // change velocities, which contact generation never reads.
+        TaskGraph.Task drain = phases.add("commands", this::executeCommands);
+        TaskGraph.Task forces = phases.add("forces", () -> this.forces.isEmpty() ? 0 : primitives.size(),
+                INTEGRATE_GRAIN, this::applyForces).after(drain);
+        TaskGraph.Task integrate = phases.add("integrate", primitives::size, INTEGRATE_GRAIN,
+                this::integrate).after(forces);
+        TaskGraph.Task internals = phases.add("internals", primitives::size, INTEGRATE_GRAIN,
+                this::calculateInternals).after(integrate);
+        TaskGraph.Task cull = phases.add("cull", () -> culling ? primitives.size() : 0, INTEGRATE_GRAIN,
+                this::cull).after(integrate);
+        TaskGraph.Task compact = phases.add("compact", this::compact).after(cull, internals);
+        TaskGraph.Task broadphase = phases.add("broadphase", this::findPairs).after(compact);
+        TaskGraph.Task explode = phases.add("explode", this::explode).after(broadphase);
+        TaskGraph.Task narrowphase = phases.add("narrowphase", () -> pairCount, NARROWPHASE_GRAIN,
+                this::detectContacts).after(broadphase);
+        TaskGraph.Task collect = phases.add("collect", this::collectContacts).after(narrowphase);
+        TaskGraph.Task solve = phases.add("solve", this::resolveContacts).after(collect, explode);
+        phases.add("events", this::reportEvents).after(solve);
+    }
+
+    /**
+     * Adds a primitive to the world. Each primitive is expected to own
+     * its rigid body.
+     *
+     * @param primitive the primitive to add
+     *
+     * @return the id given to the primitive
+     */
+    public int add(CollisionSphere primitive) {
+        return add(primitive, nextId.getAndIncrement());
+    }
+
+    private int add(CollisionSphere primitive, int id) {
+        if (primitive.id >= 0)
+            throw new IllegalArgumentException("The primitive is already in a world");
+
+        primitive.id = id;
+        primitive.index = primitives.size();
+        primitive.spawnFrame = frame;
+        primitives.add(primitive);
+        primitivesById.put(idKey(id), primitive);
+
+        // Spawns replayed from a recording bring their own ids.
+        nextId.accumulateAndGet(id + 1, Math::max);
+        return id;
+    }
+
+    /**
+     * Removes a primitive, together with the manifolds it is part of,
+     * which are found through the primitive rather than by visiting all
+     * the manifolds. The last primitive of the list takes its place.
+     *
+     * @param primitive the primitive to remove
+     */
+    public void remove(CollisionSphere primitive) {
+        int index = primitive.index;
+        if (index < 0 || index >= primitives.size() || primitives.get(index) != primitive)
+            return;
+
+        CollisionSphere last = primitives.remove(primitives.size() - 1);
+        if (last != primitive) {
+            primitives.set(index, last);
+            last.index = index;
+        }
+        primitive.index = -1;
+
+        // Evict in key order, which unlike the order of the primitive's
+        // list does not depend on how the manifolds came to be.
+        int count = 0;
+        for (ContactManifold m = primitive.manifolds; m != null; m = m.nextOf(primitive)) {
+            if (removedManifolds.length == count)
+                removedManifolds = Arrays.copyOf(removedManifolds, count * 2);
+            removedManifolds[count++] = m;
+        }
+        Arrays.sort(removedManifolds, 0, count, BY_KEY);
+        for (int i = 0; i < count; i++) {
+            deactivate(removedManifolds[i]);
+            evict(removedManifolds[i]);
+            removedManifolds[i] = null;
+        }
+        primitivesById.remove(idKey(primitive.id));
+        primitive.id = -1;
+    }
+
+    /**
+     * Gets the primitive of the given id.
+     *
+     * @return the primitive, or null if there is none in the world
+     */
+    public CollisionSphere getPrimitive(int id) {
+        return primitivesById.get(idKey(id));
+    }
+
+    /**
+     * Registers a factory for primitives that can be spawned through
+     * {@link #spawn}. Templates must be registered before any thread
+     * spawns them.
+     *
+     * @return the index of the template
+     */
+    public int addTemplate(SpawnFactory factory) {
+        templates.add(factory);
+        return templates.size() - 1;
+    }
+
+    /**
+     * Adds a force applied to every body at each step, before it is
+     * integrated, in the order the forces were added. Must not be called
+     * while the world is stepping.
+     */
+    public void addForce(BodyForce force) {
+        forces.add(force);
+    }
+
+    /**
+     * Stops applying a force. Must not be called while the world is
+     * stepping.
+     *
+     * @return false if the force was not applied
+     */
+    public boolean removeForce(BodyForce force) {
+        return forces.remove(force);
+    }
+
+    /**
+     * Enqueues the spawn of a primitive from a template, with the given
+     * position and velocity. Thread safe.
+     *
+     * @return the id the primitive will have, which can be used in other
+     * commands straight away, or -1 if the command queue is full
+     */
+    public int spawn(int template, float px, float py, float pz, float vx, float vy, float vz) {
+        int id = nextId.getAndIncrement();
+        if (!commands.offer(CommandQueue.SPAWN, id, template, px, py, pz, vx, vy, vz))
+            return -1;
+        return id;
+    }
+
+    /**
+     * Enqueues the removal of the primitive of the given id. Thread safe.
+     *
+     * @return false if the command queue is full
+     */
+    public boolean despawn(int id) {
+        return commands.offer(CommandQueue.DESPAWN, id, 0, 0f, 0f, 0f, 0f, 0f, 0f);
+    }
+
+    /**
+     * Enqueues a force to add to the body of the given primitive for the
+     * next step. Thread safe.
+     *
+     * @return false if the command queue is full
+     */
+    public boolean applyForce(int id, float fx, float fy, float fz) {
+        return commands.offer(CommandQueue.APPLY_FORCE, id, 0, fx, fy, fz, 0f, 0f, 0f);
+    }
+
+    /**
+     * Enqueues an impulse to apply to the body of the given primitive.
+     * Thread safe.
+     *
+     * @return false if the command queue is full
+     */
+    public boolean applyImpulse(int id, float ix, float iy, float iz) {
+        return commands.offer(CommandQueue.APPLY_IMPULSE, id, 0, ix, iy, iz, 0f, 0f, 0f);
+    }
+
+    /**
+     * Enqueues new position and velocity for the body of the given
+     * primitive. Thread safe.
+     *
+     * @return false if the command queue is full
+     */
+    public boolean setState(int id, float px, float py, float pz, float vx, float vy, float vz) {
+        return commands.offer(CommandQueue.SET_STATE, id, 0, px, py, pz, vx, vy, vz);
+    }
+
+    /**
+     * Enqueues an explosion, set off in the next step. Thread safe.
+     *
+     * @param falloff  one of the falloff curves of {@link Explosions}
+     * @param speed    the speed of the shock front, or infinity to hit
+     *                 every body within the radius at once
+     * @param occluded whether bodies shield the bodies behind them
+     *
+     * @return false if the command queue is full
+     *
+     * @throws IllegalArgumentException if the falloff is unknown
+     *
+     * @see Explosions#add(float, float, float, float, float, int, float, boolean)
+     */
+    public boolean explode(float x, float y, float z, float radius, float impulse, int falloff,
+                           float speed, boolean occluded) {
+        if (falloff < Explosions.FALLOFF_CONSTANT || falloff > Explosions.FALLOFF_SMOOTH)
+            throw new IllegalArgumentException("Unknown falloff " + falloff);
+        return commands.offer(CommandQueue.EXPLODE, falloff, occluded ? 1 : 0,
+                x, y, z, radius, impulse, speed);
+    }
+
+    /**
+     * Gets the primitives being simulated. The list must not be modified
+     * directly. Primitives are added at the end, and a removed primitive
+     * is replaced by the last one. Primitives culled by the kill volumes
+     * are compacted out, the others keeping their order.
+     */
+    public List<CollisionSphere> getPrimitives() {
+        return primitives;
+    }
+
+    /**
+     * Gets the number of primitives the kill volumes removed during the
+     * last step.
+     */
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Gets a primitive the kill volumes removed during the last step, in
+     * the order they were in the world. Its id is already -1, but
+     * {@link #getCulledId(int)} still gives it.
+     */
+    public CollisionSphere getCulled(int index) {
+        if (index >= culledCount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + culledCount);
+        return culled[index];
+    }
+
+    /**
+     * Gets the id a primitive removed by the kill volumes during the last
+     * step had.
+     */
+    public int getCulledId(int index) {
+        if (index >= culledCount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + culledCount);
+        return culledIds[index];
+    }
+
+    /**
+     * Gets the broadphase built during the last step.
+     */
+    public Broadphase getBroadphase() {
+        return broadphase;
+    }
+
+    /**
+     * Gets the manifolds that had contacts during the last step.
+     */
+    public List<ContactManifold> getActiveManifolds() {
+        return activeManifolds;
+    }
+
+    /**
+     * Gets the manifold between the primitives of the given ids.
+     *
+     * @return the manifold, or null if the pair has not been reported
+     * recently
+     */
+    public ContactManifold getManifold(int idOne, int idTwo) {
+        return manifolds.get(ContactManifold.key(idOne, idTwo));
+    }
+
+    /**
+     * Gets the number of manifolds kept by the world.
+     */
+    public int getManifoldCount() {
+        return manifolds.size();
+    }
+
+    /**
+     * Gets the number of steps run so far.
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    /**
+     * Sets the seed of the random streams and forgets the streams handed
+     * out so far.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        randomStreams.clear();
+    }
+
+    /**
+     * Gets the random stream of the given index. The stream is created
+     * from the seed of the world the first time it is asked for, and the
+     * same instance is returned afterwards. Like the rest of the world,
+     * a stream must only be used from the thread stepping it.
+     *
+     * @param stream the index of the stream, one per system drawing
+     *               random numbers
+     */
+    public RandomStream getRandom(int stream) {
+        RandomStream random = randomStreams.get(idKey(stream));
+        if (random == null) {
+            random = new RandomStream(seed, stream);
+            randomStreams.put(idKey(stream), random);
+        }
+        return random;
+    }
+
+    /**
+     * Returns a 64 bit hash of everything a {@link WorldState} saves: the
+     * step number, the id counter and seed, the random streams, the id,
+     * template, spawn step, position and velocity of every body, the
+     * contact manifolds with their accumulated impulses, and the
+     * explosions.
+     */
+    public long getStateHash() {
+        long hash = StateHash.hash(frame, primitives);
+
+        long spawns = 0;
+        for (int i = 0; i < primitives.size(); i++) {
+            CollisionSphere primitive = primitives.get(i);
+            spawns += StateHash.hashSpawn(primitive.id, primitive.template, primitive.spawnFrame);
+        }
+        hash = StateHash.combine(hash, spawns);
+        hash = StateHash.combine(hash, nextId.get());
+        hash = StateHash.combine(hash, seed);
+
+        long streams = 0;
+        for (int slot = 0; slot < randomStreams.capacity(); slot++) {
+            if (randomStreams.keyAt(slot) != 0)
+                streams += StateHash.hashStream((int) (randomStreams.keyAt(slot) - 1),
+                        randomStreams.valueAt(slot).getState());
+        }
+        hash = StateHash.combine(hash, streams);
+
+        long manifolds = 0;
+        for (ContactManifold m = oldest; m != null; m = m.next)
+            manifolds += StateHash.hashManifold(m);
+        hash = StateHash.combine(hash, manifolds);
+
+        int size = explosions.stateSize();
+        if (hashBuffer.capacity() < size)
+            hashBuffer = ByteBuffer.allocate(Math.max(size, hashBuffer.capacity() * 2));
+        hashBuffer.clear();
+        explosions.writeState(hashBuffer);
+        hashBuffer.flip();
+        return StateHash.combine(hash, StateHash.hashBytes(hashBuffer));
+    }
+
+    /**
+     * Starts logging the steps of the world to the given recorder, or
+     * stops logging if it is null. A keyframe of the current state is
+     * written straight away, so playback can start from this step.
+     */
+    public void setRecorder(ReplayRecorder recorder) {
+        this.recorder = recorder;
+        if (recorder != null)
+            recorder.writeKeyframe(this);
+    }
+
+    /**
+     * Starts publishing the state of the world to the given export after
+     * each step, or stops if it is null.
+     */
+    public void setExport(StateExport export) {
+        this.export = export;
+    }
+
+    /**
+     * Runs the phases of the following steps on the given pool, which
+     * may be shared with other worlds, or on the thread stepping the
+     * world if it is null.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Starts measuring the following steps into the given metrics, or
+     * stops if it is null.
+     */
+    public void setMetrics(WorldMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public WorldMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Advances the world by the given amount of real time, in steps of
+     * the fixed step. Time left over is kept for the next call.
+     *
+     * @param elapsed the time passed since the last call
+     *
+     * @return the number of steps run
+     */
+    public int advance(float elapsed) {
+        accumulator += elapsed;
+
+        int steps = 0;
+        int maxSteps = maxStepsPerAdvance;
+        while (accumulator >= fixedStep && steps < maxSteps) {
+            step(fixedStep);
+            accumulator -= fixedStep;
+            steps++;
+            if (degradation >= DEGRADE_CATCH_UP)
+                maxSteps = steps;
+        }
+        if (steps == maxSteps)
+            accumulator = Math.min(accumulator, fixedStep);
+        return steps;
+    }
+
+    /**
+     * Processes all the physics for the world.
+     *
+     * @param duration the duration of the step
+     */
+    public void step(float duration) {
+        if (duration <= 0.0f)
+            return;
+
+        frame++;
+
+        WorldMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.beginStep();
+        Object stepEvent = FlightEvents.AVAILABLE ? FlightEvents.beginStep() : null;
+        phases.timed = metrics != null || stepEvent != null;
+
+        stepDuration = duration;
+        stepSpawns = 0;
+        culling = !killVolumes.isEmpty();
+        budgeted = stepBudget > 0L && !deterministic;
+        if (budgeted) {
+            stepStart = System.nanoTime();
+            chooseDegradation();
+        } else {
+            degradation = DEGRADE_NONE;
+        }
+
+        if (recorder != null)
+            recorder.beginStep(frame, duration);
+        phases.run(pool);
+        if (recorder != null)
+            recorder.endStep(this);
+        if (export != null)
+            export.publish(this);
+
+        if (budgeted)
+            lastStepTime = System.nanoTime() - stepStart;
+        if (metrics != null)
+            metrics.endStep(this, phases);
+        if (FlightEvents.AVAILABLE)
+            recordFlightEvents(stepEvent);
+    }
+
+    /**
+     * Reports the step to the flight recorder, along with the spawn
+     * bursts and refused commands since the last one.
+     */
+    private void recordFlightEvents(Object stepEvent) {
+        if (stepEvent != null)
+            FlightEvents.endStep(stepEvent, this, phases, pairCount, stepSpawns);
+        if (stepSpawns >= spawnBurstThreshold)
+            FlightEvents.spawnBurst(frame, stepSpawns, stepCommands);
+
+        long refusals = commands.getRefusedCount();
+        if (refusals != reportedRefusals) {
+            FlightEvents.commandQueueFull(frame, refusals - reportedRefusals, commands.getCapacity());
+            reportedRefusals = refusals;
+        }
+    }
+
+    /**
+     * Gets the level of degradation reached by the last step, from
+     * {@link #DEGRADE_NONE} to {@link #DEGRADE_CATCH_UP}.
+     */
+    public int getDegradation() {
+        return degradation;
+    }
+
+    /**
+     * Gets the time taken by the last step, in nanoseconds, when stepping
+     * within a budget.
+     */
+    public long getLastStepTime() {
+        return lastStepTime;
+    }
+
+    /**
+     * Goes one level of degradation up when the last step ran over the
+     * budget, and one level down when it took less than half of it.
+     */
+    private void chooseDegradation() {
+        if (lastStepTime > stepBudget)
+            degradation = Math.min(degradation + 1, DEGRADE_CATCH_UP);
+        else if (lastStepTime < stepBudget / 2 && degradation > DEGRADE_NONE)
+            degradation--;
+    }
+
+    /**
+     * Executes the commands queued for the step, fewer of them once
+     * degraded.
+     */
+    private void executeCommands() {
+        stepCommands = commands.drain(commandHandler,
+                degradation >= DEGRADE_COMMANDS ? degradedCommandLimit : Integer.MAX_VALUE);
+        if (culling && cullMarks.length < primitives.size())
+            growCullColumns(primitives.size());
+    }
+
+    private void growCullColumns(int count) {
+        int capacity = Math.max(count, cullMarks.length * 2);
+        cullX = new float[capacity];
+        cullY = new float[capacity];
+        cullZ = new float[capacity];
+        cullAge = new float[capacity];
+        cullMarks = new boolean[capacity];
+        culled = new CollisionSphere[capacity];
+        culledIds = new int[capacity];
+    }
+
+    private void resolveContacts() {
+        Object event = FlightEvents.AVAILABLE ? FlightEvents.beginSolver() : null;
+        if (budgeted)
+            resolveWithinBudget(stepDuration, stepStart);
+        else
+            resolver.resolveContacts(activeManifolds, stepDuration);
+        if (event != null)
+            FlightEvents.endSolver(event, activeManifolds.size(), resolver.iterationsUsed, resolver.iterations);
+    }
+
+    /**
+     * Reports the events of the step and evicts the stale manifolds,
+     * unless degraded.
+     */
+    private void reportEvents() {
+        endMissingPairs();
+        events.addAll(endEvents);
+        endEvents.clear();
+        reportContacts();
+    }
+
+    /**
+     * Resolves the contacts, with fewer iterations once degraded, and
+     * stops iterating when the budget of the step runs out.
+     */
+    private void resolveWithinBudget(float duration, long start) {
+        // A spike within this very step degrades the solver at once.
+        if (degradation < DEGRADE_SOLVER && System.nanoTime() - start > stepBudget / 2)
+            degradation = DEGRADE_SOLVER;
+
+        int iterations = resolver.iterations;
+        if (degradation >= DEGRADE_SOLVER)
+            resolver.iterations = Math.max(1, iterations / 2);
+        resolver.deadline = start + stepBudget;
+        try {
+            resolver.resolveContacts(activeManifolds, duration);
+        } finally {
+            resolver.iterations = iterations;
+            resolver.deadline = 0L;
+        }
+    }
+
+    /**
+     * Executes the commands drained from the queue. Commands naming a
+     * primitive that is not in the world are ignored.
+     */
+    private void execute(int opcode, int target, int argument,
+                         float a, float b, float c, float d, float e, float f) {
+        if (recorder != null)
+            recorder.recordCommand(opcode, target, argument, a, b, c, d, e, f);
+
+        if (opcode == CommandQueue.SPAWN) {
+            CollisionSphere primitive = templates.get(argument).create();
+            primitive.template = argument;
+            primitive.body.setPosition(a, b, c);
+            primitive.body.setVelocity(d, e, f);
+            primitive.calculateInternals();
+            add(primitive, target);
+            stepSpawns++;
+            return;
+        }
+        if (opcode == CommandQueue.EXPLODE) {
+            if (target >= Explosions.FALLOFF_CONSTANT && target <= Explosions.FALLOFF_SMOOTH)
+                explosions.add(a, b, c, d, e, target, f, argument != 0);
+            return;
+        }
+
+        CollisionSphere primitive = getPrimitive(target);
+        if (primitive == null)
+            return;
+
+        Particle body = primitive.body;
+        switch (opcode) {
+            case CommandQueue.DESPAWN:
+                remove(primitive);
+                break;
+            case CommandQueue.APPLY_FORCE:
+                body.forceAccum.add(a, b, c);
+                break;
+            case CommandQueue.APPLY_IMPULSE:
+                if (body.inverseMass > 0.0f)
+                    body.velocity.add(a * body.inverseMass, b * body.inverseMass, c * body.inverseMass);
+                break;
+            case CommandQueue.SET_STATE:
+                body.setPosition(a, b, c);
+                body.setVelocity(d, e, f);
+                primitive.calculateInternals();
+                break;
+        }
+    }
+
+    /**
+     * Adds the forces of the world to a chunk of the bodies.
+     */
+    private void applyForces(int chunk, int from, int to) {
+        for (int i = 0; i < forces.size(); i++)
+            forces.get(i).apply(primitives, from, to, stepDuration);
+    }
+
+    /**
+     * Integrates a chunk of the bodies.
+     */
+    private void integrate(int chunk, int from, int to) {
+        ParticleIntegrator integrator = this.integrator;
+        for (int i = from; i < to; i++)
+            integrator.integrate(primitives.get(i).body, stepDuration);
+    }
+
+    /**
+     * Updates the internal data of the primitives of a chunk from their
+     * integrated bodies.
+     */
+    private void calculateInternals(int chunk, int from, int to) {
+        for (int i = from; i < to; i++)
+            primitives.get(i).calculateInternals();
+    }
+
+    /**
+     * Packs the positions and ages of a chunk of the bodies into columns
+     * and marks the ones that reached a kill volume.
+     */
+    private void cull(int chunk, int from, int to) {
+        for (int i = from; i < to; i++) {
+            CollisionSphere primitive = primitives.get(i);
+            Vector3f position = primitive.body.position;
+            cullX[i] = position.x;
+            cullY[i] = position.y;
+            cullZ[i] = position.z;
+            cullAge[i] = (frame - primitive.spawnFrame) * fixedStep;
+            cullMarks[i] = false;
+        }
+        killVolumes.evaluate(cullX, cullY, cullZ, cullAge, from, to, cullMarks);
+    }
+
+    /**
+     * Removes the bodies marked by the kill volumes in a single pass over
+     * the primitives, keeping the order of the others, then evicts the
+     * manifolds of the bodies removed in a single pass over the
+     * manifolds.
+     */
+    private void compact() {
+        culledCount = 0;
+        if (!culling)
+            return;
+
+        int n = primitives.size();
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            CollisionSphere primitive = primitives.get(i);
+            if (cullMarks[i]) {
+                culled[culledCount] = primitive;
+                culledIds[culledCount++] = primitive.id;
+                primitive.index = -1;
+            } else {
+                if (kept != i) {
+                    primitives.set(kept, primitive);
+                    primitive.index = kept;
+                }
+                kept++;
+            }
+        }
+        if (culledCount == 0)
+            return;
+        primitives.subList(kept, n).clear();
+
+        for (ContactManifold manifold = oldest; manifold != null; ) {
+            ContactManifold next = manifold.next;
+            if (manifold.one.index < 0 || manifold.two.index < 0)
+                evict(manifold);
+            manifold = next;
+        }
+        for (int i = 0; i < culledCount; i++) {
+            primitivesById.remove(idKey(culledIds[i]));
+            culled[i].id = -1;
+        }
+    }
+
+    /**
+     * Rebuilds the broadphase and finds the manifold of every pair it
+     * reports.
+     */
+    private void findPairs() {
+        Object event = FlightEvents.AVAILABLE ? FlightEvents.beginBroadphase() : null;
+        Broadphase built = nextBroadphase;
+        built.update(primitives);
+        nextBroadphase = broadphase;
+        broadphase = built;
+
+        broadphase.findPairs(pairs);
+        activeManifolds.clear();
+
+        pairCount = pairs.getCount();
+        if (event != null)
+            FlightEvents.endBroadphase(event, primitives.size(), pairCount);
+        if (deterministic)
+            sortPairs(pairCount);
+
+        if (pairManifolds.length < pairCount)
+            pairManifolds = new ContactManifold[Math.max(pairCount, pairManifolds.length * 2)];
+        int chunks = (pairCount + NARROWPHASE_GRAIN - 1) / NARROWPHASE_GRAIN;
+        if (detectors.length < chunks) {
+            int previous = detectors.length;
+            detectors = Arrays.copyOf(detectors, chunks);
+            for (int i = previous; i < chunks; i++)
+                detectors[i] = new CollisionDetector();
+        }
+
+        for (int i = 0; i < pairCount; i++) {
+            CollisionSphere one, two;
+            if (deterministic) {
+                one = getPrimitive((int) (pairKeys[i] >>> 32));
+                two = getPrimitive((int) pairKeys[i]);
+            } else {
+                CollisionSphere a = broadphase.getPrimitive(pairs.getA(i));
+                CollisionSphere b = broadphase.getPrimitive(pairs.getB(i));
+
+                // Keep the primitive with the lower id first, so the normals
+                // of a manifold always point the same way.
+                one = a.id < b.id ? a : b;
+                two = a.id < b.id ? b : a;
+            }
+
+            pairManifolds[i] = findManifold(one, two);
+        }
+    }
+
+    /**
+     * Spreads the explosions through the bodies of the new broadphase.
+     */
+    private void explode() {
+        explosions.step(broadphase, stepDuration, pool);
+    }
+
+    /**
+     * Generates the contacts of a chunk of the pairs. Each pair only
+     * touches its own manifold.
+     */
+    private void detectContacts(int chunk, int from, int to) {
+        CollisionDetector detector = detectors[chunk];
+        for (int i = from; i < to; i++) {
+            ContactManifold manifold = pairManifolds[i];
+            manifold.begin(frame);
+            detector.sphereAndSphere((CollisionSphere) manifold.one, (CollisionSphere) manifold.two, manifold);
+            manifold.end();
+        }
+    }
+
+    /**
+     * Gathers the manifolds with contacts, in the order of the pairs, and
+     * reports the pairs that stopped touching.
+     */
+    private void collectContacts() {
+        for (int i = 0; i < pairCount; i++) {
+            ContactManifold manifold = pairManifolds[i];
+            pairManifolds[i] = null;
+            if (manifold.contactCount > 0) {
+                manifold.activeIndex = activeManifolds.size();
+                activeManifolds.add(manifold);
+            } else if (manifold.touching) {
+                reportEnd(manifold);
+            }
+        }
+    }
+
+    /**
+     * Sorts the keys of the pairs found by the broadphase, so they are
+     * processed in an order that only depends on the primitive ids.
+     */
+    private void sortPairs(int pairCount) {
+        if (pairKeys.length < pairCount)
+            pairKeys = new long[Math.max(pairCount, pairKeys.length * 2)];
+
+        for (int i = 0; i < pairCount; i++) {
+            CollisionSphere a = broadphase.getPrimitive(pairs.getA(i));
+            CollisionSphere b = broadphase.getPrimitive(pairs.getB(i));
+            pairKeys[i] = ContactManifold.key(a.id, b.id);
+        }
+        Arrays.sort(pairKeys, 0, pairCount);
+    }
+
+    /**
+     * Reports a begin or stay event for every pair with contacts, once
+     * the resolver has worked out the impulses between them.
+     */
+    private void reportContacts() {
+        for (int i = 0; i < activeManifolds.size(); i++) {
+            ContactManifold manifold = activeManifolds.get(i);
+            Contact contact = manifold.contacts[0];
+            int type = manifold.touching ? CollisionEventBuffer.STAY : CollisionEventBuffer.BEGIN;
+            manifold.touching = true;
+
+            events.add(type, manifold.one, manifold.two,
+                    contact.contactPoint.x, contact.contactPoint.y, contact.contactPoint.z,
+                    contact.contactNormal.x, contact.contactNormal.y, contact.contactNormal.z,
+                    manifold.getNormalImpulse());
+        }
+    }
+
+    private void reportEnd(ContactManifold manifold) {
+        manifold.touching = false;
+        if (events.accepts(CollisionEventBuffer.END, manifold.one.category, manifold.two.category))
+            endEvents.add(CollisionEventBuffer.END, manifold.one.id, manifold.two.id,
+                    0f, 0f, 0f, 0f, 0f, 0f, 0f);
+    }
+
+    /**
+     * Returns the manifold of the given pair, creating it if needed, and
+     * moves it to the newest end of the list.
+     */
+    private ContactManifold findManifold(CollisionSphere one, CollisionSphere two) {
+        long key = ContactManifold.key(one.id, two.id);
+        ContactManifold manifold = manifolds.get(key);
+
+        if (manifold == null) {
+            manifold = freeManifolds.isEmpty() ? new ContactManifold() : freeManifolds.pop();
+            manifold.init(key, one, two, frame);
+            manifold.attach();
+            manifolds.put(key, manifold);
+        } else {
+            unlink(manifold);
+        }
+
+        link(manifold);
+        return manifold;
+    }
+
+    /*
+     * Access to the internals of the world, used by WorldState to save
+     * and restore it.
+     */
+
+    CommandQueue getCommands() {
+        return commands;
+    }
+
+    SpawnFactory getTemplate(int template) {
+        return templates.get(template);
+    }
+
+    int getNextId() {
+        return nextId.get();
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    LongMap<RandomStream> getRandomStreams() {
+        return randomStreams;
+    }
+
+    /*
+     * Counts of the last step, used by WorldMetrics.
+     */
+
+    int getPairCount() {
+        return pairCount;
+    }
+
+    int getStepSpawns() {
+        return stepSpawns;
+    }
+
+    int getStepCommands() {
+        return stepCommands;
+    }
+
+    ContactManifold getOldestManifold() {
+        return oldest;
+    }
+
+    /**
+     * Sets the step counters and seed of a restored state.
+     */
+    void restoreCounters(int frame, int nextId, long seed) {
+        this.frame = frame;
+        this.nextId.set(nextId);
+        this.seed = seed;
+        this.accumulator = 0.0f;
+    }
+
+    /**
+     * Replaces the primitives of the world with the given ones, in the
+     * given order, dropping every manifold without reporting events.
+     * Primitives not in the list leave the world.
+     *
+     * @param restored the primitives, some possibly not in the world yet
+     * @param ids      the id of each primitive
+     */
+    void restorePrimitives(List<CollisionSphere> restored, int[] ids) {
+        while (oldest != null) {
+            oldest.touching = false;
+            evict(oldest);
+        }
+        activeManifolds.clear();
+
+        for (int i = 0; i < primitives.size(); i++) {
+            primitives.get(i).id = -1;
+            primitives.get(i).index = -1;
+        }
+        primitives.clear();
+        primitivesById.clear();
+
+        for (int i = 0; i < restored.size(); i++) {
+            CollisionSphere primitive = restored.get(i);
+            primitive.id = ids[i];
+            primitive.index = i;
+            primitives.add(primitive);
+            primitivesById.put(idKey(ids[i]), primitive);
+        }
+    }
+
+    /**
+     * Recreates a manifold of a restored state, as the newest one.
+     */
+    ContactManifold restoreManifold(CollisionSphere one, CollisionSphere two,
+                                    int firstFrame, int lastFrame, boolean touching) {
+        ContactManifold manifold = findManifold(one, two);
+        manifold.firstFrame = firstFrame;
+        manifold.lastFrame = lastFrame;
+        manifold.touching = touching;
+        return manifold;
+    }
+
+    /**
+     * Maps a primitive id to a map key; the key zero is reserved.
+     */
+    private static long idKey(int id) {
+        return id + 1L;
+    }
+
+    /**
+     * Reports the end of the pairs that touched until the last step but
+     * were not reported by the broadphase in this one, and evicts the
+     * manifolds whose pair has not been reported for more than the
+     * allowed number of steps, unless degraded. The list is ordered by
+     * the last step each pair was reported in, so only the manifolds at
+     * its head that were not reported in this step are visited.
+     */
+    private void endMissingPairs() {
+        boolean evicting = degradation < DEGRADE_HOUSEKEEPING;
+        for (ContactManifold manifold = oldest; manifold != null && manifold.lastFrame != frame; ) {
+            ContactManifold next = manifold.next;
+            if (evicting && manifold.getIdleFrames(frame) > maxIdleFrames)
+                evict(manifold);
+            else if (manifold.touching)
+                reportEnd(manifold);
+            manifold = next;
+        }
+    }
+
+    /**
+     * Takes a manifold out of the manifolds with contacts, if it is in
+     * there, moving the last one into its place.
+     */
+    private void deactivate(ContactManifold manifold) {
+        int index = manifold.activeIndex;
+        if (index >= activeManifolds.size() || activeManifolds.get(index) != manifold)
+            return;
+        ContactManifold last = activeManifolds.remove(activeManifolds.size() - 1);
+        if (last != manifold) {
+            activeManifolds.set(index, last);
+            last.activeIndex = index;
+        }
+    }
+
+    private void evict(ContactManifold manifold) {
+        if (manifold.touching)
+            reportEnd(manifold);
+        unlink(manifold);
+        manifold.detach();
+        manifolds.remove(manifold.key);
+        manifold.one = manifold.two = null;
+        manifold.contactCount = 0;
+        freeManifolds.push(manifold);
+    }
+
+    private void link(ContactManifold manifold) {
+        manifold.previous = newest;
+        manifold.next = null;
+        if (newest != null)
+            newest.next = manifold;
+        else
+            oldest = manifold;
+        newest = manifold;
+    }
+
+    private void unlink(ContactManifold manifold) {
+        if (manifold.previous != null)
+            manifold.previous.next = manifold.next;
+        else
+            oldest = manifold.next;
+        if (manifold.next != null)
+            manifold.next.previous = manifold.previous;
+        else
+            newest = manifold.previous;
+        manifold.previous = manifold.next = null;
+    }
+}
@@ -0,0 +1,494 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs many independent worlds, each at its own tick rate, on a small
+ * fixed pool of carrier threads, instead of one thread per world.
+ * <p>
+ * Every hosted world waits in a queue ordered by the time of its next
+ * tick. A carrier takes the world whose tick is the most overdue, runs a
+ * single step of it and puts it back, so a slow world delays the others
+ * by at most one of its steps and no world is stepped by two carriers at
+ * once: each world is still only used from one thread at a time, as
+ * {@link World} requires, and other threads go through its command
+ * queue as usual.
+ * <p>
+ * The CPU time of every step is charged to its world. From the average
+ * cost of a step and the tick rate the host estimates its load, the
+ * share of the carriers the worlds need. A new world is charged an
+ * estimated cost until its own steps are measured, and refused if that
+ * estimate would take the load past {@link #maxLoad}. A world that
+ * falls more than {@link #maxLagTicks} behind, because the host is
+ * oversubscribed anyway, drops the ticks it missed rather than running
+ * them back to back.
+ */
+public class WorldHost implements Closeable {
+
+    /**
+     * The weight of the last step in the average cost of a step.
+     */
+    private static final double COST_WEIGHT = 1.0 / 16.0;
+
+    /**
+     * A world hosted by a {@link WorldHost}.
+     */
+    public static class Handle implements Comparable<Handle> {
+
+        private final WorldHost host;
+        private final World world;
+        private final float tickRate;
+        private final long period;
+
+        /*
+         * Guarded by the lock of the host.
+         */
+        private long deadline;
+        private boolean queued;
+        private boolean running;
+        private boolean removed;
+        private double averageCost;
+
+        private volatile long cpuNanos;
+        private volatile long steps;
+        private volatile long lateTicks;
+        private volatile long skippedTicks;
+        private volatile Throwable failure;
+
+        Handle(WorldHost host, World world, float tickRate, long deadline) {
+            this.host = host;
+            this.world = world;
+            this.tickRate = tickRate;
+            this.period = (long) (1.0e9 / tickRate);
+            this.deadline = deadline;
+        }
+
+        public World getWorld() {
+            return world;
+        }
+
+        /**
+         * Gets the number of steps per second the world is run at.
+         */
+        public float getTickRate() {
+            return tickRate;
+        }
+
+        /**
+         * Gets the CPU time spent stepping the world, in nanoseconds.
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * Gets the number of steps run.
+         */
+        public long getSteps() {
+            return steps;
+        }
+
+        /**
+         * Gets the number of steps started later than one period after
+         * their tick.
+         */
+        public long getLateTicks() {
+            return lateTicks;
+        }
+
+        /**
+         * Gets the number of ticks dropped because the world fell too far
+         * behind.
+         */
+        public long getSkippedTicks() {
+            return skippedTicks;
+        }
+
+        /**
+         * Gets the exception thrown by a step, which removed the world
+         * from the host, or null.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Stops running the world. Once this returns no carrier uses the
+         * world any more, so it must not be called from a step of the
+         * world itself.
+         */
+        public void remove() {
+            host.remove(this);
+        }
+
+        @Override
+        public int compareTo(Handle other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    /**
+     * Holds the load, as a share of all the carriers, past which new
+     * worlds are refused.
+     */
+    public volatile float maxLoad = 0.9f;
+
+    /**
+     * Holds the number of ticks a world may fall behind before the
+     * ticks it missed are dropped.
+     */
+    public volatile int maxLagTicks = 4;
+
+    private final Thread[] carriers;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTime;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Handle> queue = new PriorityQueue<>();
+
+    /**
+     * Signalled when a world may be ready for a carrier: a new head of
+     * the queue, or a carrier leaving the head to the others.
+     */
+    private final Condition ready = lock.newCondition();
+
+    /**
+     * Signalled when the step of a removed world is over.
+     */
+    private final Condition stopped = lock.newCondition();
+
+    /*
+     * Guarded by the lock.
+     */
+    private int hostedCount;
+    private double demand;
+    private double costSum;
+    private boolean closed;
+
+    /**
+     * Holds the carrier waiting for the tick of the head of the queue,
+     * if any. The other idle carriers wait until they are signalled, so
+     * a tick only wakes one carrier.
+     */
+    private Thread leader;
+
+    /**
+     * Creates a new host with one carrier per available processor.
+     */
+    public WorldHost() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new host and starts its carriers.
+     *
+     * @param carrierCount the number of threads stepping the worlds
+     */
+    public WorldHost(int carrierCount) {
+        cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        if (cpuTime && !threads.isThreadCpuTimeEnabled())
+            threads.setThreadCpuTimeEnabled(true);
+
+        carriers = new Thread[carrierCount];
+        for (int i = 0; i < carrierCount; i++) {
+            carriers[i] = new Thread(this::carry, "world-host-" + i);
+            carriers[i].setDaemon(true);
+            carriers[i].start();
+        }
+    }
+
+    /**
+     * Starts running a world, its first step one period from now, charged
+     * the mean cost of a step of the worlds already hosted until its own
+     * steps are measured. The first worlds of a host have nothing to go
+     * by, so should rather be given an estimate with
+     * {@link #host(World, float, long)}.
+     *
+     * @param world    the world to run
+     * @param tickRate the number of steps per second
+     *
+     * @return the handle of the world, or null if the host is closed or
+     * too loaded to take it
+     */
+    public Handle host(World world, float tickRate) {
+        return host(world, tickRate, -1L);
+    }
+
+    /**
+     * Starts running a world, its first step one period from now. The
+     * world must not be stepped by anyone else while hosted, and its
+     * {@link World#fixedStep} is set to match the tick rate once it is
+     * taken.
+     *
+     * @param world    the world to run
+     * @param tickRate the number of steps per second
+     * @param stepCost the estimated CPU time of a step of the world, in
+     *                 nanoseconds, charged until its steps are measured,
+     *                 or a negative value for the mean of the hosted worlds
+     *
+     * @return the handle of the world, or null if the host is closed or
+     * the estimated cost would take its load past {@link #maxLoad}
+     */
+    public Handle host(World world, float tickRate, long stepCost) {
+        Handle handle = new Handle(this, world, tickRate, 0L);
+
+        lock.lock();
+        try {
+            if (closed)
+                return null;
+            double cost = stepCost >= 0 ? stepCost : hostedCount == 0 ? 0.0 : costSum / hostedCount;
+            float load = (float) ((demand + cost * tickRate) / (carriers.length * 1.0e9));
+            if (load > maxLoad) {
+                if (FlightEvents.AVAILABLE)
+                    FlightEvents.hostSaturated(hostedCount, load);
+                return null;
+            }
+            world.fixedStep = 1.0f / tickRate;
+            handle.averageCost = cost;
+            costSum += cost;
+            demand += cost * tickRate;
+            handle.deadline = System.nanoTime() + handle.period;
+            hostedCount++;
+            enqueue(handle);
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of worlds hosted.
+     */
+    public int getHostedCount() {
+        lock.lock();
+        try {
+            return hostedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the estimated load of the host: the CPU time the worlds need
+     * per second, over the time the carriers have. Past 1 the host is
+     * oversubscribed and worlds fall behind.
+     */
+    public float getLoad() {
+        lock.lock();
+        try {
+            return getLoadLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the carriers once they finish the steps in progress. The
+     * worlds stay as they are.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        boolean interrupted = false;
+        for (Thread carrier : carriers) {
+            if (carrier == Thread.currentThread())
+                continue;
+            while (true) {
+                try {
+                    carrier.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void remove(Handle handle) {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            if (handle.removed)
+                return;
+            handle.removed = true;
+            if (handle.queued) {
+                queue.remove(handle);
+                handle.queued = false;
+            }
+            while (handle.running) {
+                try {
+                    stopped.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            retire(handle);
+        } finally {
+            lock.unlock();
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * The loop of a carrier: takes the most overdue world, steps it and
+     * puts it back.
+     */
+    private void carry() {
+        while (true) {
+            Handle handle = take();
+            if (handle == null)
+                return;
+
+            long start = System.nanoTime();
+            long startCpu = cpuTime ? threads.getCurrentThreadCpuTime() : start;
+            Throwable failure = null;
+            try {
+                handle.world.step(handle.world.fixedStep);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            long cost = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - startCpu;
+
+            handle.cpuNanos += cost;
+            handle.steps++;
+            if (start - handle.deadline > handle.period)
+                handle.lateTicks++;
+            if (failure != null)
+                handle.failure = failure;
+
+            release(handle, cost, failure != null);
+        }
+    }
+
+    /**
+     * Waits for the tick of the most overdue world and takes it out of
+     * the queue. Only the leader waits for the tick; once it takes a
+     * world it wakes another carrier to lead.
+     *
+     * @return the world to step, or null once the host is closed
+     */
+    private Handle take() {
+        lock.lock();
+        try {
+            while (!closed) {
+                Handle next = queue.peek();
+                if (next == null) {
+                    ready.awaitUninterruptibly();
+                    continue;
+                }
+                long wait = next.deadline - System.nanoTime();
+                if (wait <= 0) {
+                    queue.poll();
+                    next.queued = false;
+                    next.running = true;
+                    return next;
+                }
+                if (leader != null) {
+                    ready.awaitUninterruptibly();
+                    continue;
+                }
+                Thread self = Thread.currentThread();
+                leader = self;
+                try {
+                    ready.await(wait, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // Carriers are only stopped by close.
+                } finally {
+                    if (leader == self)
+                        leader = null;
+                }
+            }
+            return null;
+        } finally {
+            if (leader == null && !queue.isEmpty())
+                ready.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a world back in the queue after a step, at its next tick, and
+     * updates the cost of its steps.
+     */
+    private void release(Handle handle, long cost, boolean failed) {
+        lock.lock();
+        try {
+            handle.running = false;
+            if (handle.removed)
+                stopped.signalAll();
+
+            double previous = handle.averageCost;
+            handle.averageCost = handle.steps == 1 ? cost
+                    : handle.averageCost + (cost - handle.averageCost) * COST_WEIGHT;
+            costSum += handle.averageCost - previous;
+            demand += (handle.averageCost - previous) * handle.tickRate;
+
+            if (handle.removed || closed)
+                return;
+            if (failed) {
+                handle.removed = true;
+                retire(handle);
+                return;
+            }
+
+            handle.deadline += handle.period;
+            long now = System.nanoTime();
+            long lag = now - handle.deadline;
+            if (lag > handle.period * maxLagTicks) {
+                long skipped = lag / handle.period;
+                handle.skippedTicks += skipped;
+                handle.deadline += skipped * handle.period;
+            }
+            enqueue(handle);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a world for its next tick, waking a carrier only if it is
+     * the new head of the queue. Called with the lock held.
+     */
+    private void enqueue(Handle handle) {
+        queue.add(handle);
+        handle.queued = true;
+        if (queue.peek() == handle) {
+            leader = null;
+            ready.signal();
+        }
+    }
+
+    /**
+     * Forgets a removed world. Called with the lock held.
+     */
+    private void retire(Handle handle) {
+        hostedCount--;
+        costSum -= handle.averageCost;
+        demand -= handle.averageCost * handle.tickRate;
+        if (hostedCount == 0) {
+            costSum = 0.0;
+            demand = 0.0;
+        }
+    }
+
+    private float getLoadLocked() {
+        return (float) (demand / (carriers.length * 1.0e9));
+    }
+}
@@ -0,0 +1,261 @@
+package com.jcs;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the steps of a {@link World}: the time taken by every step
+ * and by each of its phases, the number of bodies, pairs, contacts,
+ * spawns and commands, and the bytes allocated. Step times are kept in
+ * a {@link LatencyHistogram}, for percentiles.
+ * <p>
+ * Metrics are attached with {@link World#setMetrics}; a world without
+ * metrics only pays for checking that it has none. They are updated by
+ * the thread stepping the world, and can be read at any time by any
+ * thread, directly or through JMX once {@link #register registered}.
+ */
+public class WorldMetrics implements WorldMetricsMXBean {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Holds the bean giving the bytes allocated by a thread, or null if
+     * the virtual machine has none.
+     */
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+    private final LatencyHistogram stepTimes = new LatencyHistogram();
+
+    private volatile String[] phaseNames = new String[0];
+    private AtomicLongArray phaseLast = new AtomicLongArray(0);
+    private AtomicLongArray phaseTotal = new AtomicLongArray(0);
+
+    private volatile long steps;
+    private volatile int bodyCount;
+    private volatile int pairCount;
+    private volatile int contactCount;
+    private volatile long spawnCount;
+    private volatile long commandCount;
+    private volatile long allocatedBytes = -1L;
+    private volatile boolean resetRequested;
+
+    /*
+     * The step being measured.
+     */
+    private long stepStart;
+    private long allocatedStart;
+
+    private ObjectName registeredName;
+
+    /**
+     * Gets the histogram of the step times, for other percentiles than
+     * those given.
+     */
+    public LatencyHistogram getStepTimes() {
+        return stepTimes;
+    }
+
+    /**
+     * Gets the number of phases of a step, known once a step was
+     * measured.
+     */
+    public int getPhaseCount() {
+        return phaseNames.length;
+    }
+
+    public String getPhaseName(int phase) {
+        return phaseNames[phase];
+    }
+
+    /**
+     * Gets the time the given phase took in the last step.
+     */
+    public long getLastPhaseTime(int phase) {
+        return phaseLast.get(phase);
+    }
+
+    /**
+     * Gets the mean time of the given phase.
+     */
+    public long getMeanPhaseTime(int phase) {
+        long n = steps;
+        return n == 0 ? 0L : phaseTotal.get(phase) / n;
+    }
+
+    @Override
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public double getStepTimeMean() {
+        return stepTimes.getMean();
+    }
+
+    @Override
+    public long getStepTimeP50() {
+        return stepTimes.getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getStepTimeP99() {
+        return stepTimes.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getStepTimeP999() {
+        return stepTimes.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getStepTimeMax() {
+        return stepTimes.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimes() {
+        String[] names = phaseNames;
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (int phase = 0; phase < names.length; phase++)
+            times.put(names[phase], getMeanPhaseTime(phase));
+        return times;
+    }
+
+    @Override
+    public int getBodyCount() {
+        return bodyCount;
+    }
+
+    @Override
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    @Override
+    public int getContactCount() {
+        return contactCount;
+    }
+
+    @Override
+    public long getSpawnCount() {
+        return spawnCount;
+    }
+
+    @Override
+    public long getCommandCount() {
+        return commandCount;
+    }
+
+    @Override
+    public long getAllocatedBytesPerStep() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * com.jcs:type=World,name=the given name.
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.jcs:type=World,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server, if
+     * registered.
+     */
+    public void unregister() throws JMException {
+        if (registeredName == null)
+            return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        registeredName = null;
+    }
+
+    /**
+     * Starts measuring a step. Called by the world.
+     */
+    void beginStep() {
+        if (resetRequested) {
+            resetRequested = false;
+            clear();
+        }
+        if (ALLOCATIONS != null)
+            allocatedStart = ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        stepStart = System.nanoTime();
+    }
+
+    /**
+     * Ends measuring a step. Called by the world.
+     */
+    void endStep(World world, TaskGraph phases) {
+        long time = System.nanoTime() - stepStart;
+        if (ALLOCATIONS != null)
+            allocatedBytes = ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedStart;
+
+        if (phaseNames.length != phases.getTaskCount())
+            initPhases(phases);
+        for (int phase = 0; phase < phaseNames.length; phase++) {
+            long phaseTime = phases.getTask(phase).getLastTime();
+            phaseLast.lazySet(phase, phaseTime);
+            phaseTotal.lazySet(phase, phaseTotal.get(phase) + phaseTime);
+        }
+
+        List<ContactManifold> active = world.getActiveManifolds();
+        int contacts = 0;
+        for (int i = 0; i < active.size(); i++)
+            contacts += active.get(i).contactCount;
+
+        bodyCount = world.getPrimitives().size();
+        pairCount = world.getPairCount();
+        contactCount = contacts;
+        spawnCount += world.getStepSpawns();
+        commandCount += world.getStepCommands();
+        stepTimes.record(time);
+        steps++;
+    }
+
+    private void initPhases(TaskGraph phases) {
+        String[] names = new String[phases.getTaskCount()];
+        for (int phase = 0; phase < names.length; phase++)
+            names[phase] = phases.getTask(phase).name;
+        phaseLast = new AtomicLongArray(names.length);
+        phaseTotal = new AtomicLongArray(names.length);
+        phaseNames = names;
+    }
+
+    private void clear() {
+        stepTimes.reset();
+        for (int phase = 0; phase < phaseNames.length; phase++) {
+            phaseLast.lazySet(phase, 0L);
+            phaseTotal.lazySet(phase, 0L);
+        }
+        spawnCount = 0L;
+        commandCount = 0L;
+        steps = 0L;
+    }
+
+    private static com.sun.management.ThreadMXBean allocations() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported())
+            return null;
+        if (!threads.isThreadAllocatedMemoryEnabled())
+            threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
@@ -0,0 +1,48 @@
+package com.jcs;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link WorldMetrics}, as seen through JMX.
+ * Times are in nanoseconds.
+ */
+public interface WorldMetricsMXBean {
+
+    long getSteps();
+
+    double getStepTimeMean();
+
+    long getStepTimeP50();
+
+    long getStepTimeP99();
+
+    long getStepTimeP999();
+
+    long getStepTimeMax();
+
+    /**
+     * Gets the mean time of each phase of a step, by name.
+     */
+    Map<String, Long> getPhaseTimes();
+
+    int getBodyCount();
+
+    int getPairCount();
+
+    int getContactCount();
+
+    long getSpawnCount();
+
+    long getCommandCount();
+
+    /**
+     * Gets the bytes allocated by the last step on the thread stepping
+     * the world, or -1 if the virtual machine cannot tell.
+     */
+    long getAllocatedBytesPerStep();
+
+    /**
+     * Forgets everything measured so far, from the next step on.
+     */
+    void reset();
+}
@@ -0,0 +1,460 @@
+package com.jcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Checkpoints a {@link World} into a memory mapped file, so a long
+ * running simulation can be restarted from where it stopped.
+ * <p>
+ * The file holds a fixed header followed by one column per primitive
+ * property (ids, templates, spawn frames, x, y and z of the position
+ * and of the velocity), each sized for a capacity of primitives, and
+ * then a tail with the random streams, the contact manifolds and the
+ * explosions still spreading in the layout of {@link WorldState}.
+ * Everything is little endian.
+ * <p>
+ * Taking a checkpoint splits into two parts. While the world waits, the
+ * properties of the primitives are gathered into columns in memory, in
+ * parallel on a fork join pool. A background thread then compares each
+ * region of each column with the previous checkpoint and only copies the
+ * regions that changed into the mapped file before forcing it to disk,
+ * so bodies at rest cost nothing after the first checkpoint. The header
+ * marks the file as incomplete while a write is in progress, so a crash
+ * during a write is detected on restore instead of loading a torn state.
+ * <p>
+ * Restoring maps the file and bulk copies the columns into arrays, with
+ * no parsing per primitive.
+ */
+public class WorldSnapshot implements Closeable {
+
+    /**
+     * The first int of a snapshot file.
+     */
+    public static final int MAGIC = 0x4a435353;
+
+    /**
+     * The version of the layout, written in the header.
+     */
+    public static final int VERSION = 4;
+
+    /**
+     * The number of primitives in a region, the unit of incremental
+     * writes. A region of a column fills one 4 KiB page.
+     */
+    public static final int REGION_SIZE = 1024;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int INT_COLUMNS = 3;
+    private static final int FLOAT_COLUMNS = 6;
+    private static final int COLUMNS = INT_COLUMNS + FLOAT_COLUMNS;
+
+    private static final int INCOMPLETE = 0;
+    private static final int COMPLETE = 1;
+
+    /*
+     * Offsets of the header fields.
+     */
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int STATE_OFFSET = 8;
+    private static final int FRAME_OFFSET = 12;
+    private static final int NEXT_ID_OFFSET = 16;
+    private static final int COUNT_OFFSET = 20;
+    private static final int CAPACITY_OFFSET = 24;
+    private static final int TAIL_LENGTH_OFFSET = 28;
+    private static final int SEED_OFFSET = 32;
+
+    /**
+     * The primitive columns of a checkpoint, gathered on the stepping
+     * thread.
+     */
+    private static class Capture {
+        int frame;
+        int nextId;
+        long seed;
+        int count;
+        int[][] ints = new int[INT_COLUMNS][0];
+        float[][] floats = new float[FLOAT_COLUMNS][0];
+        ByteBuffer tail = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+        void ensureCapacity(int capacity) {
+            if (ints[0].length >= capacity)
+                return;
+            for (int c = 0; c < INT_COLUMNS; c++)
+                ints[c] = new int[capacity];
+            for (int c = 0; c < FLOAT_COLUMNS; c++)
+                floats[c] = new float[capacity];
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int capacity;
+    private int tailCapacity;
+
+    /**
+     * Holds the capture being written and the one written before it,
+     * which the next write is compared against.
+     */
+    private Capture current = new Capture();
+    private Capture previous = new Capture();
+
+    /**
+     * Holds whether the file content is unknown, so the next write must
+     * copy every region.
+     */
+    private boolean fullWrite = true;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Future<?> pending;
+
+    private volatile int regionsWritten;
+
+    /**
+     * Opens the given file for checkpoints, creating it if needed. The
+     * first checkpoint rewrites it completely.
+     *
+     * @param path the snapshot file
+     */
+    public WorldSnapshot(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Takes a checkpoint of the world, gathering its state on the common
+     * fork join pool.
+     *
+     * @throws UncheckedIOException if the previous write failed
+     */
+    public void checkpoint(World world) {
+        checkpoint(world, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Takes a checkpoint of the world. The state is gathered in parallel
+     * on the given pool before this method returns, so the world may keep
+     * stepping; the file is written in the background. If the previous
+     * checkpoint is still being written this waits for it first.
+     *
+     * @param world the world to save
+     * @param pool  the pool gathering the primitive columns
+     *
+     * @throws UncheckedIOException if the previous write failed
+     */
+    public void checkpoint(World world, ForkJoinPool pool) {
+        await();
+
+        Capture capture = previous;
+        previous = current;
+        current = capture;
+
+        capture.frame = world.getFrame();
+        capture.nextId = world.getNextId();
+        capture.seed = world.getSeed();
+
+        List<CollisionSphere> primitives = world.getPrimitives();
+        int n = primitives.size();
+        capture.count = n;
+        capture.ensureCapacity(n);
+        if (n <= REGION_SIZE)
+            gather(capture, primitives, 0, n);
+        else
+            pool.invoke(new GatherTask(capture, primitives, 0, n));
+
+        int tailLength = WorldState.streamsSize(world) + WorldState.manifoldsSize(world)
+                + world.explosions.stateSize();
+        if (capture.tail.capacity() < tailLength)
+            capture.tail = ByteBuffer.allocate(Math.max(tailLength, capture.tail.capacity() * 2))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        capture.tail.clear();
+        WorldState.writeStreams(world, capture.tail);
+        WorldState.writeManifolds(world, capture.tail);
+        world.explosions.writeState(capture.tail);
+        capture.tail.flip();
+
+        Capture written = previous;
+        pending = writer.submit(() -> {
+            try {
+                write(capture, written);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Waits for the last checkpoint to be on disk.
+     *
+     * @throws UncheckedIOException if the write failed
+     */
+    public void await() {
+        if (pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a checkpoint", e);
+        } catch (ExecutionException e) {
+            fullWrite = true;
+            if (e.getCause() instanceof UncheckedIOException)
+                throw (UncheckedIOException) e.getCause();
+            throw new IllegalStateException("Checkpoint failed", e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Gets the number of column regions copied into the file by the last
+     * finished checkpoint.
+     */
+    public int getRegionsWritten() {
+        return regionsWritten;
+    }
+
+    /**
+     * Waits for the last checkpoint and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            await();
+        } finally {
+            writer.shutdown();
+            channel.close();
+        }
+    }
+
+    /**
+     * Restores a world from a snapshot file.
+     *
+     * @param world the world, set up with the same templates and directly
+     *              added primitives as the saved one
+     * @param path  the snapshot file
+     *
+     * @throws IOException if the file is not a complete snapshot
+     */
+    public static void restore(World world, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES)
+                throw new IOException("Not a snapshot file: " + path);
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (file.getInt(MAGIC_OFFSET) != MAGIC)
+                throw new IOException("Not a snapshot file: " + path);
+            int version = file.getInt(VERSION_OFFSET);
+            if (version != VERSION)
+                throw new IOException("Unknown snapshot version " + version);
+            if (file.getInt(STATE_OFFSET) != COMPLETE)
+                throw new IOException("Snapshot was not completely written: " + path);
+
+            int frame = file.getInt(FRAME_OFFSET);
+            int nextId = file.getInt(NEXT_ID_OFFSET);
+            int n = file.getInt(COUNT_OFFSET);
+            int capacity = file.getInt(CAPACITY_OFFSET);
+            int tailLength = file.getInt(TAIL_LENGTH_OFFSET);
+            long seed = file.getLong(SEED_OFFSET);
+
+            int[][] ints = new int[INT_COLUMNS][n];
+            float[][] floats = new float[FLOAT_COLUMNS][n];
+            for (int c = 0; c < INT_COLUMNS; c++) {
+                file.position(columnOffset(c, capacity));
+                file.asIntBuffer().get(ints[c]);
+            }
+            for (int c = 0; c < FLOAT_COLUMNS; c++) {
+                file.position(columnOffset(INT_COLUMNS + c, capacity));
+                file.asFloatBuffer().get(floats[c]);
+            }
+
+            world.restoreCounters(frame, nextId, seed);
+            WorldState.restorePrimitives(world, n, ints[0], ints[1], ints[2], floats);
+
+            file.position(columnOffset(COLUMNS, capacity));
+            file.limit(file.position() + tailLength);
+            WorldState.readStreams(world, file);
+            WorldState.readManifolds(world, file);
+            world.explosions.readState(file);
+        }
+    }
+
+    /**
+     * Copies the state of a range of primitives into the columns of a
+     * capture.
+     */
+    private static void gather(Capture capture, List<CollisionSphere> primitives, int from, int to) {
+        int[] ids = capture.ints[0];
+        int[] templates = capture.ints[1];
+        int[] spawnFrames = capture.ints[2];
+        float[] px = capture.floats[0], py = capture.floats[1], pz = capture.floats[2];
+        float[] vx = capture.floats[3], vy = capture.floats[4], vz = capture.floats[5];
+        for (int i = from; i < to; i++) {
+            CollisionSphere primitive = primitives.get(i);
+            Particle body = primitive.body;
+            ids[i] = primitive.id;
+            templates[i] = primitive.template;
+            spawnFrames[i] = primitive.spawnFrame;
+            px[i] = body.position.x;
+            py[i] = body.position.y;
+            pz[i] = body.position.z;
+            vx[i] = body.velocity.x;
+            vy[i] = body.velocity.y;
+            vz[i] = body.velocity.z;
+        }
+    }
+
+    /**
+     * Splits a range of primitives in halves until it fits in a region.
+     */
+    private static class GatherTask extends RecursiveAction {
+        private final Capture capture;
+        private final List<CollisionSphere> primitives;
+        private final int from;
+        private final int to;
+
+        GatherTask(Capture capture, List<CollisionSphere> primitives, int from, int to) {
+            this.capture = capture;
+            this.primitives = primitives;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= REGION_SIZE) {
+                gather(capture, primitives, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new GatherTask(capture, primitives, from, mid),
+                    new GatherTask(capture, primitives, mid, to));
+        }
+    }
+
+    /**
+     * Writes a capture into the file, on the writer thread. Only the
+     * regions that differ from the last capture written are copied.
+     */
+    private void write(Capture capture, Capture last) throws IOException {
+        int n = capture.count;
+        int tailLength = capture.tail.remaining();
+        ensureMapped(n, tailLength);
+        boolean full = fullWrite;
+
+        mapped.putInt(STATE_OFFSET, INCOMPLETE);
+        mapped.force();
+
+        int regions = 0;
+        for (int start = 0; start < n; start += REGION_SIZE) {
+            int end = Math.min(start + REGION_SIZE, n);
+            // Regions the last capture did not fill completely are new.
+            boolean fresh = full || end > last.count;
+
+            for (int c = 0; c < INT_COLUMNS; c++) {
+                int[] column = capture.ints[c];
+                if (fresh || !equal(column, last.ints[c], start, end)) {
+                    ByteBuffer target = mapped.duplicate();
+                    target.order(ByteOrder.LITTLE_ENDIAN).position(columnOffset(c, capacity) + start * 4);
+                    target.asIntBuffer().put(column, start, end - start);
+                    regions++;
+                }
+            }
+            for (int c = 0; c < FLOAT_COLUMNS; c++) {
+                float[] column = capture.floats[c];
+                if (fresh || !equal(column, last.floats[c], start, end)) {
+                    ByteBuffer target = mapped.duplicate();
+                    target.order(ByteOrder.LITTLE_ENDIAN)
+                            .position(columnOffset(INT_COLUMNS + c, capacity) + start * 4);
+                    target.asFloatBuffer().put(column, start, end - start);
+                    regions++;
+                }
+            }
+        }
+
+        ByteBuffer tail = mapped.duplicate();
+        tail.position(columnOffset(COLUMNS, capacity));
+        tail.put(capture.tail.duplicate());
+
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+        mapped.putInt(VERSION_OFFSET, VERSION);
+        mapped.putInt(FRAME_OFFSET, capture.frame);
+        mapped.putInt(NEXT_ID_OFFSET, capture.nextId);
+        mapped.putInt(COUNT_OFFSET, n);
+        mapped.putInt(CAPACITY_OFFSET, capacity);
+        mapped.putInt(TAIL_LENGTH_OFFSET, tailLength);
+        mapped.putLong(SEED_OFFSET, capture.seed);
+        mapped.force();
+
+        // Only mark the snapshot complete once everything else is on disk.
+        mapped.putInt(STATE_OFFSET, COMPLETE);
+        mapped.force();
+
+        fullWrite = false;
+        regionsWritten = regions;
+    }
+
+    /**
+     * Maps the file with room for the given number of primitives and
+     * tail bytes, growing it if needed. Moving the columns to a larger
+     * capacity requires the next write to copy everything.
+     */
+    private void ensureMapped(int count, int tailLength) throws IOException {
+        if (mapped != null && count <= capacity && tailLength <= tailCapacity)
+            return;
+
+        if (count > capacity) {
+            int regions = Math.max(1, (count + REGION_SIZE - 1) / REGION_SIZE);
+            capacity = Math.max(regions * REGION_SIZE, capacity * 2);
+            fullWrite = true;
+        }
+        tailCapacity = Math.max(tailLength, tailCapacity * 2);
+
+        long size = columnOffset(COLUMNS, capacity) + (long) tailCapacity;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int columnOffset(int column, int capacity) {
+        return HEADER_BYTES + column * capacity * 4;
+    }
+
+    private static boolean equal(int[] a, int[] b, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Compares the bits of the floats, so a NaN matches itself and a
+     * changed sign of zero is written.
+     */
+    private static boolean equal(float[] a, float[] b, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (Float.floatToRawIntBits(a[i]) != Float.floatToRawIntBits(b[i]))
+                return false;
+        return true;
+    }
+}
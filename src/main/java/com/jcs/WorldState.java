@@ -0,0 +1,248 @@
+package com.jcs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves the complete state of a {@link World} into a buffer and restores
+ * it, so a world can continue from a saved state exactly as it would
+ * have continued from the original one.
+ * <p>
+ * The state holds the step counters and random streams, the position
+ * and velocity of every primitive and the step it was added in, the
+ * contact manifolds with their accumulated impulses, which the next
+ * steps depend on, and the explosions still spreading. Primitive data is
+ * laid out in columns (all the ids, then all the x positions, and so on)
+ * so it is read and written in bulk. Properties that never change during
+ * a simulation, such as masses and radii, are not saved: a primitive is
+ * restored onto the primitive of the same id already in the world, or
+ * onto a new one created from the template it was spawned from.
+ * <p>
+ * Buffers are written in their own byte order; use the same order to
+ * read them back.
+ */
+public final class WorldState {
+
+    /**
+     * The version of the layout, written first.
+     */
+    public static final int VERSION = 4;
+
+    /**
+     * The number of bytes saved for each contact of a manifold.
+     */
+    private static final int CONTACT_BYTES = 13 * 4;
+
+    private WorldState() {
+    }
+
+    /**
+     * Returns the number of bytes {@link #write} needs for the given
+     * world.
+     */
+    public static int size(World world) {
+        return 4 + 4 + 4 + 8
+                + streamsSize(world)
+                + 4 + world.getPrimitives().size() * (4 + 4 + 4 + 6 * 4)
+                + manifoldsSize(world)
+                + world.explosions.stateSize();
+    }
+
+    /**
+     * Writes the state of the world at the position of the buffer.
+     *
+     * @param world  the world to save
+     * @param buffer the buffer, with at least {@link #size} bytes left
+     */
+    public static void write(World world, ByteBuffer buffer) {
+        buffer.putInt(VERSION);
+        buffer.putInt(world.getFrame());
+        buffer.putInt(world.getNextId());
+        buffer.putLong(world.getSeed());
+
+        writeStreams(world, buffer);
+
+        List<CollisionSphere> primitives = world.getPrimitives();
+        int n = primitives.size();
+        buffer.putInt(n);
+        for (int i = 0; i < n; i++)
+            buffer.putInt(primitives.get(i).id);
+        for (int i = 0; i < n; i++)
+            buffer.putInt(primitives.get(i).template);
+        for (int i = 0; i < n; i++)
+            buffer.putInt(primitives.get(i).spawnFrame);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.position.x);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.position.y);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.position.z);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.velocity.x);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.velocity.y);
+        for (int i = 0; i < n; i++)
+            buffer.putFloat(primitives.get(i).body.velocity.z);
+
+        writeManifolds(world, buffer);
+        world.explosions.writeState(buffer);
+    }
+
+    /**
+     * Restores the state of the world from the position of the buffer.
+     *
+     * @param world  the world to restore, set up with the same templates
+     *               and directly added primitives as the saved one
+     * @param buffer the buffer holding a state written by {@link #write}
+     *
+     * @throws IllegalStateException if the layout version is unknown, or
+     *                               a saved primitive can neither be found
+     *                               nor spawned
+     */
+    public static void read(World world, ByteBuffer buffer) {
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IllegalStateException("Unknown world state version " + version);
+
+        int frame = buffer.getInt();
+        int nextId = buffer.getInt();
+        long seed = buffer.getLong();
+        world.restoreCounters(frame, nextId, seed);
+
+        readStreams(world, buffer);
+
+        int n = buffer.getInt();
+        int[] ids = new int[n];
+        int[] templates = new int[n];
+        int[] spawnFrames = new int[n];
+        float[][] columns = new float[6][n];
+        buffer.asIntBuffer().get(ids);
+        buffer.position(buffer.position() + n * 4);
+        buffer.asIntBuffer().get(templates);
+        buffer.position(buffer.position() + n * 4);
+        buffer.asIntBuffer().get(spawnFrames);
+        buffer.position(buffer.position() + n * 4);
+        for (float[] column : columns) {
+            buffer.asFloatBuffer().get(column);
+            buffer.position(buffer.position() + n * 4);
+        }
+
+        restorePrimitives(world, n, ids, templates, spawnFrames, columns);
+        readManifolds(world, buffer);
+        world.explosions.readState(buffer);
+    }
+
+    /*
+     * The sections of the layout, shared with WorldSnapshot.
+     */
+
+    static int streamsSize(World world) {
+        return 4 + world.getRandomStreams().size() * (4 + 8);
+    }
+
+    static void writeStreams(World world, ByteBuffer buffer) {
+        LongMap<RandomStream> streams = world.getRandomStreams();
+        buffer.putInt(streams.size());
+        for (int slot = 0; slot < streams.capacity(); slot++) {
+            if (streams.keyAt(slot) == 0)
+                continue;
+            buffer.putInt((int) (streams.keyAt(slot) - 1));
+            buffer.putLong(streams.valueAt(slot).getState());
+        }
+    }
+
+    static void readStreams(World world, ByteBuffer buffer) {
+        // Restore into the existing streams, which game systems may hold.
+        int streamCount = buffer.getInt();
+        for (int i = 0; i < streamCount; i++) {
+            int stream = buffer.getInt();
+            world.getRandom(stream).setState(buffer.getLong());
+        }
+    }
+
+    /**
+     * Replaces the primitives of the world with the first n saved ones,
+     * given as columns: ids, templates, spawn frames, then x, y and z of
+     * the position and of the velocity.
+     */
+    static void restorePrimitives(World world, int n, int[] ids, int[] templates, int[] spawnFrames,
+                                  float[][] columns) {
+        List<CollisionSphere> restored = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            CollisionSphere primitive = world.getPrimitive(ids[i]);
+            if (primitive == null) {
+                if (templates[i] < 0)
+                    throw new IllegalStateException("Primitive " + ids[i] + " is not in the world");
+                primitive = world.getTemplate(templates[i]).create();
+                primitive.template = templates[i];
+            }
+            primitive.spawnFrame = spawnFrames[i];
+            Particle body = primitive.body;
+            body.setPosition(columns[0][i], columns[1][i], columns[2][i]);
+            body.setVelocity(columns[3][i], columns[4][i], columns[5][i]);
+            body.clearAccumulator();
+            primitive.calculateInternals();
+            restored.add(primitive);
+        }
+        world.restorePrimitives(restored, ids);
+    }
+
+    static int manifoldsSize(World world) {
+        int size = 4;
+        for (ContactManifold m = world.getOldestManifold(); m != null; m = m.next)
+            size += 4 * 5 + 1 + m.contactCount * CONTACT_BYTES;
+        return size;
+    }
+
+    static void writeManifolds(World world, ByteBuffer buffer) {
+        int manifoldCount = 0;
+        for (ContactManifold m = world.getOldestManifold(); m != null; m = m.next)
+            manifoldCount++;
+        buffer.putInt(manifoldCount);
+        for (ContactManifold m = world.getOldestManifold(); m != null; m = m.next) {
+            buffer.putInt(m.one.id);
+            buffer.putInt(m.two.id);
+            buffer.putInt(m.firstFrame);
+            buffer.putInt(m.lastFrame);
+            buffer.put((byte) (m.touching ? 1 : 0));
+            buffer.putInt(m.contactCount);
+            for (int i = 0; i < m.contactCount; i++) {
+                Contact c = m.contacts[i];
+                buffer.putFloat(c.contactPoint.x).putFloat(c.contactPoint.y).putFloat(c.contactPoint.z);
+                buffer.putFloat(c.contactNormal.x).putFloat(c.contactNormal.y).putFloat(c.contactNormal.z);
+                buffer.putFloat(c.relativeContactPosition.x)
+                        .putFloat(c.relativeContactPosition.y)
+                        .putFloat(c.relativeContactPosition.z);
+                buffer.putFloat(c.penetration);
+                buffer.putFloat(c.normalImpulse);
+                buffer.putFloat(c.tangentImpulse1);
+                buffer.putFloat(c.tangentImpulse2);
+            }
+        }
+    }
+
+    static void readManifolds(World world, ByteBuffer buffer) {
+        int manifoldCount = buffer.getInt();
+        for (int i = 0; i < manifoldCount; i++) {
+            CollisionSphere one = world.getPrimitive(buffer.getInt());
+            CollisionSphere two = world.getPrimitive(buffer.getInt());
+            int firstFrame = buffer.getInt();
+            int lastFrame = buffer.getInt();
+            boolean touching = buffer.get() != 0;
+            ContactManifold m = world.restoreManifold(one, two, firstFrame, lastFrame, touching);
+
+            m.contactCount = buffer.getInt();
+            for (int j = 0; j < m.contactCount; j++) {
+                Contact c = m.contacts[j];
+                c.contactPoint.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                c.contactNormal.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                c.relativeContactPosition.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                c.penetration = buffer.getFloat();
+                c.normalImpulse = buffer.getFloat();
+                c.tangentImpulse1 = buffer.getFloat();
+                c.tangentImpulse2 = buffer.getFloat();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.jcs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pairs of the sweep list against every pair tested by brute
+ * force.
+ */
+public class BroadphaseTest {
+
+    @Test
+    public void findsTheSamePairsAsBruteForce() {
+        RandomStream random = new RandomStream(1, 0);
+        List<CollisionSphere> spheres = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            CollisionSphere sphere = new CollisionSphere();
+            sphere.radius = random.nextFloat(0.1f, 2.0f);
+            sphere.body.setPosition(random.nextFloat(-40.0f, 40.0f), random.nextFloat(-10.0f, 10.0f),
+                    random.nextFloat(-40.0f, 40.0f));
+            sphere.category = 1 << random.nextInt(3);
+            sphere.mask = random.nextInt(4) == 0 ? ~sphere.category : 0xFFFFFFFF;
+            sphere.group = random.nextInt(8) == 0 ? random.nextInt(3) - 1 : 0;
+            sphere.id = i;
+            sphere.calculateInternals();
+            spheres.add(sphere);
+        }
+
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < spheres.size(); i++) {
+            for (int j = i + 1; j < spheres.size(); j++) {
+                CollisionSphere a = spheres.get(i), b = spheres.get(j);
+                float r = a.radius + b.radius;
+                if (CollisionPrimitive.shouldCollide(a.category, a.mask, a.group, b.category, b.mask, b.group)
+                        && Math.abs(a.body.position.x - b.body.position.x) <= r
+                        && Math.abs(a.body.position.y - b.body.position.y) <= r
+                        && Math.abs(a.body.position.z - b.body.position.z) <= r)
+                    expected.add(ContactManifold.key(a.id, b.id));
+            }
+        }
+
+        Broadphase broadphase = new Broadphase();
+        broadphase.update(spheres);
+        PairBuffer pairs = new PairBuffer();
+        broadphase.findPairs(pairs);
+
+        Set<Long> found = new HashSet<>();
+        for (int i = 0; i < pairs.getCount(); i++) {
+            CollisionSphere a = broadphase.getPrimitive(pairs.getA(i));
+            CollisionSphere b = broadphase.getPrimitive(pairs.getB(i));
+            assertTrue("Pair reported twice", found.add(ContactManifold.key(a.id, b.id)));
+        }
+        assertTrue(expected.size() > 1000);
+        assertEquals(expected, found);
+    }
+}
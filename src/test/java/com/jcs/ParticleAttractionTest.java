@@ -0,0 +1,93 @@
+package com.jcs;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the tree walk of the attraction against the direct sum over every
+ * pair of particles.
+ */
+public class ParticleAttractionTest {
+
+    private static final int COUNT = 3000;
+    private static final float STRENGTH = 0.5f;
+
+    private static ParticleBuffer createCloud() {
+        Random random = new Random(42);
+        ParticleBuffer particles = new ParticleBuffer(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            // A dense core and a sparse halo, so the tree is uneven.
+            float radius = i % 4 == 0 ? 50.0f : 5.0f;
+            particles.add((float) random.nextGaussian() * radius,
+                    (float) random.nextGaussian() * radius,
+                    (float) random.nextGaussian() * radius,
+                    1.0f / (0.5f + random.nextFloat()), 1.0f);
+        }
+        return particles;
+    }
+
+    /**
+     * Returns the softened forces of every pair, summed in double precision.
+     */
+    private static double[] directSum(ParticleBuffer particles, float softening) {
+        double epsilon2 = (double) softening * softening;
+        double[] forces = new double[3 * COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            double massI = 1.0 / particles.inverseMass[i];
+            for (int j = 0; j < COUNT; j++) {
+                if (j == i)
+                    continue;
+                double dx = particles.px[j] - particles.px[i];
+                double dy = particles.py[j] - particles.py[i];
+                double dz = particles.pz[j] - particles.pz[i];
+                double distance2 = dx * dx + dy * dy + dz * dz + epsilon2;
+                double pull = STRENGTH * massI / particles.inverseMass[j]
+                        / (distance2 * Math.sqrt(distance2));
+                forces[3 * i] += dx * pull;
+                forces[3 * i + 1] += dy * pull;
+                forces[3 * i + 2] += dz * pull;
+            }
+        }
+        return forces;
+    }
+
+    /**
+     * Returns the root mean square of the relative errors of the forces of
+     * the tree against the direct sum, and checks the largest one.
+     */
+    private static double relativeError(float openingAngle, double maxError) {
+        ParticleBuffer particles = createCloud();
+        ParticleAttraction attraction = new ParticleAttraction(STRENGTH);
+        attraction.openingAngle = openingAngle;
+        ParticleForceRegistry forces = new ParticleForceRegistry();
+        forces.add(attraction);
+        particles.clearForces();
+        forces.updateForces(particles, 0.01f);
+
+        double[] expected = directSum(particles, attraction.softening);
+        double sum = 0.0;
+        for (int i = 0; i < COUNT; i++) {
+            double ex = expected[3 * i], ey = expected[3 * i + 1], ez = expected[3 * i + 2];
+            double dx = particles.fx[i] - ex, dy = particles.fy[i] - ey, dz = particles.fz[i] - ez;
+            double error = Math.sqrt((dx * dx + dy * dy + dz * dz) / (ex * ex + ey * ey + ez * ez));
+            assertTrue("Particle " + i + " is off by " + error, error < maxError);
+            sum += error * error;
+        }
+        return Math.sqrt(sum / COUNT);
+    }
+
+    @Test
+    public void closedTreeMatchesDirectSum() {
+        double error = relativeError(0.0f, 1e-3);
+        assertTrue("Error " + error, error < 1e-4);
+    }
+
+    @Test
+    public void openTreeStaysNearDirectSum() {
+        double error = relativeError(0.5f, 0.05);
+        assertTrue("Error " + error, error < 0.01);
+    }
+}
@@ -0,0 +1,116 @@
+package com.jcs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order of accuracy of the integrators on an undamped spring,
+ * whose exact motion is known, and the step doubling error estimate the
+ * adaptive stepper relies on.
+ */
+public class ParticleIntegratorTest {
+
+    /**
+     * The angular frequency of the spring, with a unit mass.
+     */
+    private static final double OMEGA = 10.0;
+
+    private static ParticleBuffer createSpring(ParticleIntegrator integrator) {
+        ParticleBuffer particles = new ParticleBuffer(1);
+        particles.add(1.0f, 0.0f, 0.0f, 1.0f, 1.0f);
+        particles.integrator = integrator;
+        return particles;
+    }
+
+    private static ParticleForceRegistry createForces() {
+        ParticleForceRegistry forces = new ParticleForceRegistry();
+        forces.add(new ParticleAnchoredSpring(0.0f, 0.0f, 0.0f, (float) (OMEGA * OMEGA), 0.0f));
+        return forces;
+    }
+
+    /**
+     * Returns the distance from the exact motion at the given time, with the
+     * velocity scaled to a position. The error in position alone may cancel
+     * out between amplitude and phase, the distance in phase space cannot.
+     */
+    private static double error(ParticleBuffer particles, double time) {
+        double dx = particles.px[0] - Math.cos(OMEGA * time);
+        double dv = particles.vx[0] / OMEGA + Math.sin(OMEGA * time);
+        return Math.sqrt(dx * dx + dv * dv);
+    }
+
+    /**
+     * Returns the error after a second of steps of the given size.
+     */
+    private static double globalError(ParticleIntegrator integrator, int steps) {
+        ParticleBuffer particles = createSpring(integrator);
+        ParticleForceRegistry forces = createForces();
+        for (int i = 0; i < steps; i++)
+            particles.step(1.0f / steps, forces, null);
+        return error(particles, 1.0);
+    }
+
+    private static void assertOrder(ParticleIntegrator integrator, int coarseSteps) {
+        double coarse = globalError(integrator, coarseSteps);
+        double fine = globalError(integrator, coarseSteps * 2);
+        double order = Math.log(coarse / fine) / Math.log(2.0);
+        assertEquals(integrator.getOrder(), order, 0.3);
+    }
+
+    @Test
+    public void eulerIsFirstOrder() {
+        assertOrder(ParticleIntegrator.EXPLICIT_EULER, 2000);
+        assertOrder(ParticleIntegrator.SEMI_IMPLICIT_EULER, 2000);
+    }
+
+    @Test
+    public void verletIsSecondOrder() {
+        assertOrder(ParticleIntegrator.VERLET, 200);
+    }
+
+    @Test
+    public void rungeKuttaIsFourthOrder() {
+        assertOrder(ParticleIntegrator.RK4, 20);
+    }
+
+    /**
+     * The difference between a whole step and two half steps, divided by
+     * 2^p - 1, is the Richardson estimate of the error of the halved one.
+     */
+    @Test
+    public void stepDoublingEstimatesTheError() {
+        for (ParticleIntegrator integrator : new ParticleIntegrator[]{
+                ParticleIntegrator.EXPLICIT_EULER, ParticleIntegrator.RK4}) {
+            float h = integrator.getOrder() == 1 ? 0.01f : 0.05f;
+            ParticleForceRegistry forces = createForces();
+
+            ParticleBuffer whole = createSpring(integrator);
+            whole.step(h, forces, null);
+            ParticleBuffer halved = createSpring(integrator);
+            halved.step(h * 0.5f, forces, null);
+            halved.step(h * 0.5f, forces, null);
+
+            double dx = halved.px[0] - whole.px[0];
+            double dv = (halved.vx[0] - whole.vx[0]) / OMEGA;
+            double estimate = Math.sqrt(dx * dx + dv * dv) / ((1 << integrator.getOrder()) - 1);
+            double error = error(halved, h);
+            assertTrue(estimate / error > 0.5 && estimate / error < 2.0);
+        }
+    }
+
+    @Test
+    public void adaptiveStepperStaysNearTolerance() {
+        ParticleBuffer particles = createSpring(ParticleIntegrator.RK4);
+        AdaptiveStepper stepper = new AdaptiveStepper(particles, createForces());
+        stepper.tolerance = 1.0e-5f;
+        stepper.minStep = 1.0e-4f;
+        for (int frame = 0; frame < 60; frame++)
+            stepper.advance(1.0f / 60.0f);
+
+        double error = Math.abs(particles.px[0] - Math.cos(OMEGA));
+        assertTrue(error < stepper.getStepCount() * stepper.tolerance);
+        assertTrue(stepper.getStepCount() < 600);
+    }
+}
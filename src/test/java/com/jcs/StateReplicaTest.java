@@ -0,0 +1,99 @@
+package com.jcs;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a replica decodes the packets of a replicator back into
+ * the state of the world, whatever order they arrive in.
+ */
+public class StateReplicaTest {
+
+    private static final float STEP = 1.0f / 60.0f;
+
+    private final World world = new World();
+    private final StateReplicator replicator = new StateReplicator();
+    private final StateReplica replica = new StateReplica();
+
+    private int spawnMovingBody() {
+        int template = world.addTemplate(() -> {
+            CollisionSphere sphere = new CollisionSphere();
+            sphere.radius = 0.25f;
+            sphere.body.setMass(1.0f);
+            sphere.body.setDamping(1.0f);
+            return sphere;
+        });
+        return world.spawn(template, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f);
+    }
+
+    private ByteBuffer stepAndEncode() {
+        world.step(STEP);
+        ByteBuffer packet = ByteBuffer.allocate(replicator.budget);
+        replicator.encode(world, packet);
+        packet.flip();
+        return packet;
+    }
+
+    @Test
+    public void decodesTheStateOfTheWorld() {
+        int id = spawnMovingBody();
+        float[] state = new float[6];
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer packet = stepAndEncode();
+            replicator.acknowledge(replica.decode(packet));
+
+            assertTrue(replica.getState(id, state));
+            Particle body = world.getPrimitive(id).body;
+            assertEquals(body.position.x, state[0], 1.0f / replicator.positionScale);
+            assertEquals(body.velocity.x, state[3], 1.0f / replicator.velocityScale);
+        }
+    }
+
+    /**
+     * Sends packet 31 after packet 32, both coded after only packet 0 was
+     * acknowledged: 32 is sent in full and overwrites the values of 0 in
+     * the replica, so 31, coded against 0, must be dropped and leave the
+     * values of 32 alone.
+     */
+    @Test
+    public void dropsPacketsCodedAgainstAnOverwrittenBaseline() {
+        int id = spawnMovingBody();
+        ByteBuffer[] packets = new ByteBuffer[33];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = stepAndEncode();
+            if (i == 0)
+                replicator.acknowledge(replica.decode(packets[0]));
+        }
+
+        float[] expected = new float[6];
+        float[] state = new float[6];
+        assertEquals(32, replica.decode(packets[32]));
+        assertTrue(replica.getState(id, expected));
+        assertEquals(-1, replica.decode(packets[31]));
+        assertTrue(replica.getState(id, state));
+        assertArrayEquals(expected, state, 0.0f);
+    }
+
+    @Test
+    public void keepsTheLatestStateWhenAnOlderPacketArrivesLate() {
+        int id = spawnMovingBody();
+        ByteBuffer first = stepAndEncode();
+        replicator.acknowledge(replica.decode(first));
+        ByteBuffer older = stepAndEncode();
+        ByteBuffer newer = stepAndEncode();
+
+        float[] expected = new float[6];
+        float[] state = new float[6];
+        replica.decode(newer);
+        assertTrue(replica.getState(id, expected));
+        replica.decode(older);
+        assertTrue(replica.getState(id, state));
+        assertArrayEquals(expected, state, 0.0f);
+        assertEquals(2, replica.getLatestSequence());
+    }
+}
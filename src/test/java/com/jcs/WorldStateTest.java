@@ -0,0 +1,95 @@
+package com.jcs;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a world saved and restored goes on exactly as the original.
+ */
+public class WorldStateTest {
+
+    private static final float STEP = 1.0f / 60.0f;
+
+    /**
+     * Makes a world of falling spheres on a ground sphere, with bodies
+     * spawned, despawned and pushed by an explosion along the way.
+     */
+    private static World createWorld() {
+        World world = new World();
+        world.deterministic = true;
+        world.setSeed(42);
+        world.addTemplate(() -> {
+            CollisionSphere sphere = new CollisionSphere();
+            sphere.radius = 0.5f;
+            sphere.body.setMass(1.0f);
+            sphere.body.setDamping(0.99f);
+            sphere.body.setAcceleration(0.0f, -10.0f, 0.0f);
+            return sphere;
+        });
+        CollisionSphere ground = new CollisionSphere();
+        ground.radius = 100.0f;
+        ground.body.setPosition(0.0f, -100.0f, 0.0f);
+        world.add(ground);
+        return world;
+    }
+
+    private static void play(World world, int from, int to) {
+        RandomStream random = world.getRandom(1);
+        for (int frame = from; frame < to; frame++) {
+            if (frame % 2 == 0)
+                world.spawn(0, random.nextFloat(-3.0f, 3.0f), random.nextFloat(1.0f, 6.0f),
+                        random.nextFloat(-3.0f, 3.0f), 0.0f, 0.0f, 0.0f);
+            if (frame % 25 == 24)
+                world.despawn(frame / 2);
+            if (frame == 50)
+                world.explode(0.0f, 0.0f, 0.0f, 8.0f, 4.0f, Explosions.FALLOFF_LINEAR, 20.0f, false);
+            world.step(STEP);
+        }
+    }
+
+    private static ByteBuffer save(World world) {
+        ByteBuffer buffer = ByteBuffer.allocate(WorldState.size(world));
+        WorldState.write(world, buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void restoredWorldMatchesOriginal() {
+        World original = createWorld();
+        play(original, 0, 52);
+        assertTrue(original.getManifoldCount() > 0);
+        assertTrue(original.explosions.getCount() > 0);
+
+        ByteBuffer state = save(original);
+        long savedHash = original.getStateHash();
+        play(original, 52, 120);
+
+        World restored = createWorld();
+        WorldState.read(restored, state);
+        assertEquals(savedHash, restored.getStateHash());
+        assertEquals(52, restored.getFrame());
+
+        play(restored, 52, 120);
+        assertEquals(original.getStateHash(), restored.getStateHash());
+    }
+
+    @Test
+    public void rewoundWorldReplaysTheSameSteps() {
+        World world = createWorld();
+        play(world, 0, 40);
+        ByteBuffer state = save(world);
+        play(world, 40, 100);
+        long hash = world.getStateHash();
+
+        WorldState.read(world, state);
+        play(world, 40, 100);
+        assertEquals(hash, world.getStateHash());
+    }
+}
@@ -16,6 +16,11 @@ public class AmmoRound extends Particle {
 
     public ShotType type;
 
+    /**
+     * Identifies the round in traces.
+     */
+    public int id;
+
     public void render() {
         glPushMatrix();
         glTranslatef(position.x, position.y, position.z);
@@ -24,13 +29,6 @@ public class AmmoRound extends Particle {
         glPopMatrix();
     }
 
-    public void isRemove() {
-        if (getPosition().y >= 35 ||
-                getPosition().y <= 0 ||
-                getPosition().z > 200.0f)
-            type = ShotType.UNUSED;
-    }
-
     private void renderType() {
 
         switch (type) {
@@ -1,5 +1,8 @@
 package demos.ballistic;
 
+import com.jcs.HandleRegistry;
+import com.jcs.KillVolumes;
+import com.jcs.TraceWriter;
 import engine.Font;
 import engine.GameEngine;
 import engine.Shape;
@@ -8,8 +11,10 @@ import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.Version;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -20,9 +25,33 @@ public class BallisticDemo extends GameEngine {
     private final Vector3f initPos = new Vector3f(0.0f, 1.5f, 0.0f);
     private AmmoRound.ShotType currentShotType = AmmoRound.ShotType.UNUSED;
     private String type = "None";
-    private List<AmmoRound> ammoRounds = new ArrayList<>();
+    private HandleRegistry<AmmoRound> ammoRounds = new HandleRegistry<>();
+
+    /**
+     * Holds the handles of the rounds in the order they were fired. The
+     * handles of rounds that already left are stale and skipped.
+     */
+    private ArrayDeque<Long> firingOrder = new ArrayDeque<>();
     private final int maxAmmoRounds = 20;
 
+    /**
+     * Holds where the rounds leave: above the sky, below the ground and
+     * past the end of the range, evaluated over their packed positions.
+     */
+    private final KillVolumes killVolumes = new KillVolumes();
+    private final float[] x = new float[maxAmmoRounds];
+    private final float[] y = new float[maxAmmoRounds];
+    private final float[] z = new float[maxAmmoRounds];
+    private final int[] culled = new int[maxAmmoRounds];
+    private int nextRoundId;
+
+    /**
+     * Traces the rounds when the demo is run with -Dtrace=file, for
+     * offline tuning of the shot types.
+     */
+    private TraceWriter trace;
+    private int frame;
+
     @Override
     public void config() {
         tittle = "Demo:: BallisticDemo";
@@ -35,6 +64,19 @@ public class BallisticDemo extends GameEngine {
         projection = new Matrix4f().setPerspective((float) Math.toRadians(60), width / height, 0.01f, 1000.0f);
         view = new Matrix4f().setLookAt(-25.0f, 8.0f, 5.0f, 0.0f, 5.0f, 22.0f, 0.0f, 1.0f, 0.0f);
         fb = BufferUtils.createFloatBuffer(16);
+
+        killVolumes.addHalfSpace(0.0f, 1.0f, 0.0f, 35.0f);
+        killVolumes.addHalfSpace(0.0f, -1.0f, 0.0f, 0.0f);
+        killVolumes.addHalfSpace(0.0f, 0.0f, 1.0f, 200.0f);
+
+        String tracePath = System.getProperty("trace");
+        if (tracePath != null) {
+            try {
+                trace = new TraceWriter(Paths.get(tracePath), TraceWriter.ALL, 256);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     @Override
@@ -51,8 +93,9 @@ public class BallisticDemo extends GameEngine {
             }
 
             if (button == GLFW_MOUSE_BUTTON_RIGHT && action == GLFW_PRESS) {
-                if (!ammoRounds.isEmpty())
-                    ammoRounds.remove(0);
+                while (!firingOrder.isEmpty() && !ammoRounds.remove(firingOrder.poll())) {
+                    // Skip the rounds that already left.
+                }
             }
         });
 
@@ -96,19 +139,29 @@ public class BallisticDemo extends GameEngine {
         if (delta <= 0.0f)
             return;
 
-        List<AmmoRound> cache = new ArrayList<>();
-        for (AmmoRound shot : ammoRounds) {
+        int n = ammoRounds.size();
+        for (int i = 0; i < n; i++) {
+            AmmoRound shot = ammoRounds.getAt(i);
             shot.integrate(delta);
-            shot.isRemove();
-            cache.add(shot);
+            x[i] = shot.getPosition().x;
+            y[i] = shot.getPosition().y;
+            z[i] = shot.getPosition().z;
         }
 
-        for (AmmoRound shotCache : cache)
-            if (shotCache.type == AmmoRound.ShotType.UNUSED)
-                ammoRounds.remove(shotCache);
-
-        cache.clear();
-
+        // Remove backwards, so the rounds moved into the place of removed
+        // ones are never among those still to remove.
+        int culledCount = killVolumes.cull(x, y, z, null, n, culled);
+        for (int i = culledCount - 1; i >= 0; i--)
+            ammoRounds.remove(ammoRounds.getHandleAt(culled[i]));
+
+        if (trace != null) {
+            trace.beginStep(frame++);
+            for (int i = 0; i < ammoRounds.size(); i++) {
+                AmmoRound shot = ammoRounds.getAt(i);
+                trace.add(shot.id, shot);
+            }
+            trace.endStep();
+        }
     }
 
     @Override
@@ -133,7 +186,8 @@ public class BallisticDemo extends GameEngine {
         glPopMatrix();
 
         //glPushMatrix();
-        ammoRounds.forEach(AmmoRound::render);
+        for (int i = 0; i < ammoRounds.size(); i++)
+            ammoRounds.getAt(i).render();
         //glPopMatrix();
 
         Font.render(tittle, window, 10, 10, new Vector3f());
@@ -173,6 +227,14 @@ public class BallisticDemo extends GameEngine {
     @Override
     public void finish() {
         glfwFreeCallbacks(window);
+
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     private void fire() {
@@ -207,8 +269,13 @@ public class BallisticDemo extends GameEngine {
 
         shot.setPosition(initPos);
         shot.type = currentShotType;
+        shot.id = nextRoundId++;
 
-        ammoRounds.add(shot);
+        // Stale handles are skipped when polling, so they are only
+        // dropped once they outnumber the live ones.
+        if (firingOrder.size() > 2 * ammoRounds.size())
+            firingOrder.removeIf(handle -> !ammoRounds.contains(handle));
+        firingOrder.add(ammoRounds.add(shot));
     }
 
     public static void main(String[] args) {
@@ -16,8 +16,19 @@ public class AmmoRound extends CollisionSphere {
         UNUSED, PISTOL, ARTILLERY, FIREBALL, LASER
     }
 
+    /**
+     * The collision layer of every round. Rounds leave it out of their
+     * mask so that shots never collide with each other.
+     */
+    public static final int PROJECTILE = 1 << 1;
+
     public ShotType type;
 
+    public AmmoRound() {
+        category = PROJECTILE;
+        mask = ~PROJECTILE;
+    }
+
     public void render() {
         glPushMatrix();
         glMultMatrixf(body.getGLTransform().get(fb));
@@ -26,13 +37,6 @@ public class AmmoRound extends CollisionSphere {
         glPopMatrix();
     }
 
-    public void isRemove() {
-        if (body.getPosition().y >= 35 ||
-                body.getPosition().y <= 0 ||
-                body.getPosition().z > 200.0f)
-            type = ShotType.UNUSED;
-    }
-
     private void renderType() {
 
         switch (type) {
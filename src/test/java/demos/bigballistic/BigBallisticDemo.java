@@ -1,5 +1,7 @@
 package demos.bigballistic;
 
+import com.jcs.CollisionSphere;
+import com.jcs.World;
 import engine.Font;
 import engine.GameEngine;
 import engine.Shape;
@@ -8,8 +10,8 @@ import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.Version;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -20,9 +22,36 @@ public class BigBallisticDemo extends GameEngine {
     private final Vector3f initPos = new Vector3f(0.0f, 1.5f, 0.0f);
     private AmmoRound.ShotType currentShotType = AmmoRound.ShotType.UNUSED;
     private String type = "None";
-    private List<AmmoRound> ammoRounds = new ArrayList<>();
+
+    /**
+     * Holds the rounds in flight. The input callbacks never touch it
+     * directly: they enqueue spawn and despawn commands, which the world
+     * runs at the start of its next step.
+     */
+    private final World world = new World();
+
+    /**
+     * Holds the world template and the muzzle velocity of each shot type,
+     * by ordinal.
+     */
+    private final int[] templates = new int[AmmoRound.ShotType.values().length];
+    private final Vector3f[] muzzleVelocities = new Vector3f[AmmoRound.ShotType.values().length];
+
+    /**
+     * Holds the ids of the rounds in the order they were fired. The ids
+     * of rounds that already left are stale and skipped.
+     */
+    private ArrayDeque<Integer> firingOrder = new ArrayDeque<>();
     private final int maxAmmoRounds = 20;
 
+    /**
+     * Holds the first id handed out since the last step, from which on
+     * rounds may still wait for their spawn command to run, and the last
+     * id handed out.
+     */
+    private int firstPendingId;
+    private int lastFiredId = -1;
+
     @Override
     public void config() {
         tittle = "Demo:: BigBallisticDemo";
@@ -35,6 +64,26 @@ public class BigBallisticDemo extends GameEngine {
         projection = new Matrix4f().setPerspective((float) Math.toRadians(60), width / height, 0.01f, 1000.0f);
         view = new Matrix4f().setLookAt(-25.0f, 8.0f, 5.0f, 0.0f, 5.0f, 22.0f, 0.0f, 1.0f, 0.0f);
         fb = BufferUtils.createFloatBuffer(16);
+
+        // The rounds leave above the sky, below the ground and past the
+        // end of the range.
+        world.killVolumes.addHalfSpace(0.0f, 1.0f, 0.0f, 35.0f);
+        world.killVolumes.addHalfSpace(0.0f, -1.0f, 0.0f, 0.0f);
+        world.killVolumes.addHalfSpace(0.0f, 0.0f, 1.0f, 200.0f);
+
+        addShotType(AmmoRound.ShotType.PISTOL, AmmoRound::PISTOL);
+        addShotType(AmmoRound.ShotType.ARTILLERY, AmmoRound::ARTILLERY);
+        addShotType(AmmoRound.ShotType.FIREBALL, AmmoRound::FIREBALL);
+        addShotType(AmmoRound.ShotType.LASER, AmmoRound::LASER);
+    }
+
+    private void addShotType(AmmoRound.ShotType type, Supplier<AmmoRound> factory) {
+        templates[type.ordinal()] = world.addTemplate(() -> {
+            AmmoRound shot = factory.get();
+            shot.type = type;
+            return shot;
+        });
+        muzzleVelocities[type.ordinal()] = factory.get().body.getVelocity();
     }
 
     @Override
@@ -50,8 +99,13 @@ public class BigBallisticDemo extends GameEngine {
             }
 
             if (button == GLFW_MOUSE_BUTTON_RIGHT && action == GLFW_PRESS) {
-                if (!ammoRounds.isEmpty())
-                    ammoRounds.remove(0);
+                while (!firingOrder.isEmpty()) {
+                    int id = firingOrder.poll();
+                    if (!hasLeft(id)) {
+                        world.despawn(id);
+                        break;
+                    }
+                }
             }
         });
 
@@ -93,20 +147,9 @@ public class BigBallisticDemo extends GameEngine {
         if (delta <= 0.0f)
             return;
 
-        List<AmmoRound> cache = new ArrayList<>();
-        for (AmmoRound shot : ammoRounds) {
-            shot.body.integrate(delta);
-            shot.calculateInternals();
-            shot.isRemove();
-            cache.add(shot);
-        }
-
-
-        for (AmmoRound shotCache : cache)
-            if (shotCache.type == AmmoRound.ShotType.UNUSED)
-                ammoRounds.remove(shotCache);
-
-        cache.clear();
+        // Every id handed out so far is spawned by this step.
+        firstPendingId = lastFiredId + 1;
+        world.step(delta);
     }
 
     @Override
@@ -130,7 +173,8 @@ public class BigBallisticDemo extends GameEngine {
         Shape.renderSphere();
         glPopMatrix();
 
-        ammoRounds.forEach(AmmoRound::render);
+        for (CollisionSphere shot : world.getPrimitives())
+            ((AmmoRound) shot).render();
 
         Font.render(tittle, window, 10, 10, new Vector3f());
         Font.render(upsCount, window, 10, 20, new Vector3f());
@@ -175,36 +219,30 @@ public class BigBallisticDemo extends GameEngine {
         if (currentShotType == AmmoRound.ShotType.UNUSED)
             return;
 
-        if (ammoRounds.size() == maxAmmoRounds)
+        int pending = lastFiredId + 1 - firstPendingId;
+        if (world.getPrimitives().size() + pending >= maxAmmoRounds)
             return;
 
-        AmmoRound shot = null;
-
-        switch (currentShotType) {
-            case PISTOL:
-                shot = AmmoRound.PISTOL();
-                break;
-
-            case ARTILLERY:
-                shot = AmmoRound.ARTILLERY();
-                break;
-
-            case FIREBALL:
-                shot = AmmoRound.FIREBALL();
-                break;
-
-            case LASER:
-                shot = AmmoRound.LASER();
-                break;
-            case UNUSED:
-
-                break;
-        }
+        Vector3f velocity = muzzleVelocities[currentShotType.ordinal()];
+        int id = world.spawn(templates[currentShotType.ordinal()],
+                initPos.x, initPos.y, initPos.z, velocity.x, velocity.y, velocity.z);
+        if (id < 0)
+            return;
+        lastFiredId = id;
 
-        shot.body.setPosition(initPos);
-        shot.type = currentShotType;
+        // Stale ids are skipped when polling, so they are only dropped
+        // once they outnumber the live ones.
+        if (firingOrder.size() > 2 * world.getPrimitives().size())
+            firingOrder.removeIf(this::hasLeft);
+        firingOrder.add(id);
+    }
 
-        ammoRounds.add(shot);
+    /**
+     * Returns true if the round of the given id was spawned and has left
+     * the world since.
+     */
+    private boolean hasLeft(int id) {
+        return id < firstPendingId && world.getPrimitive(id) == null;
     }
 
     public static void main(String[] args) {
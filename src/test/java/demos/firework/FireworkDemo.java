@@ -22,6 +22,7 @@ public class FireworkDemo extends GameEngine {
     @Override
     public void config() {
         tittle = "Demo:: FireworkDemo";
+        fixedStep = 1.0f / 60.0f;
         width = 640;
         height = 320;
     }
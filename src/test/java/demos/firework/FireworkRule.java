@@ -1,16 +1,24 @@
 package demos.firework;
 
 import com.jcs.Firework;
+import com.jcs.RandomStream;
 import org.joml.Vector3f;
 
-import java.util.Random;
-
 import static org.lwjgl.opengl.GL11.*;
 
 public class FireworkRule {
 
     public static final Vector3f GRAVITY = new Vector3f(0f, -9.81f, 0f);
-    public static final Random random = new Random();
+    /**
+     * The seed shared by the random streams of every rule.
+     */
+    public static final long SEED = 1;
+
+    /**
+     * The random stream of this rule, seeded from its type so that the
+     * fireworks of one rule do not depend on how many another rule made.
+     */
+    RandomStream random;
 
     /**
      * The type of demos.ballistic.firework that is managed by this rule.
@@ -94,6 +102,7 @@ public class FireworkRule {
     void setParameters(int type, float minAge, float maxAge, Vector3f minVelocity, Vector3f maxVelocity,
                        float damping) {
         this.type = type;
+        this.random = new RandomStream(SEED, type);
         this.minAge = minAge;
         this.maxAge = maxAge;
         this.minVelocity = minVelocity;
@@ -0,0 +1,95 @@
+package demos.host;
+
+import com.jcs.CollisionSphere;
+import com.jcs.RandomStream;
+import com.jcs.World;
+import com.jcs.WorldHost;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hosts as many small matches as the machine takes on a {@link WorldHost}
+ * and prints, every second, the load of the host and how well the
+ * matches keep their tick rate.
+ * <p>
+ * Run it with the number of matches, bodies per match and seconds as
+ * arguments, for example 2000 50 10.
+ */
+public class HostDemo {
+
+    public static void main(String[] args) throws InterruptedException {
+        int matches = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int bodies = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        WorldHost host = new WorldHost();
+        List<WorldHost.Handle> handles = new ArrayList<>();
+        int refused = 0;
+
+        // Charge the matches the cost of a step of a sample one until
+        // the host has measured them.
+        long stepCost = measureStep(bodies);
+
+        for (int i = 0; i < matches; i++) {
+            // Half the matches tick at 60 Hz, the others at 30 Hz.
+            WorldHost.Handle handle = host.host(createMatch(i, bodies), i % 2 == 0 ? 60.0f : 30.0f, stepCost);
+            if (handle == null)
+                refused++;
+            else
+                handles.add(handle);
+        }
+        System.out.printf("%d matches hosted, %d refused, %.1f us per step estimated%n",
+                handles.size(), refused, stepCost / 1000.0);
+
+        for (int s = 1; s <= seconds; s++) {
+            Thread.sleep(1000);
+            long steps = 0;
+            long late = 0;
+            long skipped = 0;
+            long cpu = 0;
+            for (WorldHost.Handle handle : handles) {
+                steps += handle.getSteps();
+                late += handle.getLateTicks();
+                skipped += handle.getSkippedTicks();
+                cpu += handle.getCpuNanos();
+            }
+            System.out.printf("%2d s: load %.2f, %d steps, %d late, %d skipped, %.1f us per step%n",
+                    s, host.getLoad(), steps, late, skipped, cpu / 1000.0 / Math.max(steps, 1));
+        }
+
+        for (WorldHost.Handle handle : handles)
+            handle.remove();
+        host.close();
+    }
+
+    /**
+     * Returns the mean time of a step of a sample match, in nanoseconds,
+     * once warmed up.
+     */
+    private static long measureStep(int bodies) {
+        World world = createMatch(-1, bodies);
+        for (int i = 0; i < 2000; i++)
+            world.step(1.0f / 60.0f);
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++)
+            world.step(1.0f / 60.0f);
+        return (System.nanoTime() - start) / 200;
+    }
+
+    private static World createMatch(int seed, int bodies) {
+        World world = new World(256);
+        world.setSeed(seed);
+        RandomStream random = world.getRandom(0);
+        for (int i = 0; i < bodies; i++) {
+            CollisionSphere sphere = new CollisionSphere();
+            sphere.radius = 0.5f;
+            sphere.body.setMass(1.0f);
+            sphere.body.setDamping(0.99f);
+            sphere.body.setPosition(random.nextFloat(-20.0f, 20.0f), 0.0f, random.nextFloat(-20.0f, 20.0f));
+            sphere.body.setVelocity(random.nextFloat(-3.0f, 3.0f), 0.0f, random.nextFloat(-3.0f, 3.0f));
+            world.add(sphere);
+        }
+        return world;
+    }
+}
@@ -26,6 +26,13 @@ public abstract class GameEngine {
     protected Matrix4f view;
     protected FloatBuffer fb;
 
+    /**
+     * When positive, update is always called with this duration, as many
+     * times as the elapsed time allows, instead of with the varying frame
+     * time. Needed for deterministic simulations.
+     */
+    protected float fixedStep = 0.0f;
+
     public abstract void config();
 
     public abstract void init();
@@ -44,6 +51,7 @@ public abstract class GameEngine {
         int ups = 0, fps = 0;
         glfwSetTime(0);
         double lastTime, lastTimer;
+        float accumulator = 0.0f;
 
         lastTime = lastTimer = glfwGetTime();
 
@@ -56,8 +64,17 @@ public abstract class GameEngine {
             // invoked during this call.
             glfwPollEvents();
 
-            ups++;
-            update(deltaTime);
+            if (fixedStep > 0.0f) {
+                accumulator += deltaTime;
+                while (accumulator >= fixedStep) {
+                    ups++;
+                    update(fixedStep);
+                    accumulator -= fixedStep;
+                }
+            } else {
+                ups++;
+                update(deltaTime);
+            }
 
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
             fps++;